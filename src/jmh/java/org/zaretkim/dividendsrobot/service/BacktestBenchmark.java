@@ -0,0 +1,43 @@
+package org.zaretkim.dividendsrobot.service;
+
+import io.micrometer.core.instrument.Metrics;
+import org.openjdk.jmh.annotations.*;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full backtest of @{@link RobotRunner#BACKTEST_DAYS} days on generated historical data.
+ * Every invocation starts with empty portfolio, historical data is shared the same way as in sweeps
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BacktestBenchmark {
+    @Param({"30"})
+    private int figisCount;
+    private List<String> figis;
+    private BacktestMarketData data;
+    private Instant start;
+
+    @Setup
+    public void setUp() {
+        figis = BenchmarkData.figis(figisCount);
+        data = BenchmarkData.generate(figis, 2);
+        start = BenchmarkData.atMidday(BenchmarkData.FIRST_DAY.plusYears(1));
+    }
+
+    @Benchmark
+    public BigDecimal backtest() {
+        var run = BenchmarkData.createRun(data, start);
+        var strategy = BenchmarkData.createStrategy(run, figis);
+        RobotRunner.runBacktestDays(strategy, run, start, RobotRunner.BACKTEST_DAYS, Metrics.globalRegistry);
+        return strategy.totalAmountOfFunds(run.getPortfolio());
+    }
+}
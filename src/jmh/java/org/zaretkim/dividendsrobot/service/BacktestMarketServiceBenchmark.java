@@ -0,0 +1,54 @@
+package org.zaretkim.dividendsrobot.service;
+
+import org.openjdk.jmh.annotations.*;
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups of @{@link BacktestMarketService} on multi-year data. Every call moves "now" to the next day
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BacktestMarketServiceBenchmark {
+    private static final String FIGI = "FIGI0";
+    @Param({"1", "5"})
+    private int years;
+    private BacktestMarketService run;
+    private Instant[] days;
+    private int dayIndex = 0;
+
+    @Setup
+    public void setUp() {
+        var data = BenchmarkData.generate(BenchmarkData.figis(1), years);
+        days = new Instant[years * 365];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = BenchmarkData.atMidday(BenchmarkData.FIRST_DAY.plusDays(i));
+        }
+        run = BenchmarkData.createRun(data, days[0]);
+    }
+
+    @Benchmark
+    public LastPrice getLastPricesSync() {
+        run.setFakeNow(nextDay());
+        return run.getLastPricesSync(FIGI);
+    }
+
+    @Benchmark
+    public List<Dividend> getDividendsSync() {
+        run.setFakeNow(nextDay());
+        return run.getDividendsSync(FIGI);
+    }
+
+    private Instant nextDay() {
+        dayIndex = (dayIndex + 1) % days.length;
+        return days[dayIndex];
+    }
+}
@@ -0,0 +1,115 @@
+package org.zaretkim.dividendsrobot.service;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.Metrics;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+import org.zaretkim.dividendsrobot.marketdata.CandleSeries;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generated in-memory historical data for benchmarks, so they do not depend on the exchange or on the archive
+ */
+final class BenchmarkData {
+    static final String CONTROL_FIGI = "BBG004730RP0";
+    static final LocalDate FIRST_DAY = LocalDate.of(2017, 1, 2);
+    private static final String CURRENCY = "rub";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return figis FIGI0..FIGI{count-1} and @{@link #CONTROL_FIGI} used by the backtest as trading calendar
+     */
+    static List<String> figis(int count) {
+        var figis = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            figis.add("FIGI" + i);
+        }
+        figis.add(CONTROL_FIGI);
+        return figis;
+    }
+
+    /**
+     * Generates day candles on work days with random walk prices around 100 and yearly dividends of about 8%
+     * @param figis figis to generate data for
+     * @param years number of years starting from @{@link #FIRST_DAY}
+     * @return immutable historical data
+     */
+    static BacktestMarketData generate(List<String> figis, int years) {
+        var random = new Random(42);
+        var candles = new HashMap<String, CandleSeries>();
+        var dividends = new HashMap<String, List<Dividend>>();
+        var shares = new HashMap<String, Share>();
+        var lastDay = FIRST_DAY.plusYears(years);
+        for (String figi : figis) {
+            var figiCandles = new ArrayList<HistoricCandle>();
+            long price = FixedPoint.ofUnits(100);
+            for (var day = FIRST_DAY; day.isBefore(lastDay); day = day.plusDays(1)) {
+                if (day.getDayOfWeek() == DayOfWeek.SATURDAY || day.getDayOfWeek() == DayOfWeek.SUNDAY) continue;
+                price = Math.max(FixedPoint.ofUnits(10), price + (long) (random.nextGaussian() * FixedPoint.ONE));
+                long spread = FixedPoint.ONE / 2;
+                figiCandles.add(HistoricCandle.newBuilder().
+                        setTime(timestamp(day)).
+                        setOpen(FixedPoint.toQuotation(price)).
+                        setHigh(FixedPoint.toQuotation(price + spread)).
+                        setLow(FixedPoint.toQuotation(price - spread)).
+                        setClose(FixedPoint.toQuotation(price)).
+                        build());
+            }
+            candles.put(figi, CandleSeries.fromCandles(figi, figiCandles));
+
+            var figiDividends = new ArrayList<Dividend>();
+            for (int year = 0; year < years; year++) {
+                var lastBuyDay = FIRST_DAY.plusYears(year).plusDays(30 + random.nextInt(300));
+                figiDividends.add(Dividend.newBuilder().
+                        setDeclaredDate(timestamp(lastBuyDay.minusDays(20))).
+                        setLastBuyDate(timestamp(lastBuyDay)).
+                        setDividendNet(FixedPoint.toMoneyValue(FixedPoint.ofUnits(6 + random.nextInt(5)), CURRENCY)).
+                        build());
+            }
+            dividends.put(figi, figiDividends);
+
+            shares.put(figi, Share.newBuilder().setFigi(figi).setTicker(figi).setLot(1).setCurrency(CURRENCY).build());
+        }
+        return new BacktestMarketData(candles, dividends, shares);
+    }
+
+    /**
+     * @return backtest service with empty portfolio reading @data, no requests to the exchange are made
+     */
+    static BacktestMarketService createRun(BacktestMarketData data, Instant now) {
+        var run = new BacktestMarketService(null, new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS)).createRun(data);
+        run.setFakeNow(now);
+        return run;
+    }
+
+    static PreDividendsStrategyService createStrategy(MarketService marketService, List<String> figis) {
+        var strategy = new PreDividendsStrategyService(Metrics.globalRegistry);
+        strategy.setMarketService(marketService);
+        strategy.setAllowedFigis(String.join(" ", figis));
+        strategy.setMinDividendYield(5);
+        strategy.setSufficientProfit(2);
+        strategy.setMaxPositionPercentage(35);
+        return strategy;
+    }
+
+    static Instant atMidday(LocalDate day) {
+        return day.atTime(12, 0).toInstant(ZoneOffset.UTC);
+    }
+
+    private static Timestamp timestamp(LocalDate day) {
+        return Timestamp.newBuilder().setSeconds(day.atStartOfDay().toEpochSecond(ZoneOffset.UTC)).build();
+    }
+}
@@ -0,0 +1,49 @@
+package org.zaretkim.dividendsrobot.service;
+
+import org.openjdk.jmh.annotations.*;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Valuation of backtest portfolio with given number of positions: repeated request on the same day
+ * and request after the day has changed
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PortfolioBenchmark {
+    @Param({"10", "100", "500"})
+    private int positionsCount;
+    private BacktestMarketService run;
+    private Instant[] days;
+    private int dayIndex;
+
+    @Setup
+    public void setUp() {
+        var figis = BenchmarkData.figis(positionsCount);
+        var data = BenchmarkData.generate(figis, 1);
+        var day = BenchmarkData.FIRST_DAY.plusMonths(6);
+        days = new Instant[]{BenchmarkData.atMidday(day), BenchmarkData.atMidday(day.plusDays(1))};
+        run = BenchmarkData.createRun(data, days[0]);
+        for (int i = 0; i < positionsCount; i++) {
+            run.buyMarket(figis.get(i), 1);
+        }
+    }
+
+    @Benchmark
+    public PortfolioResponse getPortfolio() {
+        return run.getPortfolio();
+    }
+
+    @Benchmark
+    public PortfolioResponse getPortfolioNextDay() {
+        dayIndex ^= 1;
+        run.setFakeNow(days[dayIndex]);
+        return run.getPortfolio();
+    }
+}
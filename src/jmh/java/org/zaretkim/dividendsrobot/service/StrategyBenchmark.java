@@ -0,0 +1,35 @@
+package org.zaretkim.dividendsrobot.service;
+
+import org.openjdk.jmh.annotations.*;
+import org.zaretkim.dividendsrobot.model.DividendIdea;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idea scan of @{@link PreDividendsStrategyService} over given number of figis on generated historical data
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StrategyBenchmark {
+    @Param({"10", "100", "1000"})
+    private int figisCount;
+    private PreDividendsStrategyService strategy;
+
+    @Setup
+    public void setUp() {
+        var figis = BenchmarkData.figis(figisCount);
+        var data = BenchmarkData.generate(figis, 1);
+        var run = BenchmarkData.createRun(data, BenchmarkData.atMidday(BenchmarkData.FIRST_DAY.plusMonths(6)));
+        strategy = BenchmarkData.createStrategy(run, figis);
+    }
+
+    @Benchmark
+    public List<DividendIdea> findDividendsIdeas() {
+        return strategy.findDividendsIdeas();
+    }
+}
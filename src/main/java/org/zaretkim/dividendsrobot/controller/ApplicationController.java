@@ -2,11 +2,15 @@ package org.zaretkim.dividendsrobot.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+import org.zaretkim.dividendsrobot.model.BacktestJob;
+import org.zaretkim.dividendsrobot.model.StatusSnapshot;
+import org.zaretkim.dividendsrobot.model.SweepResult;
 import org.zaretkim.dividendsrobot.service.*;
-import ru.tinkoff.piapi.contract.v1.PortfolioPosition;
 import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
 import ru.tinkoff.piapi.contract.v1.Share;
 import ru.tinkoff.piapi.core.utils.MapperUtils;
@@ -14,17 +18,23 @@ import ru.tinkoff.piapi.core.utils.MapperUtils;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
  * End points:
- * /start - starts robot in real exchange account
- * /startSandbox - start robot in sandbox account
- * /status - shows current portfolio for running robot in real or sandbox account
- * /startBacktest - runs robot on historical data for the last 365 days
+ * /start - starts default robot in real exchange account
+ * /startSandbox - start default robot in sandbox account
+ * /startRobot - starts additional named robot in real or sandbox account with its own figis
+ * /robots - lists running robots
+ * /status - shows current portfolio for running robot in real or sandbox account, /status.json - the same in JSON
+ * /startBacktest - submits backtest of the robot on historical data for the last 365 days or given number of days
+ * /backtestJobs - lists submitted backtests, /backtestJob shows progress and result of one backtest
+ * /cancelBacktestJob - cancels submitted backtest
+ * /startSweep - runs backtests for every combination of given strategy parameters and shows ranked results
  * /config - lists and configures paramaters for the strategy
- * /stop - stops robots started on real or sandbox accounts
+ * /stop - stops all robots or the robot with given name
  */
 @RestController
 @RequiredArgsConstructor
@@ -35,6 +45,9 @@ public class ApplicationController {
     private final SandboxMarketService sandboxMarketService;
     private final RealMarketService realMarketService;
     private final BacktestMarketService backtestMarketService;
+    private final BacktestJobService backtestJobService;
+    private final MarketWarmUpService marketWarmUpService;
+    private final StatusService statusService;
 
     @GetMapping("/startSandbox")
     public String startSandbox() {
@@ -80,71 +93,269 @@ public class ApplicationController {
         return robotRunner.start();
     }
 
+    /**
+     * Starts robot which runs independently of the default robot
+     * @param name unique name of the robot
+     * @param sandbox "true" to trade in sandbox account
+     * @param figis allowed figis separated by spaces, configured allowed figis are used by default
+     * @param accounts accounts separated by commas or spaces, every account is traded by its own strategy,
+     *                 configured account is used by default
+     */
+    @GetMapping("/startRobot")
+    public String startRobot(String name, String sandbox, String figis, String accounts) {
+        if (name == null || name.isBlank()) return "Name of the robot is required";
+        if (RobotRunner.DEFAULT_ROBOT.equals(name)) return "Use /start or /startSandbox to start " + RobotRunner.DEFAULT_ROBOT + " robot";
+        boolean isSandbox = Boolean.parseBoolean(sandbox);
+        var accountIds = accounts == null || accounts.isBlank() ? List.<String>of() : List.of(accounts.trim().split("[,\\s]+"));
+        MarketServiceBase marketService = isSandbox ? sandboxMarketService : realMarketService;
+        String validateTokenErrorMessage;
+        if (accountIds.isEmpty()) {
+            validateTokenErrorMessage = marketService.validateToken();
+            if (validateTokenErrorMessage != null) return validateTokenErrorMessage;
+        } else {
+            // explicit accounts do not need the configured account
+            var accountOperations = (AccountOperations) marketService;
+            validateTokenErrorMessage = accountOperations.validateTradingToken();
+            if (validateTokenErrorMessage != null) return validateTokenErrorMessage;
+            for (String accountId : accountIds) {
+                validateTokenErrorMessage = accountOperations.validateAccount(accountId);
+                if (validateTokenErrorMessage != null) return validateTokenErrorMessage;
+            }
+        }
+        return robotRunner.startRobot(name.trim(), isSandbox, figis, accountIds);
+    }
+
     @GetMapping("/stop")
-    public String stopRunningRobot() {
-        robotRunner.stopRunningRobot();
-        return "Robot is stopped";
+    public String stopRunningRobot(String name) {
+        if (name == null || name.isBlank()) {
+            robotRunner.stopRunningRobot();
+            return "Robot is stopped";
+        }
+        if (!robotRunner.stopRobot(name.trim())) return "Robot " + name + " is not running";
+        return "Robot " + name + " is stopped";
+    }
+
+    @GetMapping("/robots")
+    public String robots() {
+        var robots = robotRunner.getRobots();
+        if (robots.isEmpty()) return "No robots are running";
+        var sb = new StringBuilder();
+        sb.append("<table>");
+        sb.append("<tr><th>Name</th><th>Account</th><th>Allowed figis</th><th>Last step</th><th>Next step</th><th>Failed attempts</th></tr>");
+        for (RobotInstance robot : robots) {
+            var marketService = MarketServiceDecorator.unwrap(robot.getStrategy().getMarketService());
+            String lastStep = robot.getLastStepTime() == null ? "-" :
+                    robot.getLastStepTime() + (Boolean.TRUE.equals(robot.getLastStepResult()) ? "" : " failed");
+            sb.append("<tr><td>").append(robot.getName()).
+                    append("</td><td>").append(marketService instanceof SandboxMarketService ? "sandbox" : "real").
+                    append(robot.getAccountIds().isEmpty() ? "" : ": " + String.join(", ", robot.getAccountIds())).
+                    append("</td><td>").append(robot.getStrategy().getAllowedFigis()).
+                    append("</td><td>").append(lastStep).
+                    append("</td><td>").append(robot.getNextStepTime() == null ? "-" : robot.getNextStepTime()).
+                    append("</td><td>").append(robot.getFailedAttempts()).append("</td></tr>");
+        }
+        sb.append("</table>");
+        return sb.toString();
     }
 
+    /**
+     * Submits backtest and returns immediately, progress is shown by /backtestJob
+     * @param days number of days to run, 365 by default
+     */
     @GetMapping("/startBacktest")
-    public String startBacktest() {
+    public String startBacktest(Integer days) {
+        String validateTokenErrorMessage = backtestMarketService.validateToken();
+        if (validateTokenErrorMessage != null) {
+            return validateTokenErrorMessage;
+        }
+        if (days == null) days = RobotRunner.BACKTEST_DAYS;
+        if (days <= 0) return "Value for days is not valid";
+
+        BacktestJob job;
+        try {
+            job = backtestJobService.submit(days);
+        } catch (RejectedExecutionException e) {
+            return "Too many backtests are submitted. Please, try again later";
+        }
+        return "Backtest " + job.getId() + " is submitted for the last " + days + " days<br>" +
+                "To see progress <a href=\"/backtestJob?id=" + job.getId() + "\">click here</a>";
+    }
+
+    @GetMapping("/backtestJob")
+    public String backtestJob(long id) {
+        var job = backtestJobService.getJob(id);
+        if (job == null) return "Backtest " + id + " is not found";
+        var sb = new StringBuilder();
+        sb.append("<table>");
+        sb.append("<tr><td>Backtest ").append(job.getId()).append(" is ").append(job.getStatus().toString().toLowerCase()).append("</td></tr>");
+        sb.append("<tr><td>").append(progress(job)).append("</td></tr>");
+        if (job.getInitialFunds() != null)
+            sb.append("<tr><td>Initial funds: ").append(job.getInitialFunds()).append("</td></tr>");
+        if (job.getCurrentFunds() != null)
+            sb.append("<tr><td>").append(job.getStatus() == BacktestJob.Status.DONE ? "Final result: " : "Current result: ").
+                    append(job.getCurrentFunds()).append("</td></tr>");
+        if (job.getYield() != null)
+            sb.append("<tr><td>Yield: ").append(job.getYield()).append("%</td></tr>");
+        if (job.getError() != null)
+            sb.append("<tr><td>Failed with error: ").append(job.getError()).append("</td></tr>");
+        sb.append("</table>");
+        if (job.getSweepResults() != null)
+            appendSweepResults(sb, job.getSweepResults());
+        if (!job.isFinished())
+            sb.append("To cancel backtest <a href=\"/cancelBacktestJob?id=").append(job.getId()).append("\">click here</a>");
+        return sb.toString();
+    }
+
+    private static String progress(BacktestJob job) {
+        if (job.isSweep())
+            return "Backtest " + job.getSweepDone() + " of " + job.getSweepSize() + " for " + job.getDays() + " days";
+        return "Day " + job.getDaysDone() + " of " + job.getDays();
+    }
+
+    @GetMapping("/cancelBacktestJob")
+    public String cancelBacktestJob(long id) {
+        if (!backtestJobService.cancel(id)) return "Backtest " + id + " is not running";
+        return "Backtest " + id + " is cancelled";
+    }
+
+    @GetMapping("/backtestJobs")
+    public String backtestJobs() {
+        var sb = new StringBuilder();
+        sb.append("<table>");
+        sb.append("<tr><th>Id</th><th>Status</th><th>Progress</th><th>Result</th><th>Yield</th></tr>");
+        for (BacktestJob job : backtestJobService.getJobs()) {
+            sb.append("<tr><td><a href=\"/backtestJob?id=").append(job.getId()).append("\">").append(job.getId()).append("</a>").
+                    append("</td><td>").append(job.getStatus().toString().toLowerCase()).
+                    append("</td><td>").append(progress(job)).
+                    append("</td><td>").append(job.getCurrentFunds() == null ? "-" : job.getCurrentFunds()).
+                    append("</td><td>").append(job.getYield() == null ? "-" : job.getYield() + "%").append("</td></tr>");
+        }
+        sb.append("</table>");
+        return sb.toString();
+    }
+
+    /**
+     * Submits backtests for all combinations of parameters and returns immediately, results are shown by /backtestJob.
+     * Every parameter is a list of values separated by commas or spaces, current configured value is used for missing
+     * parameter. Backtests run for the last @days days, 365 by default
+     */
+    @GetMapping("/startSweep")
+    public String startSweep(Integer days, String minDividendYield, String sufficientProfit, String maxPositionPercentage) {
         String validateTokenErrorMessage = backtestMarketService.validateToken();
         if (validateTokenErrorMessage != null) {
             return validateTokenErrorMessage;
         }
+        if (days == null) days = RobotRunner.BACKTEST_DAYS;
+        if (days <= 0) return "Value for days is not valid";
+
+        var errors = new ArrayList<String>();
+        var minDividendYields = parseValues(minDividendYield, preDividendsStrategyService.getMinDividendYield(), "minimal dividend yield", d -> d >= 0, errors::add);
+        var sufficientProfits = parseValues(sufficientProfit, preDividendsStrategyService.getSufficientProfit(), "sufficient profit", d -> d >= 0, errors::add);
+        var maxPositionPercentages = parseValues(maxPositionPercentage, preDividendsStrategyService.getMaxPositionPercentage(), "max position percentage", d -> d >= 0 && d <= 100, errors::add);
+        if (errors.size() > 0) {
+            return String.join("<br>", errors);
+        }
+
+        BacktestJob job;
+        try {
+            job = backtestJobService.submitSweep(days, minDividendYields, sufficientProfits, maxPositionPercentages);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        } catch (RejectedExecutionException e) {
+            return "Too many backtests are submitted. Please, try again later";
+        }
+        return "Sweep " + job.getId() + " of " + job.getSweepSize() + " backtests is submitted for the last " + days + " days<br>" +
+                "To see progress <a href=\"/backtestJob?id=" + job.getId() + "\">click here</a>";
+    }
 
-        return robotRunner.startBacktest();
+    private static void appendSweepResults(StringBuilder sb, List<SweepResult> results) {
+        sb.append("<table>");
+        sb.append("<tr><th>Rank</th><th>min-dividend-yield</th><th>sufficient-profit</th><th>max-position-percentage</th><th>Final result</th><th>Yield</th></tr>");
+        int rank = 1;
+        for (SweepResult result : results) {
+            sb.append("<tr><td>").append(rank++).
+                    append("</td><td>").append(result.getMinDividendYield()).
+                    append("%</td><td>").append(result.getSufficientProfit()).
+                    append("%</td><td>").append(result.getMaxPositionPercentage()).append("%</td>");
+            if (result.getError() != null)
+                sb.append("<td colspan=\"2\">Failed with error: ").append(result.getError()).append("</td></tr>");
+            else
+                sb.append("<td>").append(result.getFinalFunds()).append("</td><td>").append(result.getYield()).append("%</td></tr>");
+        }
+        sb.append("</table>");
     }
 
+    private List<Double> parseValues(String values, double defaultValue, String valueName, Function<Double,Boolean> predicate, Consumer<String> reportError) {
+        var result = new ArrayList<Double>();
+        if (values == null || values.isBlank()) {
+            result.add(defaultValue);
+            return result;
+        }
+        for (var value : values.trim().split("[,\\s]+")) {
+            checkAndSetValue(value, valueName, predicate, result::add, reportError);
+        }
+        return result;
+    }
+
+    /**
+     * Shows the last published status of the default robot, the exchange is not called.
+     * Supports conditional requests with ETag
+     */
     @GetMapping(value = "/status")
-    public String status() {
-        log.info("/status");
-        var marketService = preDividendsStrategyService.getMarketService();
-        if (marketService == null) {
+    public String status(WebRequest request) {
+        var snapshot = statusService.getSnapshot();
+        if (request.checkNotModified(etag(snapshot))) return null;
+        if (!snapshot.isRunning()) {
             return "Robot is not started.";
         }
         var sb = new StringBuilder();
         sb.append("<table>");
         sb.append("<tr><td>Robot is running");
-        if (marketService instanceof SandboxMarketService) sb.append(" in sandbox");
-        if (marketService instanceof BacktestMarketService) sb.append(" in backtest mode");
+        if ("sandbox".equals(snapshot.getMode())) sb.append(" in sandbox");
+        if ("backtest".equals(snapshot.getMode())) sb.append(" in backtest mode");
         sb.append("</td></tr>");
-
-        var portfolio = marketService.getPortfolio();
-        sb.append("<tr><td> Current result: ").append(preDividendsStrategyService.totalAmountOfFunds(portfolio)).append("</td></tr>");
-
-        var moneyValue = MapperUtils.moneyValueToBigDecimal(portfolio.getTotalAmountCurrencies());
-        sb.append("<tr><td> Free money: ").append(moneyValue).append("</td></tr>");
-
-        List<PortfolioPosition> positionsList = portfolio.getPositionsList();
-        sb.append("<tr><td> Number of open positions: ").append(positionsList.size()).append("</td></tr>");
-        if (portfolio.hasExpectedYield()) {
-            var expectedYield = MapperUtils.quotationToBigDecimal(portfolio.getExpectedYield());
-            sb.append("<tr><td> Expected yield: ").append(expectedYield).append("</td></tr>");
+        if (snapshot.getTotalFunds() == null) {
+            sb.append("<tr><td> Portfolio is not loaded yet</td></tr>");
+            sb.append("<tr><td> Updated at: ").append(snapshot.getUpdatedAt()).append("</td></tr>");
+            sb.append("</table>");
+            return sb.toString();
+        }
+        sb.append("<tr><td> Current result: ").append(snapshot.getTotalFunds()).append("</td></tr>");
+        sb.append("<tr><td> Free money: ").append(snapshot.getFreeMoney()).append("</td></tr>");
+        sb.append("<tr><td> Number of open positions: ").append(snapshot.getNumberOfPositions()).append("</td></tr>");
+        if (snapshot.getExpectedYield() != null) {
+            sb.append("<tr><td> Expected yield: ").append(snapshot.getExpectedYield()).append("</td></tr>");
         }
+        sb.append("<tr><td> Updated at: ").append(snapshot.getUpdatedAt()).append("</td></tr>");
         sb.append("</table>");
-        if (positionsList.size() > 0) {
+        if (snapshot.getPositions().size() > 0) {
             sb.append("<table>");
-            sb.append("<tr><th>Name</th><th>Count</th><th>Expected yield</th></tr>");
-            for (PortfolioPosition portfolioPosition : positionsList) {
-                String instrumentType = portfolioPosition.getInstrumentType();
-                if (!"share".equals(instrumentType)) continue;
-                var figi = portfolioPosition.getFigi();
-                Share share = marketService.getShareByFigiSync(figi);
-                var numberOfShares = portfolioPosition.getQuantityLots().getUnits() * share.getLot();
-                String sYield = "unknown";
-                if (portfolioPosition.hasAveragePositionPrice())
-                {
-                    sYield = preDividendsStrategyService.calculateExpectedYield(portfolioPosition).toString();
-                }
-                sb.append("<tr><td>").append(share.getName()).append("</td><td>").append(numberOfShares).append("</td><td>").append(sYield).append("%</td></tr>");
+            sb.append("<tr><th>Name</th><th>Count</th><th>Last price</th><th>Expected yield</th></tr>");
+            for (var position : snapshot.getPositions()) {
+                String sYield = position.getExpectedYield() == null ? "unknown" : position.getExpectedYield().toString();
+                String sLastPrice = position.getLastPrice() == null ? "-" : position.getLastPrice().toString();
+                sb.append("<tr><td>").append(position.getName()).append("</td><td>").append(position.getCount()).
+                        append("</td><td>").append(sLastPrice).append("</td><td>").append(sYield).append("%</td></tr>");
             }
-
             sb.append("</table>");
         }
         return sb.toString();
     }
 
+    /**
+     * Same as /status in JSON
+     */
+    @GetMapping(value = "/status.json", produces = MediaType.APPLICATION_JSON_VALUE)
+    public StatusSnapshot statusJson(WebRequest request) {
+        var snapshot = statusService.getSnapshot();
+        if (request.checkNotModified(etag(snapshot))) return null;
+        return snapshot;
+    }
+
+    private static String etag(StatusSnapshot snapshot) {
+        return "\"" + snapshot.getVersion() + "\"";
+    }
+
     @GetMapping(value = "/config")
     public String config() {
         return generateConfigPage(null);
@@ -217,9 +428,12 @@ public class ApplicationController {
         messageForInvalidFigis.append("Skipped some figis because could not find them in ").append(RealMarketService.MOEX_EXCHANGE).append(":");
         var validFigis = new StringBuilder();
         var hasInvalidFigis = false;
-        for (var figi: figis.split("\\s+")) {
+        var figiList = List.of(figis.trim().split("\\s+"));
+        var shares = marketWarmUpService.loadBacktestShares(figiList);
+        for (int i = 0; i < figiList.size(); i++) {
+            var figi = figiList.get(i);
             try {
-                Share share = backtestMarketService.getShareByFigiSync(figi);
+                Share share = shares.get(i).join();
                 if (share.getExchange().startsWith(RealMarketService.MOEX_EXCHANGE))
                     validFigis.append(figi).append(' ');
                 else
@@ -0,0 +1,36 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Immutable set of historical data loaded for a backtest. It is shared between backtests running in parallel,
+ * every backtest reads from it and keeps its own portfolio
+ */
+public final class BacktestMarketData {
+    private final Map<String, CandleSeries> candles;
+    private final Map<String, List<Dividend>> dividends;
+    private final Map<String, Share> shares;
+
+    public BacktestMarketData(Map<String, CandleSeries> candles, Map<String, List<Dividend>> dividends, Map<String, Share> shares) {
+        this.candles = Map.copyOf(candles);
+        this.dividends = dividends.entrySet().stream().collect(Collectors.toUnmodifiableMap(Map.Entry::getKey, e -> List.copyOf(e.getValue())));
+        this.shares = Map.copyOf(shares);
+    }
+
+    public Map<String, CandleSeries> getCandles() {
+        return candles;
+    }
+
+    public Map<String, List<Dividend>> getDividends() {
+        return dividends;
+    }
+
+    public Map<String, Share> getShares() {
+        return shares;
+    }
+}
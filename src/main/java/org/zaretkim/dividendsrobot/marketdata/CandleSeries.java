@@ -0,0 +1,190 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable columnar storage of day candles for one figi. Candle times are kept in epoch seconds and
+ * prices in fixed point (units * 10^9 + nanos) in parallel arrays sorted by time, so lookups by time
+ * are binary searches without any allocation. Instances are safe to share between threads
+ */
+public final class CandleSeries {
+    private static final long SECONDS_IN_DAY = 24 * 60 * 60;
+
+    private final String figi;
+    private final long[] times;
+    private final long[] open;
+    private final long[] high;
+    private final long[] low;
+    private final long[] close;
+    private final AtomicReferenceArray<LastPrice> lastPrices;
+
+    public CandleSeries(String figi, long[] times, long[] open, long[] high, long[] low, long[] close) {
+        if (times.length != open.length || times.length != high.length || times.length != low.length || times.length != close.length)
+            throw new IllegalArgumentException("All candle columns must have the same length");
+        this.figi = figi;
+        this.times = times;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.lastPrices = new AtomicReferenceArray<>(times.length);
+    }
+
+    /**
+     * Builds series from candles returned by the API. Candles are expected to be sorted by time
+     * @param figi figi of the candles
+     * @param candles candles sorted by time
+     * @return columnar series for the candles
+     */
+    public static CandleSeries fromCandles(String figi, List<HistoricCandle> candles) {
+        int size = candles.size();
+        long[] times = new long[size];
+        long[] open = new long[size];
+        long[] high = new long[size];
+        long[] low = new long[size];
+        long[] close = new long[size];
+        for (int i = 0; i < size; i++) {
+            HistoricCandle candle = candles.get(i);
+            times[i] = candle.getTime().getSeconds();
+            open[i] = FixedPoint.of(candle.getOpen());
+            high[i] = FixedPoint.of(candle.getHigh());
+            low[i] = FixedPoint.of(candle.getLow());
+            close[i] = FixedPoint.of(candle.getClose());
+        }
+        return new CandleSeries(figi, times, open, high, low, close);
+    }
+
+    /**
+     * Merges two series into one sorted by time. Candles of @added replace candles of @base with the same time
+     * @param base existing series
+     * @param added series to add
+     * @return merged series
+     */
+    public static CandleSeries merge(CandleSeries base, CandleSeries added) {
+        int capacity = base.size() + added.size();
+        long[] times = new long[capacity];
+        long[] open = new long[capacity];
+        long[] high = new long[capacity];
+        long[] low = new long[capacity];
+        long[] close = new long[capacity];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < base.size() || j < added.size()) {
+            CandleSeries source;
+            int index;
+            if (j >= added.size() || (i < base.size() && base.times[i] < added.times[j])) {
+                source = base;
+                index = i++;
+            } else {
+                if (i < base.size() && base.times[i] == added.times[j]) i++;
+                source = added;
+                index = j++;
+            }
+            times[size] = source.times[index];
+            open[size] = source.open[index];
+            high[size] = source.high[index];
+            low[size] = source.low[index];
+            close[size] = source.close[index];
+            size++;
+        }
+        return new CandleSeries(base.figi, Arrays.copyOf(times, size), Arrays.copyOf(open, size),
+                Arrays.copyOf(high, size), Arrays.copyOf(low, size), Arrays.copyOf(close, size));
+    }
+
+    /**
+     * Get part of the series with candle times in [fromEpochSecond, toEpochSecond)
+     * @param fromEpochSecond start of the range
+     * @param toEpochSecond end of the range
+     * @return series for the range
+     */
+    public CandleSeries slice(long fromEpochSecond, long toEpochSecond) {
+        int from = upperBound(fromEpochSecond - 1);
+        int to = Math.max(from, upperBound(toEpochSecond - 1));
+        if (from == 0 && to == times.length) return this;
+        return new CandleSeries(figi, Arrays.copyOfRange(times, from, to), Arrays.copyOfRange(open, from, to),
+                Arrays.copyOfRange(high, from, to), Arrays.copyOfRange(low, from, to), Arrays.copyOfRange(close, from, to));
+    }
+
+    public String getFigi() {
+        return figi;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long timeAt(int index) {
+        return times[index];
+    }
+
+    public long openAt(int index) {
+        return open[index];
+    }
+
+    public long highAt(int index) {
+        return high[index];
+    }
+
+    public long lowAt(int index) {
+        return low[index];
+    }
+
+    public long closeAt(int index) {
+        return close[index];
+    }
+
+    /**
+     * Medium price of the candle, (high + low) / 2 rounded half down
+     * @param index index of the candle
+     * @return medium price in fixed point
+     */
+    public long mediumAt(int index) {
+        return (high[index] + low[index]) / 2;
+    }
+
+    /**
+     * Finds the first candle which is not older than one day before given time
+     * @param epochSecond time in epoch seconds
+     * @return index of the candle or -1 if there is no such candle
+     */
+    public int indexAt(long epochSecond) {
+        int index = upperBound(epochSecond - SECONDS_IN_DAY);
+        return index < times.length ? index : -1;
+    }
+
+    /**
+     * Last price for given time built from medium price of the candle found by @{@link #indexAt}.
+     * Built prices are cached per candle, so repeated lookups do not allocate. The cache is an atomic array,
+     * so prices built by one backtest are safely published to other backtests sharing the series
+     * @param epochSecond time in epoch seconds
+     * @return last price or null if there is no candle for given time
+     */
+    public LastPrice lastPriceAt(long epochSecond) {
+        int index = indexAt(epochSecond);
+        if (index < 0) return null;
+        LastPrice lastPrice = lastPrices.get(index);
+        if (lastPrice == null) {
+            lastPrice = LastPrice.newBuilder().setFigi(figi).setPrice(FixedPoint.toQuotation(mediumAt(index))).build();
+            // equal prices may be built concurrently, the first stored one is returned to all readers
+            if (!lastPrices.compareAndSet(index, null, lastPrice))
+                lastPrice = lastPrices.get(index);
+        }
+        return lastPrice;
+    }
+
+    /**
+     * @return index of the first candle with time strictly greater than given one
+     */
+    private int upperBound(long epochSecond) {
+        int index = Arrays.binarySearch(times, epochSecond);
+        if (index < 0) return -index - 1;
+        while (index < times.length && times[index] == epochSecond) index++;
+        return index;
+    }
+}
@@ -0,0 +1,65 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.Dividend;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of upcoming dividends by figi. Entries expire after @ttl, so declared dividends appear with a delay
+ * of at most @ttl. Zero @ttl disables the cache
+ */
+@Component
+public class DividendCache {
+    private final long ttlMillis;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        private final List<Dividend> dividends;
+        private final long expiresAt;
+
+        private Entry(List<Dividend> dividends, long expiresAt) {
+            this.dividends = dividends;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @Autowired
+    public DividendCache(@Value("${app.config.dividend-cache.ttl}") Duration ttl) {
+        this(ttl, Clock.systemUTC());
+    }
+
+    public DividendCache(Duration ttl, Clock clock) {
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * @param figi figi of the share
+     * @return cached dividends or null if they are absent or expired
+     */
+    public List<Dividend> get(String figi) {
+        Entry entry = entries.get(figi);
+        if (entry == null) return null;
+        if (entry.expiresAt <= clock.millis()) {
+            entries.remove(figi, entry);
+            return null;
+        }
+        return entry.dividends;
+    }
+
+    public void put(String figi, List<Dividend> dividends) {
+        if (ttlMillis <= 0) return;
+        entries.put(figi, new Entry(List.copyOf(dividends), clock.millis() + ttlMillis));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,115 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import ru.tinkoff.piapi.contract.v1.MoneyValue;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Money and price arithmetic on primitive longs holding the value multiplied by 1e9, the same precision as
+ * units and nanos of @{@link Quotation} and @{@link MoneyValue}. Results are exactly the same as
+ * @{@link BigDecimal} with scale 9, but operations do not allocate. Use @toBigDecimal only at API boundaries
+ */
+public final class FixedPoint {
+    public static final int SCALE = 9;
+    public static final long ONE = 1_000_000_000L;
+    // divisor limit which allows to calculate 3 decimal digits of the quotient at once without overflow
+    private static final long MAX_FAST_DIVISOR = Long.MAX_VALUE / 1000;
+
+    private FixedPoint() {
+    }
+
+    public static long ofUnits(long units) {
+        return Math.multiplyExact(units, ONE);
+    }
+
+    public static long of(Quotation quotation) {
+        return quotation.getUnits() * ONE + quotation.getNano();
+    }
+
+    public static long of(MoneyValue moneyValue) {
+        return moneyValue.getUnits() * ONE + moneyValue.getNano();
+    }
+
+    /**
+     * @param value decimal value, digits after 9th decimal place are truncated
+     * @return fixed point value
+     */
+    public static long of(BigDecimal value) {
+        return value.setScale(SCALE, RoundingMode.DOWN).unscaledValue().longValueExact();
+    }
+
+    public static Quotation toQuotation(long value) {
+        return Quotation.newBuilder().setUnits(value / ONE).setNano((int) (value % ONE)).build();
+    }
+
+    public static MoneyValue toMoneyValue(long value, String currency) {
+        return MoneyValue.newBuilder().setCurrency(currency).setUnits(value / ONE).setNano((int) (value % ONE)).build();
+    }
+
+    public static BigDecimal toBigDecimal(long value) {
+        if (value == 0) return BigDecimal.ZERO;
+        return BigDecimal.valueOf(value, SCALE);
+    }
+
+    /**
+     * @return @value multiplied by integer @count, for example price of @count shares
+     */
+    public static long times(long value, long count) {
+        return Math.multiplyExact(value, count);
+    }
+
+    /**
+     * @return product of two fixed point values truncated to 9 decimal places
+     */
+    public static long multiply(long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        if ((high == 0 && low >= 0) || (high == -1 && low < 0))
+            return low / ONE;
+        return of(toBigDecimal(a).multiply(toBigDecimal(b)));
+    }
+
+    /**
+     * Same as @{@link BigDecimal#divide(BigDecimal, RoundingMode)} for values with scale 9
+     * @param dividend fixed point dividend
+     * @param divisor fixed point divisor
+     * @param roundingMode rounding of the 9th decimal place
+     * @return fixed point quotient
+     */
+    public static long divide(long dividend, long divisor, RoundingMode roundingMode) {
+        if (divisor == 0) throw new ArithmeticException("Division by zero");
+        if (divisor == Long.MIN_VALUE || dividend == Long.MIN_VALUE || Math.abs(divisor) > MAX_FAST_DIVISOR)
+            return of(toBigDecimal(dividend).divide(toBigDecimal(divisor), SCALE, roundingMode));
+
+        boolean negative = (dividend < 0) != (divisor < 0);
+        long a = Math.abs(dividend);
+        long b = Math.abs(divisor);
+        long quotient = Math.multiplyExact(a / b, ONE);
+        long remainder = a % b;
+        // long division by 3 decimal digits, remainder * 1000 does not overflow since b <= MAX_FAST_DIVISOR
+        for (long digitsScale = ONE / 1000; digitsScale > 0; digitsScale /= 1000) {
+            remainder *= 1000;
+            quotient += remainder / b * digitsScale;
+            remainder %= b;
+        }
+        if (remainder != 0 && roundUp(roundingMode, negative, quotient, remainder, b))
+            quotient++;
+        return negative ? -quotient : quotient;
+    }
+
+    private static boolean roundUp(RoundingMode roundingMode, boolean negative, long quotient, long remainder, long divisor) {
+        int half = Long.compare(remainder, divisor - remainder);
+        switch (roundingMode) {
+            case UP: return true;
+            case DOWN: return false;
+            case CEILING: return !negative;
+            case FLOOR: return negative;
+            case HALF_UP: return half >= 0;
+            case HALF_DOWN: return half > 0;
+            case HALF_EVEN: return half > 0 || (half == 0 && (quotient & 1) == 1);
+            default: throw new ArithmeticException("Rounding necessary");
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Compact binary log of market service responses. Every entry is a call name, a key built from call arguments
+ * and a list of protobuf messages returned by the call.
+ * <p>
+ * File layout (big endian): int magic, int version, then entries of UTF call, UTF key, int count
+ * and count times int length followed by serialized protobuf message
+ */
+public final class MarketCallLog {
+    private static final int MAGIC = 0x44524C31; // "DRL1"
+    private static final int VERSION = 1;
+    private static final DateTimeFormatter SESSION_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+
+    private MarketCallLog() {
+    }
+
+    /**
+     * Name of the log for the session started at @startedAt: UTC time is inserted before the extension of @file,
+     * so session.log becomes session-20220405-101500-000.log
+     * @param file configured log file
+     * @param startedAt start of the session
+     * @return log file of the session
+     */
+    public static Path sessionFile(Path file, Instant startedAt) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String time = SESSION_TIME.format(startedAt);
+        String sessionName = dot > 0 ? name.substring(0, dot) + '-' + time + name.substring(dot) : name + '-' + time;
+        return file.resolveSibling(sessionName);
+    }
+
+    /**
+     * Creates new log, existing file is never overwritten
+     * @param file log file
+     * @return writer appending entries to the log
+     * @throws UncheckedIOException if the file already exists or could not be created
+     */
+    public static Writer create(Path file) {
+        try {
+            if (file.getParent() != null) Files.createDirectories(file.getParent());
+            var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.flush();
+            return new Writer(output);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create call log " + file, e);
+        }
+    }
+
+    /**
+     * Reads the whole log into memory
+     * @param file log file
+     * @return responses of the log
+     */
+    public static Replay read(Path file) {
+        var entries = new HashMap<String, ArrayDeque<List<byte[]>>>();
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION)
+                throw new IllegalArgumentException("Unsupported call log " + file);
+            while (true) {
+                String call;
+                try {
+                    call = input.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                String key = input.readUTF();
+                int count = input.readInt();
+                var messages = new ArrayList<byte[]>(count);
+                for (int i = 0; i < count; i++) {
+                    messages.add(input.readNBytes(input.readInt()));
+                }
+                entries.computeIfAbsent(entryKey(call, key), k -> new ArrayDeque<>()).add(messages);
+            }
+        } catch (EOFException e) {
+            // last entry was not completely written, for example the recording process was killed
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read call log " + file, e);
+        }
+        return new Replay(entries);
+    }
+
+    private static String entryKey(String call, String key) {
+        return call + '\n' + key;
+    }
+
+    /**
+     * Appends entries to the log. Every entry is flushed, so the log is usable even if the process is stopped
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream output;
+
+        private Writer(DataOutputStream output) {
+            this.output = output;
+        }
+
+        public synchronized void write(String call, String key, List<? extends MessageLite> messages) {
+            try {
+                output.writeUTF(call);
+                output.writeUTF(key);
+                output.writeInt(messages.size());
+                for (MessageLite message : messages) {
+                    byte[] bytes = message.toByteArray();
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                }
+                output.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write call log", e);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not close call log", e);
+            }
+        }
+    }
+
+    /**
+     * Responses of the log. Responses for the same call and key are returned in the recorded order,
+     * the last one is repeated when all of them are returned
+     */
+    public static final class Replay {
+        private final HashMap<String, ArrayDeque<List<byte[]>>> entries;
+
+        private Replay(HashMap<String, ArrayDeque<List<byte[]>>> entries) {
+            this.entries = entries;
+        }
+
+        /**
+         * @param call call name
+         * @param key key built from call arguments
+         * @param parser parser of the response messages
+         * @return next recorded response
+         * @throws IllegalStateException if the call was not recorded
+         */
+        public synchronized <T> List<T> next(String call, String key, Parser<T> parser) {
+            var responses = entries.get(entryKey(call, key));
+            if (responses == null)
+                throw new IllegalStateException("No recorded response for " + call + "(" + key + ")");
+            var messages = responses.size() > 1 ? responses.poll() : responses.peek();
+            var result = new ArrayList<T>(messages.size());
+            try {
+                for (byte[] bytes : messages) {
+                    result.add(parser.parseFrom(bytes));
+                }
+            } catch (InvalidProtocolBufferException e) {
+                throw new IllegalStateException("Corrupted response for " + call + "(" + key + ")", e);
+            }
+            return result;
+        }
+
+        public synchronized boolean contains(String call, String key) {
+            return entries.containsKey(entryKey(call, key));
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Local on-disk archive of historical market data used by backtests. Every figi has its own files for day candles,
+ * dividends and share. Files are read whole into heap buffers and remember the time range they cover,
+ * so only missing ranges are requested from the loader and the result is merged back into the archive.
+ * Missing candle ranges are requested in chunks not wider than the exchange allows for one request.
+ * Files of different figis are locked separately, so history of many figis can be loaded in parallel.
+ * <p>
+ * File layout (big endian): int magic, int version, long coveredFrom, long coveredTo (epoch seconds), int count and payload.
+ * Candles payload is columnar: count times, then count open, high, low and close prices in fixed point.
+ * Dividends and share payload is a sequence of int length followed by serialized protobuf message.
+ * <p>
+ * Files are not memory mapped: a live mapping locks the file on Windows until it is garbage collected
+ * and the archive replaces files when they are extended.
+ * <p>
+ * Offline archive never calls loaders and serves only stored data, so backtests run without access to the exchange
+ */
+@Component
+@Slf4j
+public class MarketDataArchive {
+    private static final int MAGIC = 0x44524131; // "DRA1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    /**
+     * Tail of the requested range shorter than this is considered covered, so the archive is not
+     * refreshed on every run just because "now" has moved forward by a few minutes
+     */
+    private static final long MIN_MISSING_RANGE_SECONDS = 24 * 60 * 60;
+    /**
+     * Maximal range of one day candles request accepted by the exchange
+     */
+    static final long MAX_CANDLES_REQUEST_SECONDS = 365 * 24 * 60 * 60L;
+    private static final String CANDLES_DIR = "candles";
+    private static final String DIVIDENDS_DIR = "dividends";
+    private static final String SHARES_DIR = "shares";
+    private static final Comparator<Dividend> DIVIDEND_ORDER = Comparator.
+            comparingLong((Dividend dividend) -> dividend.getLastBuyDate().getSeconds()).
+            thenComparingLong(dividend -> dividend.getRecordDate().getSeconds());
+
+    private final Path root;
+    private final boolean offline;
+    private final ConcurrentHashMap<Path, Object> fileLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Loads data for the range [from, to) from the exchange
+     */
+    @FunctionalInterface
+    public interface RangeLoader<T> {
+        List<T> load(Instant from, Instant to);
+    }
+
+    @Autowired
+    public MarketDataArchive(@Value("${app.config.archive-dir}") Path root, @Value("${app.config.archive-offline}") boolean offline) {
+        this.root = root;
+        this.offline = offline;
+    }
+
+    public MarketDataArchive(Path root) {
+        this(root, false);
+    }
+
+    public boolean isOffline() {
+        return offline;
+    }
+
+    /**
+     * Get day candles for the range [from, to), loading only ranges missing in the archive
+     * @param figi figi of the candles
+     * @param from start of the range
+     * @param to end of the range
+     * @param loader loads candles missing in the archive
+     * @return candles in the range
+     */
+    public CandleSeries getCandles(String figi, Instant from, Instant to, RangeLoader<HistoricCandle> loader) {
+        Path file = root.resolve(CANDLES_DIR).resolve(figi + ".bin");
+        synchronized (lockFor(file)) {
+            var stored = readCandles(figi, file);
+            CandleSeries series = stored == null ? CandleSeries.fromCandles(figi, List.of()) : stored.series;
+            long coveredFrom = stored == null ? 0 : stored.coveredFrom;
+            long coveredTo = stored == null ? 0 : stored.coveredTo;
+
+            var missingRanges = missingRanges(stored == null, coveredFrom, coveredTo, from.getEpochSecond(), to.getEpochSecond());
+            if (offline) {
+                if (!missingRanges.isEmpty()) log.info("Offline archive does not cover candles for {} from {} to {}", figi, from, to);
+            } else if (!missingRanges.isEmpty()) {
+                for (long[] range : missingRanges) {
+                    for (long chunkFrom = range[0]; chunkFrom < range[1]; chunkFrom += MAX_CANDLES_REQUEST_SECONDS) {
+                        long chunkTo = Math.min(range[1], chunkFrom + MAX_CANDLES_REQUEST_SECONDS);
+                        log.info("Load candles for {} from {} to {}", figi, Instant.ofEpochSecond(chunkFrom), Instant.ofEpochSecond(chunkTo));
+                        var loaded = CandleSeries.fromCandles(figi, loader.load(Instant.ofEpochSecond(chunkFrom), Instant.ofEpochSecond(chunkTo)));
+                        series = CandleSeries.merge(series, loaded);
+                    }
+                    coveredFrom = stored == null ? range[0] : Math.min(coveredFrom, range[0]);
+                    coveredTo = stored == null ? range[1] : Math.max(coveredTo, range[1]);
+                }
+                writeCandles(file, series, coveredFrom, coveredTo);
+            }
+            return series.slice(from.getEpochSecond(), to.getEpochSecond());
+        }
+    }
+
+    /**
+     * Get dividends for the range [from, to), loading only ranges missing in the archive.
+     * Result may contain dividends outside the range if they were loaded for previous requests.
+     * Dividends are sorted by last buy date and record date
+     * @param figi figi of the share
+     * @param from start of the range
+     * @param to end of the range
+     * @param loader loads dividends missing in the archive
+     * @return dividends for the range
+     */
+    public List<Dividend> getDividends(String figi, Instant from, Instant to, RangeLoader<Dividend> loader) {
+        Path file = root.resolve(DIVIDENDS_DIR).resolve(figi + ".bin");
+        synchronized (lockFor(file)) {
+            var stored = readMessages(file, Dividend::parseFrom);
+            List<Dividend> dividends = stored == null ? List.of() : stored.messages;
+            long coveredFrom = stored == null ? 0 : stored.coveredFrom;
+            long coveredTo = stored == null ? 0 : stored.coveredTo;
+
+            var missingRanges = missingRanges(stored == null, coveredFrom, coveredTo, from.getEpochSecond(), to.getEpochSecond());
+            if (offline) {
+                if (!missingRanges.isEmpty()) log.info("Offline archive does not cover dividends for {} from {} to {}", figi, from, to);
+            } else if (!missingRanges.isEmpty()) {
+                var merged = new LinkedHashSet<>(dividends);
+                for (long[] range : missingRanges) {
+                    log.info("Load dividends for {} from {} to {}", figi, Instant.ofEpochSecond(range[0]), Instant.ofEpochSecond(range[1]));
+                    merged.addAll(loader.load(Instant.ofEpochSecond(range[0]), Instant.ofEpochSecond(range[1])));
+                    coveredFrom = stored == null ? range[0] : Math.min(coveredFrom, range[0]);
+                    coveredTo = stored == null ? range[1] : Math.max(coveredTo, range[1]);
+                }
+                dividends = new ArrayList<>(merged);
+                // ranges before the stored one are loaded after it, the strategy expects the nearest dividend first
+                dividends.sort(DIVIDEND_ORDER);
+                writeMessages(file, dividends, coveredFrom, coveredTo);
+            }
+            return dividends;
+        }
+    }
+
+    /**
+     * Get share from the archive or load and store it
+     * @param figi figi of the share
+     * @param loader loads share missing in the archive
+     * @return share for given figi
+     */
+    public Share getShare(String figi, Function<String, Share> loader) {
+        Path file = root.resolve(SHARES_DIR).resolve(figi + ".bin");
+        synchronized (lockFor(file)) {
+            var stored = readMessages(file, Share::parseFrom);
+            if (stored != null && stored.messages.size() == 1)
+                return stored.messages.get(0);
+            if (offline)
+                throw new IllegalStateException("Share " + figi + " is absent in offline archive");
+            Share share = loader.apply(figi);
+            writeMessages(file, List.of(share), 0, 0);
+            return share;
+        }
+    }
+
+    private Object lockFor(Path file) {
+        return fileLocks.computeIfAbsent(file, f -> new Object());
+    }
+
+    private static List<long[]> missingRanges(boolean isEmpty, long coveredFrom, long coveredTo, long from, long to) {
+        var result = new ArrayList<long[]>();
+        if (isEmpty) {
+            result.add(new long[]{from, to});
+            return result;
+        }
+        if (from < coveredFrom)
+            result.add(new long[]{from, coveredFrom});
+        if (to - coveredTo >= MIN_MISSING_RANGE_SECONDS)
+            result.add(new long[]{coveredTo, to});
+        return result;
+    }
+
+    private static class StoredCandles {
+        private final CandleSeries series;
+        private final long coveredFrom;
+        private final long coveredTo;
+
+        private StoredCandles(CandleSeries series, long coveredFrom, long coveredTo) {
+            this.series = series;
+            this.coveredFrom = coveredFrom;
+            this.coveredTo = coveredTo;
+        }
+    }
+
+    private static class StoredMessages<T> {
+        private final List<T> messages;
+        private final long coveredFrom;
+        private final long coveredTo;
+
+        private StoredMessages(List<T> messages, long coveredFrom, long coveredTo) {
+            this.messages = messages;
+            this.coveredFrom = coveredFrom;
+            this.coveredTo = coveredTo;
+        }
+    }
+
+    @FunctionalInterface
+    private interface MessageParser<T> {
+        T parse(ByteBuffer buffer) throws InvalidProtocolBufferException;
+    }
+
+    private StoredCandles readCandles(String figi, Path file) {
+        ByteBuffer buffer = read(file);
+        if (buffer == null) return null;
+        int count = buffer.getInt(HEADER_SIZE - 4);
+        if (buffer.capacity() != HEADER_SIZE + count * 5L * Long.BYTES) {
+            log.info("Ignore corrupted archive file {}", file);
+            return null;
+        }
+        var columns = buffer.position(HEADER_SIZE).slice().asLongBuffer();
+        long[] times = new long[count];
+        long[] open = new long[count];
+        long[] high = new long[count];
+        long[] low = new long[count];
+        long[] close = new long[count];
+        columns.get(times).get(open).get(high).get(low).get(close);
+        var series = new CandleSeries(figi, times, open, high, low, close);
+        return new StoredCandles(series, buffer.getLong(8), buffer.getLong(16));
+    }
+
+    private <T> StoredMessages<T> readMessages(Path file, MessageParser<T> parser) {
+        ByteBuffer buffer = read(file);
+        if (buffer == null) return null;
+        int count = buffer.getInt(HEADER_SIZE - 4);
+        var messages = new ArrayList<T>(count);
+        buffer.position(HEADER_SIZE);
+        try {
+            for (int i = 0; i < count; i++) {
+                int length = buffer.getInt();
+                var message = buffer.slice();
+                message.limit(length);
+                messages.add(parser.parse(message));
+                buffer.position(buffer.position() + length);
+            }
+        } catch (InvalidProtocolBufferException | RuntimeException e) {
+            log.info("Ignore corrupted archive file {}", file, e);
+            return null;
+        }
+        return new StoredMessages<>(messages, buffer.getLong(8), buffer.getLong(16));
+    }
+
+    private static ByteBuffer read(Path file) {
+        if (!Files.isRegularFile(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) return null;
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) return null;
+            }
+            buffer.flip();
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) return null;
+            return buffer;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeCandles(Path file, CandleSeries series, long coveredFrom, long coveredTo) {
+        int count = series.size();
+        var buffer = header(HEADER_SIZE + count * 5 * Long.BYTES, coveredFrom, coveredTo, count);
+        var columns = buffer.slice().asLongBuffer();
+        for (int i = 0; i < count; i++) columns.put(series.timeAt(i));
+        for (int i = 0; i < count; i++) columns.put(series.openAt(i));
+        for (int i = 0; i < count; i++) columns.put(series.highAt(i));
+        for (int i = 0; i < count; i++) columns.put(series.lowAt(i));
+        for (int i = 0; i < count; i++) columns.put(series.closeAt(i));
+        buffer.position(buffer.capacity());
+        write(file, buffer);
+    }
+
+    private static void writeMessages(Path file, List<? extends MessageLite> messages, long coveredFrom, long coveredTo) {
+        var serialized = new ArrayList<byte[]>(messages.size());
+        int size = HEADER_SIZE;
+        for (MessageLite message : messages) {
+            byte[] bytes = message.toByteArray();
+            serialized.add(bytes);
+            size += 4 + bytes.length;
+        }
+        var buffer = header(size, coveredFrom, coveredTo, messages.size());
+        for (byte[] bytes : serialized) {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        write(file, buffer);
+    }
+
+    private static ByteBuffer header(int size, long coveredFrom, long coveredTo, int count) {
+        return ByteBuffer.allocate(size).putInt(MAGIC).putInt(VERSION).putLong(coveredFrom).putLong(coveredTo).putInt(count);
+    }
+
+    /**
+     * Writes to temporary file and moves it to the destination, so readers never see partially written file
+     */
+    private static void write(Path file, ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
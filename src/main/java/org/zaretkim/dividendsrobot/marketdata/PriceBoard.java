@@ -0,0 +1,85 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Latest prices received from the market data stream. Reads never block, updates keep the price with the latest time,
+ * so late or duplicated stream messages do not overwrite newer prices.
+ * Board contains prices only for figis with live stream subscription
+ */
+@Component
+public class PriceBoard {
+    private final ConcurrentHashMap<String, LastPrice> prices = new ConcurrentHashMap<>();
+    private final List<Consumer<LastPrice>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Stores price if it is newer than the price on the board and notifies listeners about it
+     * @param lastPrice price received from the stream
+     */
+    public void update(LastPrice lastPrice) {
+        if (!store(lastPrice)) return;
+        for (Consumer<LastPrice> listener : listeners) {
+            listener.accept(lastPrice);
+        }
+    }
+
+    /**
+     * @param listener receives every price stored on the board. Called on the stream thread, so it must not block
+     */
+    public void addListener(Consumer<LastPrice> listener) {
+        listeners.add(listener);
+    }
+
+    private boolean store(LastPrice lastPrice) {
+        String figi = lastPrice.getFigi();
+        while (true) {
+            LastPrice current = prices.get(figi);
+            if (current == null) {
+                if (prices.putIfAbsent(figi, lastPrice) == null) return true;
+            } else {
+                if (!isNewer(lastPrice, current)) return false;
+                if (prices.replace(figi, current, lastPrice)) return true;
+            }
+        }
+    }
+
+    /**
+     * @param figi figi of the share
+     * @return latest streamed price or null if there is no live price for the figi
+     */
+    public LastPrice get(String figi) {
+        return prices.get(figi);
+    }
+
+    /**
+     * Removes prices which are not updated anymore, for example after stream disconnection
+     * @param figis figis to remove
+     */
+    public void remove(Collection<String> figis) {
+        for (String figi : figis) {
+            prices.remove(figi);
+        }
+    }
+
+    /**
+     * @return copy of all prices on the board by figi
+     */
+    public Map<String, LastPrice> snapshot() {
+        return Map.copyOf(prices);
+    }
+
+    private static boolean isNewer(LastPrice price, LastPrice current) {
+        long seconds = price.getTime().getSeconds();
+        long currentSeconds = current.getTime().getSeconds();
+        if (seconds != currentSeconds) return seconds > currentSeconds;
+        return price.getTime().getNanos() >= current.getTime().getNanos();
+    }
+}
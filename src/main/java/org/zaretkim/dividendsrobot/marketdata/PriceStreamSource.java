@@ -0,0 +1,31 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * Source of last price streams
+ */
+public interface PriceStreamSource {
+    /**
+     * Opens new stream
+     * @param sandbox true to open the stream on the sandbox endpoint, false to open it on the real exchange
+     * @param onPrice receives every price from the stream
+     * @param onError receives stream error. The stream is not usable after the error
+     * @return opened stream
+     */
+    PriceStream open(boolean sandbox, Consumer<LastPrice> onPrice, Consumer<Throwable> onError);
+
+    /**
+     * Opened stream of last prices
+     */
+    interface PriceStream {
+        void subscribe(Collection<String> figis);
+
+        void unsubscribe(Collection<String> figis);
+
+        void close();
+    }
+}
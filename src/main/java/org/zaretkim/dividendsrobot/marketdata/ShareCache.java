@@ -0,0 +1,114 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of shares by figi. Entries expire after @ttl, the least recently used entry
+ * is evicted when the cache is full. Share attributes like lot, currency and ticker almost never change,
+ * so the cache saves a network round trip for every repeated lookup
+ */
+@Component
+public class ShareCache {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final boolean preloadEnabled;
+    private final Clock clock;
+    private final LinkedHashMap<String, Entry> entries;
+    private volatile long preloadExpiresAt;
+
+    private static class Entry {
+        private final Share share;
+        private final long expiresAt;
+
+        private Entry(Share share, long expiresAt) {
+            this.share = share;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    @Autowired
+    public ShareCache(@Value("${app.config.share-cache.max-size}") int maxSize,
+                      @Value("${app.config.share-cache.ttl}") Duration ttl,
+                      @Value("${app.config.share-cache.preload}") boolean preloadEnabled) {
+        this(maxSize, ttl, preloadEnabled, Clock.systemUTC());
+    }
+
+    public ShareCache(int maxSize, Duration ttl, boolean preloadEnabled, Clock clock) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.preloadEnabled = preloadEnabled;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ShareCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get cached share
+     * @param figi figi of the share
+     * @return cached share or null if it is absent or expired
+     */
+    public synchronized Share get(String figi) {
+        Entry entry = entries.get(figi);
+        if (entry == null) return null;
+        if (entry.expiresAt <= clock.millis()) {
+            entries.remove(figi);
+            return null;
+        }
+        return entry.share;
+    }
+
+    public synchronized void put(Share share) {
+        entries.put(share.getFigi(), new Entry(share, clock.millis() + ttlMillis));
+    }
+
+    /**
+     * Stores all shares, for example loaded with one getAllShares request. Only the last @maxSize shares are kept
+     * @param shares shares to store
+     */
+    public synchronized void putAll(Collection<Share> shares) {
+        long expiresAt = clock.millis() + ttlMillis;
+        for (Share share : shares) {
+            entries.put(share.getFigi(), new Entry(share, expiresAt));
+        }
+        preloadExpiresAt = expiresAt;
+    }
+
+    /**
+     * Get cached share or load it with @loader. Loading is done outside of the cache lock
+     * @param figi figi of the share
+     * @param loader loads share for figi absent in the cache
+     * @return share for given figi
+     */
+    public Share getOrLoad(String figi, Function<String, Share> loader) {
+        Share share = get(figi);
+        if (share != null) return share;
+        share = loader.apply(figi);
+        put(share);
+        return share;
+    }
+
+    /**
+     * @return true if cache is configured to be filled with all shares at once and it was not filled yet or already expired
+     */
+    public boolean needsPreload() {
+        return preloadEnabled && preloadExpiresAt <= clock.millis();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
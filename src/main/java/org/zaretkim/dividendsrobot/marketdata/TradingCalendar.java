@@ -0,0 +1,130 @@
+package org.zaretkim.dividendsrobot.marketdata;
+
+import ru.tinkoff.piapi.contract.v1.TradingDay;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Immutable exchange calendar for a range of days: bitmap of trading days and session bounds of every trading day.
+ * Answers "is exchange working" questions from memory
+ */
+public final class TradingCalendar {
+    private final LocalDate firstDay;
+    private final int numberOfDays;
+    private final BitSet tradingDays;
+    private final long[] sessionStart;
+    private final long[] sessionEnd;
+
+    private TradingCalendar(LocalDate firstDay, int numberOfDays, BitSet tradingDays, long[] sessionStart, long[] sessionEnd) {
+        this.firstDay = firstDay;
+        this.numberOfDays = numberOfDays;
+        this.tradingDays = tradingDays;
+        this.sessionStart = sessionStart;
+        this.sessionEnd = sessionEnd;
+    }
+
+    /**
+     * Builds calendar from exchange trading schedule
+     * @param firstDay first day of the calendar
+     * @param lastDay last day of the calendar (inclusive)
+     * @param days schedule days returned by the API
+     * @return calendar for the range
+     */
+    public static TradingCalendar fromSchedule(LocalDate firstDay, LocalDate lastDay, List<TradingDay> days) {
+        int numberOfDays = (int) ChronoUnit.DAYS.between(firstDay, lastDay) + 1;
+        var tradingDays = new BitSet(numberOfDays);
+        long[] sessionStart = new long[numberOfDays];
+        long[] sessionEnd = new long[numberOfDays];
+        for (TradingDay day : days) {
+            var date = LocalDate.ofInstant(Instant.ofEpochSecond(day.getDate().getSeconds()), ZoneOffset.UTC);
+            int index = (int) ChronoUnit.DAYS.between(firstDay, date);
+            if (index < 0 || index >= numberOfDays) continue;
+            if (!day.getIsTradingDay()) continue;
+            tradingDays.set(index);
+            sessionStart[index] = day.getStartTime().getSeconds();
+            sessionEnd[index] = day.getEndTime().getSeconds();
+        }
+        return new TradingCalendar(firstDay, numberOfDays, tradingDays, sessionStart, sessionEnd);
+    }
+
+    /**
+     * Builds calendar from day candles of a liquid share: day with a candle is a trading day.
+     * Sessions of such calendar are whole days
+     * @param candles day candles
+     * @param zone time zone of the exchange
+     * @return calendar for the range of the candles
+     */
+    public static TradingCalendar fromCandles(CandleSeries candles, ZoneId zone) {
+        if (candles.size() == 0)
+            return new TradingCalendar(LocalDate.EPOCH, 0, new BitSet(), new long[0], new long[0]);
+        var firstDay = LocalDate.ofInstant(Instant.ofEpochSecond(candles.timeAt(0)), zone);
+        var lastDay = LocalDate.ofInstant(Instant.ofEpochSecond(candles.timeAt(candles.size() - 1)), zone);
+        int numberOfDays = (int) ChronoUnit.DAYS.between(firstDay, lastDay) + 1;
+        var tradingDays = new BitSet(numberOfDays);
+        long[] sessionStart = new long[numberOfDays];
+        long[] sessionEnd = new long[numberOfDays];
+        for (int i = 0; i < candles.size(); i++) {
+            var date = LocalDate.ofInstant(Instant.ofEpochSecond(candles.timeAt(i)), zone);
+            int index = (int) ChronoUnit.DAYS.between(firstDay, date);
+            tradingDays.set(index);
+            sessionStart[index] = date.atStartOfDay(zone).toEpochSecond();
+            sessionEnd[index] = date.plusDays(1).atStartOfDay(zone).toEpochSecond();
+        }
+        return new TradingCalendar(firstDay, numberOfDays, tradingDays, sessionStart, sessionEnd);
+    }
+
+    /**
+     * @param date date to check
+     * @return true if the calendar has information about the date
+     */
+    public boolean covers(LocalDate date) {
+        long index = ChronoUnit.DAYS.between(firstDay, date);
+        return index >= 0 && index < numberOfDays;
+    }
+
+    /**
+     * @param date date to check
+     * @return true if the date is a trading day. Days out of the calendar range are not trading days
+     */
+    public boolean isTradingDay(LocalDate date) {
+        if (!covers(date)) return false;
+        return tradingDays.get((int) ChronoUnit.DAYS.between(firstDay, date));
+    }
+
+    /**
+     * @param instant time to check
+     * @return true if exchange session is open at given time
+     */
+    public boolean isWorkingTime(Instant instant) {
+        var date = LocalDate.ofInstant(instant, ZoneOffset.UTC);
+        long epochSecond = instant.getEpochSecond();
+        // session may start on the previous UTC date for exchanges east of UTC
+        return isInSession(date, epochSecond) || isInSession(date.minusDays(1), epochSecond) || isInSession(date.plusDays(1), epochSecond);
+    }
+
+    /**
+     * @return first date of the calendar
+     */
+    public LocalDate getFirstDay() {
+        return firstDay;
+    }
+
+    /**
+     * @return last date of the calendar (inclusive)
+     */
+    public LocalDate getLastDay() {
+        return firstDay.plusDays(numberOfDays - 1L);
+    }
+
+    private boolean isInSession(LocalDate date, long epochSecond) {
+        if (!isTradingDay(date)) return false;
+        int index = (int) ChronoUnit.DAYS.between(firstDay, date);
+        return sessionStart[index] <= epochSecond && epochSecond < sessionEnd[index];
+    }
+}
@@ -0,0 +1,49 @@
+package org.zaretkim.dividendsrobot.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Backtest or parameter sweep submitted for asynchronous execution. Progress fields are updated by the executing thread
+ * and can be read from any thread
+ */
+@Getter
+@Setter
+public class BacktestJob {
+    public enum Status {QUEUED, RUNNING, DONE, FAILED, CANCELLED}
+
+    private final long id;
+    private final int days;
+    private final Instant submittedAt;
+    private volatile Status status = Status.QUEUED;
+    private volatile boolean cancelRequested = false;
+    private volatile int daysDone = 0;
+    private volatile BigDecimal initialFunds;
+    private volatile BigDecimal currentFunds;
+    private volatile BigDecimal yield;
+    private volatile String error;
+    private volatile Instant finishedAt;
+    // number of backtests of the sweep, 0 for a single backtest
+    private volatile int sweepSize = 0;
+    private volatile int sweepDone = 0;
+    private volatile List<SweepResult> sweepResults;
+
+    public BacktestJob(long id, int days, Instant submittedAt) {
+        this.id = id;
+        this.days = days;
+        this.submittedAt = submittedAt;
+    }
+
+    public boolean isSweep() {
+        return sweepSize > 0;
+    }
+
+    public boolean isFinished() {
+        var currentStatus = status;
+        return currentStatus != Status.QUEUED && currentStatus != Status.RUNNING;
+    }
+}
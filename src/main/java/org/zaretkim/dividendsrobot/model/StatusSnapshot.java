@@ -0,0 +1,58 @@
+package org.zaretkim.dividendsrobot.model;
+
+import lombok.Value;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Immutable state of the running robot served by /status. Every new snapshot has greater @version
+ */
+@Value
+public class StatusSnapshot {
+    long version;
+    Instant updatedAt;
+    boolean running;
+    /**
+     * real, sandbox or backtest
+     */
+    String mode;
+    /**
+     * total funds or null if the portfolio is not loaded yet
+     */
+    BigDecimal totalFunds;
+    BigDecimal freeMoney;
+    int numberOfPositions;
+    /**
+     * expected yield of the portfolio reported by the exchange or null
+     */
+    BigDecimal expectedYield;
+    List<Position> positions;
+
+    @Value
+    public static class Position {
+        String figi;
+        String name;
+        long count;
+        /**
+         * latest streamed price or null if there is no live price
+         */
+        BigDecimal lastPrice;
+        /**
+         * expected yield in percents or null if average price is unknown
+         */
+        BigDecimal expectedYield;
+    }
+
+    public static StatusSnapshot notRunning(long version) {
+        return new StatusSnapshot(version, Instant.now(), false, null, null, null, 0, null, List.of());
+    }
+
+    /**
+     * @return snapshot of the running robot which portfolio is not loaded yet
+     */
+    public static StatusSnapshot loading(long version, String mode) {
+        return new StatusSnapshot(version, Instant.now(), true, mode, null, null, 0, null, List.of());
+    }
+}
@@ -0,0 +1,21 @@
+package org.zaretkim.dividendsrobot.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.math.BigDecimal;
+
+/**
+ * Result of one backtest of the parameter sweep
+ */
+@Data
+@AllArgsConstructor
+public class SweepResult {
+    private double minDividendYield;
+    private double sufficientProfit;
+    private double maxPositionPercentage;
+    private BigDecimal initialFunds;
+    private BigDecimal finalFunds;
+    private BigDecimal yield;
+    private String error;
+}
@@ -0,0 +1,138 @@
+package org.zaretkim.dividendsrobot.service;
+
+import ru.tinkoff.piapi.contract.v1.*;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * MarketService of one account. Market data requests go to the wrapped service, which can be shared by many accounts,
+ * portfolio and orders requests go to @{@link AccountOperations} for @accountId
+ */
+public class AccountMarketService extends MarketServiceDecorator {
+    private final AccountOperations accountOperations;
+    private final String accountId;
+
+    public AccountMarketService(MarketService marketData, AccountOperations accountOperations, String accountId) {
+        super(marketData);
+        this.accountOperations = accountOperations;
+        this.accountId = accountId;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    @Override
+    public PortfolioResponse getPortfolio() {
+        return accountOperations.getPortfolio(accountId);
+    }
+
+    @Override
+    public List<OrderState> getOrders() {
+        return accountOperations.getOrders(accountId);
+    }
+
+    @Override
+    public void cancelOrder(String orderId) {
+        accountOperations.cancelOrder(accountId, orderId);
+    }
+
+    @Override
+    public OrderState getOrderStateSync(String orderId) {
+        return join(getOrderStateAsync(orderId));
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderStateAsync(String orderId) {
+        return accountOperations.getOrderState(accountId, orderId);
+    }
+
+    @Override
+    public String sellMarket(String figi, int numberOfLots) {
+        return join(sellMarketAsync(figi, numberOfLots));
+    }
+
+    @Override
+    public CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots) {
+        return accountOperations.postMarketOrder(accountId, figi, numberOfLots, false);
+    }
+
+    @Override
+    public String buyMarket(String figi, int numberOfLots) {
+        return join(buyMarketAsync(figi, numberOfLots));
+    }
+
+    @Override
+    public CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots) {
+        return accountOperations.postMarketOrder(accountId, figi, numberOfLots, true);
+    }
+
+    /**
+     * Validates the token and @accountId, the configured account of the wrapped service is not checked
+     */
+    @Override
+    public String validateToken() {
+        var message = accountOperations.validateTradingToken();
+        return message != null ? message : accountOperations.validateAccount(accountId);
+    }
+
+    @Override
+    public boolean isWorkingHours() {
+        return delegate.isWorkingHours();
+    }
+
+    @Override
+    public Share getShareByFigiSync(String figi) {
+        return delegate.getShareByFigiSync(figi);
+    }
+
+    @Override
+    public CompletableFuture<Share> getShareByFigiAsync(String figi) {
+        return delegate.getShareByFigiAsync(figi);
+    }
+
+    @Override
+    public List<Dividend> getDividendsSync(String figi) {
+        return delegate.getDividendsSync(figi);
+    }
+
+    @Override
+    public CompletableFuture<List<Dividend>> getDividendsAsync(String figi) {
+        return delegate.getDividendsAsync(figi);
+    }
+
+    @Override
+    public LastPrice getLastPricesSync(String figi) {
+        return delegate.getLastPricesSync(figi);
+    }
+
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        return delegate.getLastPrices(figis);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis) {
+        return delegate.getLastPricesAsync(figis);
+    }
+
+    @Override
+    public Instant now() {
+        return delegate.now();
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+}
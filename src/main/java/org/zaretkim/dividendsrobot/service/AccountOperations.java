@@ -0,0 +1,60 @@
+package org.zaretkim.dividendsrobot.service;
+
+import ru.tinkoff.piapi.contract.v1.OrderState;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Operations on the portfolio and orders of any account available for the token.
+ * Market data does not depend on the account, so it is provided by @{@link MarketService}
+ */
+public interface AccountOperations {
+    /**
+     * @param accountId id of the account
+     * @return current portfolio of the account
+     */
+    PortfolioResponse getPortfolio(String accountId);
+
+    /**
+     * @param accountId id of the account
+     * @return orders of the account
+     */
+    List<OrderState> getOrders(String accountId);
+
+    /**
+     * @param accountId id of the account
+     * @param orderId id of the order to cancel
+     */
+    void cancelOrder(String accountId, String orderId);
+
+    /**
+     * @param accountId id of the account
+     * @param orderId id of the order returned by @postMarketOrder
+     * @return future with state of the order
+     */
+    CompletableFuture<OrderState> getOrderState(String accountId, String orderId);
+
+    /**
+     * Create market order for the account
+     * @param accountId id of the account
+     * @param figi figi of the share
+     * @param numberOfLots number of lots
+     * @param buy true to buy, false to sell
+     * @return future with id of the created order
+     */
+    CompletableFuture<String> postMarketOrder(String accountId, String figi, int numberOfLots, boolean buy);
+
+    /**
+     * Validates the token without any account, accounts are validated by @validateAccount
+     * @return null if the token can be used for trading or error message
+     */
+    String validateTradingToken();
+
+    /**
+     * @param accountId id of the account
+     * @return null if the account can be used for trading or error message
+     */
+    String validateAccount(String accountId);
+}
@@ -0,0 +1,74 @@
+package org.zaretkim.dividendsrobot.service;
+
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.OrderState;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking variants of @{@link MarketService} operations used to request data for many figis concurrently
+ */
+public interface AsyncMarketService {
+    /**
+     * Get share by its figi
+     * @param figi figi of the share
+     * @return future with share for given figi
+     */
+    CompletableFuture<Share> getShareByFigiAsync(String figi);
+
+    /**
+     * Get current dividends information
+     * @param figi figi of the share with requested dividends
+     * @return future with current dividends for the figi
+     */
+    CompletableFuture<List<Dividend>> getDividendsAsync(String figi);
+
+    /**
+     * Get last prices for several shares with one request
+     * @param figis figis of the shares for which prices are requested
+     * @return future with last prices by figi. Figis without known price are absent in the result
+     */
+    CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis);
+
+    /**
+     * Create exchange order to sell share with given figi
+     * @param figi figi of the share to sell
+     * @param numberOfLots number of lots to sell
+     * @return future with id of the created order
+     */
+    CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots);
+
+    /**
+     * Create exchange order to buy share with given figi
+     * @param figi figi of the share to buy
+     * @param numberOfLots number of lots to buy
+     * @return future with id of the created order
+     */
+    CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots);
+
+    /**
+     * Get state of the order
+     * @param orderId id of the order returned by @sellMarketAsync or @buyMarketAsync
+     * @return future with state of the order or with null if the order is already executed and its state is not kept
+     */
+    CompletableFuture<OrderState> getOrderStateAsync(String orderId);
+
+    /**
+     * Executes blocking call in the calling thread and wraps its result or error into completed future
+     * @param supplier blocking call
+     * @return completed future with result of the call
+     */
+    static <T> CompletableFuture<T> completed(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.completedFuture(supplier.get());
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.zaretkim.dividendsrobot.service;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Simulation clock of a backtest which skips days where the strategy step cannot change anything.
+ * Without open positions a step can only open positions for dividend ideas, and ideas exist only while
+ * some dividend is between its declared date and last buy date. So days outside of all such windows
+ * are skipped while the portfolio is empty. Days with open positions are never skipped, since their
+ * prices can cross sufficient profit or dividend yield thresholds on any day
+ */
+final class BacktestClock {
+    private static final long SECONDS_IN_DAY = 24 * 60 * 60;
+    private final long startEpochSecond;
+    // disjoint open intervals (from, to) sorted by time
+    private final long[] windowFrom;
+    private final long[] windowTo;
+
+    /**
+     * @param start time of the first simulated day, every next day has the same time of day
+     * @param dividendWindows intervals {declaredDate, lastBuyDate} in epoch seconds
+     */
+    BacktestClock(Instant start, List<long[]> dividendWindows) {
+        this.startEpochSecond = start.getEpochSecond();
+        var sorted = new ArrayList<>(dividendWindows);
+        sorted.sort(Comparator.comparingLong(w -> w[0]));
+        var merged = new ArrayList<long[]>();
+        for (long[] window : sorted) {
+            if (window[0] >= window[1]) continue;
+            var last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && window[0] < last[1])
+                last[1] = Math.max(last[1], window[1]);
+            else
+                merged.add(new long[]{window[0], window[1]});
+        }
+        windowFrom = new long[merged.size()];
+        windowTo = new long[merged.size()];
+        for (int i = 0; i < merged.size(); i++) {
+            windowFrom[i] = merged.get(i)[0];
+            windowTo[i] = merged.get(i)[1];
+        }
+    }
+
+    Instant dayTime(int day) {
+        return Instant.ofEpochSecond(startEpochSecond).plus(day, ChronoUnit.DAYS);
+    }
+
+    /**
+     * @return true if the time of @day is strictly inside one of dividend windows
+     */
+    boolean isDividendDay(int day) {
+        long time = startEpochSecond + day * SECONDS_IN_DAY;
+        int index = lastWindowStartedBefore(time);
+        return index >= 0 && time < windowTo[index];
+    }
+
+    /**
+     * @return the first day after @day which can be inside a dividend window or @{@link Integer#MAX_VALUE} if there is no such day.
+     * The returned day is not necessarily inside a window if the window is shorter than a day
+     */
+    int nextDividendDay(int day) {
+        long time = startEpochSecond + day * SECONDS_IN_DAY;
+        // windows started before @time are either passed or contain @time
+        int index = lastWindowStartedBefore(time) + 1;
+        if (index == windowFrom.length) return Integer.MAX_VALUE;
+        long next = Math.max((windowFrom[index] - startEpochSecond) / SECONDS_IN_DAY + 1, day + 1L);
+        return (int) Math.min(next, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return index of the last window with start strictly before @time or -1
+     */
+    private int lastWindowStartedBefore(long time) {
+        int low = 0;
+        int high = windowFrom.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (windowFrom[middle] < time) low = middle + 1;
+            else high = middle - 1;
+        }
+        return high;
+    }
+}
@@ -0,0 +1,223 @@
+package org.zaretkim.dividendsrobot.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import org.zaretkim.dividendsrobot.model.BacktestJob;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes backtests and parameter sweeps asynchronously on a dedicated bounded executor. Every job gets its own copy of
+ * the strategy configuration and its own portfolio, so jobs do not affect the running robot. Backtests of a sweep
+ * run on the shared pool of @{@link BacktestSweepService}. Only the last @maxFinishedJobs finished jobs are kept
+ */
+@Service
+@Slf4j
+public class BacktestJobService {
+    private final PreDividendsStrategyService preDividendsStrategyService;
+    private final BacktestMarketService backtestMarketService;
+    private final BacktestSweepService backtestSweepService;
+    private final MeterRegistry meterRegistry;
+    private final int maxFinishedJobs;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong lastJobId = new AtomicLong();
+    private final Map<Long, BacktestJob> activeJobs = new ConcurrentHashMap<>();
+    private final Map<Long, Future<?>> futures = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Long, BacktestJob> finishedJobs = new LinkedHashMap<>();
+
+    public BacktestJobService(PreDividendsStrategyService preDividendsStrategyService,
+                              BacktestMarketService backtestMarketService,
+                              BacktestSweepService backtestSweepService,
+                              MeterRegistry meterRegistry,
+                              @Value("${app.config.backtest-jobs.threads}") int threads,
+                              @Value("${app.config.backtest-jobs.queue-size}") int queueSize,
+                              @Value("${app.config.backtest-jobs.max-finished}") int maxFinishedJobs) {
+        this.preDividendsStrategyService = preDividendsStrategyService;
+        this.backtestMarketService = backtestMarketService;
+        this.backtestSweepService = backtestSweepService;
+        this.meterRegistry = meterRegistry;
+        this.maxFinishedJobs = maxFinishedJobs;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), r -> {
+            var thread = new Thread(r, "backtest-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits backtest with current strategy configuration
+     * @param days number of days to run, backtest ends today
+     * @return submitted job
+     * @throws RejectedExecutionException if too many jobs are already submitted
+     */
+    public BacktestJob submit(int days) {
+        var job = new BacktestJob(lastJobId.incrementAndGet(), days, Instant.now());
+        var strategy = preDividendsStrategyService.copy();
+        return submit(job, () -> runBacktest(job, strategy));
+    }
+
+    /**
+     * Submits backtests for every combination of parameters with current strategy configuration,
+     * results are available in the job when it is done
+     * @param days number of days to run, backtests end today
+     * @param minDividendYields values for min-dividend-yield
+     * @param sufficientProfits values for sufficient-profit
+     * @param maxPositionPercentages values for max-position-percentage
+     * @return submitted job
+     * @throws IllegalArgumentException if the grid is larger than allowed by @{@link BacktestSweepService}
+     * @throws RejectedExecutionException if too many jobs are already submitted
+     */
+    public BacktestJob submitSweep(int days, List<Double> minDividendYields, List<Double> sufficientProfits,
+                                   List<Double> maxPositionPercentages) {
+        int sweepSize = backtestSweepService.checkGridSize(minDividendYields, sufficientProfits, maxPositionPercentages);
+        var job = new BacktestJob(lastJobId.incrementAndGet(), days, Instant.now());
+        job.setSweepSize(sweepSize);
+        var strategy = preDividendsStrategyService.copy();
+        return submit(job, () -> {
+            var results = backtestSweepService.sweep(strategy, days, minDividendYields, sufficientProfits,
+                    maxPositionPercentages, job::setSweepDone);
+            // progress of parallel backtests may be reported out of order
+            job.setSweepDone(results.size());
+            job.setSweepResults(results);
+        });
+    }
+
+    private BacktestJob submit(BacktestJob job, Runnable backtest) {
+        // the future is registered before the task can run, so @finish of a fast job always removes it
+        var future = new FutureTask<Void>(() -> run(job, backtest), null);
+        activeJobs.put(job.getId(), job);
+        futures.put(job.getId(), future);
+        try {
+            executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            futures.remove(job.getId());
+            activeJobs.remove(job.getId());
+            throw e;
+        }
+        return job;
+    }
+
+    /**
+     * @param id id of the job
+     * @return active or finished job or null if there is no such job
+     */
+    public BacktestJob getJob(long id) {
+        var job = activeJobs.get(id);
+        if (job != null) return job;
+        synchronized (finishedJobs) {
+            return finishedJobs.get(id);
+        }
+    }
+
+    /**
+     * @return active and kept finished jobs, the latest first
+     */
+    public List<BacktestJob> getJobs() {
+        var jobs = new ArrayList<>(activeJobs.values());
+        synchronized (finishedJobs) {
+            jobs.addAll(finishedJobs.values());
+        }
+        jobs.sort(Comparator.comparingLong(BacktestJob::getId).reversed());
+        return jobs;
+    }
+
+    /**
+     * Cancels queued or running job
+     * @param id id of the job
+     * @return false if there is no such active job
+     */
+    public boolean cancel(long id) {
+        var job = activeJobs.get(id);
+        if (job == null) return false;
+        job.setCancelRequested(true);
+        var future = futures.get(id);
+        if (future != null && future.cancel(true) && job.getStatus() == BacktestJob.Status.QUEUED) {
+            // cancelled task is never started, so it is finished here
+            finish(job, BacktestJob.Status.CANCELLED);
+        }
+        return true;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void run(BacktestJob job, Runnable backtest) {
+        synchronized (job) {
+            if (job.isCancelRequested()) {
+                finish(job, BacktestJob.Status.CANCELLED);
+                return;
+            }
+            job.setStatus(BacktestJob.Status.RUNNING);
+        }
+        try {
+            backtest.run();
+            finish(job, BacktestJob.Status.DONE);
+        } catch (Throwable t) {
+            if (job.isCancelRequested() || t instanceof CancellationException) {
+                finish(job, BacktestJob.Status.CANCELLED);
+                return;
+            }
+            log.info("Backtest job {} failed", job.getId(), t);
+            job.setError(t.getMessage());
+            finish(job, BacktestJob.Status.FAILED);
+        }
+    }
+
+    private void runBacktest(BacktestJob job, PreDividendsStrategyService strategy) {
+        Instant start = RobotRunner.backtestStart(job.getDays());
+        var marketData = backtestMarketService.loadMarketData(List.of(strategy.getAllowedFigis().split("\\s+")), start);
+        var marketService = backtestMarketService.createRun(marketData);
+        strategy.setMarketService(new MeteredMarketService(marketService, meterRegistry, "backtest"));
+        job.setInitialFunds(totalFunds(marketService));
+        job.setCurrentFunds(job.getInitialFunds());
+        RobotRunner.runBacktestDays(strategy, marketService, start, job.getDays(), meterRegistry, daysDone -> {
+            if (job.isCancelRequested()) throw new CancellationException("Backtest job is cancelled");
+            job.setDaysDone(daysDone);
+            job.setCurrentFunds(totalFunds(marketService));
+        });
+        job.setYield(RobotRunner.yieldInPercents(job.getInitialFunds(), job.getCurrentFunds()));
+    }
+
+    private static BigDecimal totalFunds(BacktestMarketService marketService) {
+        return FixedPoint.toBigDecimal(marketService.getTotalFunds());
+    }
+
+    private void finish(BacktestJob job, BacktestJob.Status status) {
+        synchronized (job) {
+            if (job.isFinished()) return;
+            job.setFinishedAt(Instant.now());
+            job.setStatus(status);
+        }
+        synchronized (finishedJobs) {
+            finishedJobs.put(job.getId(), job);
+            var iterator = finishedJobs.values().iterator();
+            while (finishedJobs.size() > maxFinishedJobs) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        activeJobs.remove(job.getId());
+        futures.remove(job.getId());
+    }
+}
@@ -3,22 +3,33 @@ package org.zaretkim.dividendsrobot.service;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+import org.zaretkim.dividendsrobot.marketdata.CandleSeries;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import org.zaretkim.dividendsrobot.marketdata.MarketDataArchive;
+import org.zaretkim.dividendsrobot.marketdata.TradingCalendar;
 import ru.tinkoff.piapi.contract.v1.*;
 import ru.tinkoff.piapi.core.InstrumentsService;
 import ru.tinkoff.piapi.core.InvestApi;
 import ru.tinkoff.piapi.core.MarketDataService;
-import ru.tinkoff.piapi.core.utils.MapperUtils;
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
 import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Lazily loads historical data and use it to implement MarketService operations.
+ * Historical data is kept in @{@link MarketDataArchive}, so only data missing there is requested from the exchange.
  * Use @setFakeNow method to set fake "now" date to get data for that date
  */
 @Service
@@ -26,48 +37,141 @@ import java.util.List;
 @Slf4j
 public class BacktestMarketService extends MarketServiceBase {
     private static final String CONTROL_FIGI = "BBG004730RP0"; // Gazprom figi
-    private InvestApi investApi;
+    private static final ZoneId EXCHANGE_ZONE = ZoneId.of("Europe/Moscow");
+    private static final long INITIAL_CASH = FixedPoint.ofUnits(100000);
+    private final MarketDataArchive marketDataArchive;
+    private final MarketRequestExecutor marketRequests;
     private Instant fakeNow;
     private HashMap<String, PortfolioPosition> portfolioPositions = new HashMap<>();
     private HashMap<String, List<Dividend>> historicalDividends = new HashMap<>();
-    private HashMap<String, Share> sharesMap = new HashMap<>();
-    private HashMap<String, List<HistoricCandle>> historicalCandles = new HashMap<>();
-    private BigDecimal cash = BigDecimal.valueOf(100000);
+    // shares are also requested from /config validation threads
+    private ConcurrentHashMap<String, Share> sharesMap = new ConcurrentHashMap<>();
+    private HashMap<String, CandleSeries> historicalCandles = new HashMap<>();
+    private long cash = INITIAL_CASH;
+    private TradingCalendar tradingCalendar;
+    // valuation of open positions at @valuedAt, it is updated lazily when the day changes and incrementally on trades
+    private HashMap<String, Long> positionPrices = new HashMap<>();
+    private long sharesValue = 0;
+    private Instant valuedAt;
+    private PortfolioResponse portfolio;
 
     public void Reset() {
         portfolioPositions = new HashMap<>();
         historicalDividends = new HashMap<>();
-        sharesMap = new HashMap<>();
+        sharesMap = new ConcurrentHashMap<>();
         historicalCandles = new HashMap<>();
-        cash = BigDecimal.valueOf(100000);
+        cash = INITIAL_CASH;
+        tradingCalendar = null;
+        positionPrices = new HashMap<>();
+        sharesValue = 0;
+        valuedAt = null;
+        portfolio = null;
     }
+
+    /**
+     * Loads historical data for given figis starting from @from. Does not change state of this service.
+     * Figis are loaded in parallel on the shared pool of @{@link MarketRequestExecutor}
+     * @param figis figis to load
+     * @param from start of the backtest
+     * @return immutable historical data which can be shared between backtests
+     */
+    public BacktestMarketData loadMarketData(Collection<String> figis, Instant from) {
+        var figisToLoad = new LinkedHashSet<>(figis);
+        figisToLoad.add(CONTROL_FIGI);
+        var candles = new ConcurrentHashMap<String, CandleSeries>();
+        var dividends = new ConcurrentHashMap<String, List<Dividend>>();
+        var shares = new ConcurrentHashMap<String, Share>();
+        Instant to = Instant.now();
+
+        var futures = marketRequests.supplyAll(figisToLoad, figi -> {
+            try {
+                candles.put(figi, loadCandles(figi, from, to));
+                dividends.put(figi, loadDividends(figi, from, to));
+                shares.put(figi, loadShare(figi));
+            } catch (Exception e) {
+                log.error("Failed to load historical data for figi=" + figi, e);
+            }
+            return null;
+        });
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        return new BacktestMarketData(new HashMap<>(candles), new HashMap<>(dividends), new HashMap<>(shares));
+    }
+
+    /**
+     * Creates backtest service with its own empty portfolio which reads historical data from shared @marketData.
+     * Data missing in @marketData is loaded lazily only for the created service
+     * @param marketData historical data shared between backtests
+     * @return new backtest service
+     */
+    public BacktestMarketService createRun(BacktestMarketData marketData) {
+        var run = new BacktestMarketService(marketDataArchive, marketRequests);
+        run.token = token;
+        run.investApiRegistry = investApiRegistry;
+        run.historicalCandles = new HashMap<>(marketData.getCandles());
+        run.historicalDividends = new HashMap<>(marketData.getDividends());
+        run.sharesMap = new ConcurrentHashMap<>(marketData.getShares());
+        return run;
+    }
+    /**
+     * Portfolio valued by last prices at "now". The response is built only when the day changes or a trade fills,
+     * otherwise the same instance is returned
+     */
     @Override
     public PortfolioResponse getPortfolio() {
-        BigDecimal totalSharesCount = BigDecimal.ZERO;
-        List<PortfolioPosition> positionsWithUpdatedCurrentPrice = new ArrayList<>();
-        for (PortfolioPosition position: portfolioPositions.values()) {
-            var figi = position.getFigi();
-            var price = getLastPricesSync(figi);
-            var quantity = position.getQuantity();
-            var amount = MapperUtils.quotationToBigDecimal(price.getPrice()).multiply(BigDecimal.valueOf(quantity.getUnits()));
-            totalSharesCount = totalSharesCount.add(amount);
-            var lastPrice = getLastPricesSync(position.getFigi());
-            var currentPrice = MoneyValue.newBuilder().setCurrency(position.getAveragePositionPrice().getCurrency()).
-                    setUnits(lastPrice.getPrice().getUnits()).
-                    setNano(lastPrice.getPrice().getNano()).build();
-            var newPosition = PortfolioPosition.newBuilder(position).setCurrentPrice(currentPrice).build();
-            positionsWithUpdatedCurrentPrice.add(newPosition);
+        revalue();
+        if (portfolio == null) {
+            var builder = PortfolioResponse.newBuilder();
+            for (PortfolioPosition position : portfolioPositions.values()) {
+                long price = positionPrices.get(position.getFigi());
+                var currentPrice = FixedPoint.toMoneyValue(price, position.getAveragePositionPrice().getCurrency());
+                builder.addPositions(PortfolioPosition.newBuilder(position).setCurrentPrice(currentPrice));
+            }
+            portfolio = builder.
+                    setTotalAmountShares(FixedPoint.toMoneyValue(sharesValue, "")).
+                    setTotalAmountCurrencies(FixedPoint.toMoneyValue(cash, "")).
+                    build();
         }
-        return PortfolioResponse.newBuilder().
-                addAllPositions(positionsWithUpdatedCurrentPrice).
-                setTotalAmountShares(MapperUtils.bigDecimalToMoneyValue(totalSharesCount)).
-                setTotalAmountCurrencies(MapperUtils.bigDecimalToMoneyValue(cash)).
-                build();
+        return portfolio;
     }
 
+    /**
+     * Same as the sum of total amounts of @{@link #getPortfolio} without building the portfolio
+     * @return cash and value of open positions in fixed point
+     */
+    public long getTotalFunds() {
+        revalue();
+        return cash + sharesValue;
+    }
+
+    /**
+     * Values all open positions by last prices if "now" has changed since the last valuation
+     */
+    private void revalue() {
+        if (Objects.equals(valuedAt, fakeNow)) return;
+        positionPrices.clear();
+        sharesValue = 0;
+        for (PortfolioPosition position : portfolioPositions.values()) {
+            addPositionValue(position);
+        }
+        valuedAt = fakeNow;
+        portfolio = null;
+    }
+
+    private void addPositionValue(PortfolioPosition position) {
+        long price = FixedPoint.of(getLastPricesSync(position.getFigi()).getPrice());
+        positionPrices.put(position.getFigi(), price);
+        sharesValue += FixedPoint.times(price, position.getQuantity().getUnits());
+    }
+
+    /**
+     * Day is considered a trading day if there is a day candle for @{@link #CONTROL_FIGI}
+     */
     @Override
     public boolean isWorkingHours() {
-        return getLastPricesSync(CONTROL_FIGI) != null;
+        if (tradingCalendar == null) {
+            tradingCalendar = TradingCalendar.fromCandles(getCandleSeries(CONTROL_FIGI), EXCHANGE_ZONE);
+        }
+        return tradingCalendar.isTradingDay(LocalDate.ofInstant(fakeNow, EXCHANGE_ZONE));
     }
 
     @Override
@@ -81,22 +185,60 @@ public class BacktestMarketService extends MarketServiceBase {
 
     @Override
     public LastPrice getLastPricesSync(String figi) {
-        var figiHistoricalCandles = historicalCandles.get(figi);
-        if (figiHistoricalCandles == null) {
-            MarketDataService marketDataService = getInvestApi().getMarketDataService();
-            figiHistoricalCandles = marketDataService.getCandlesSync(figi, fakeNow, Instant.now(), CandleInterval.CANDLE_INTERVAL_DAY);
-            historicalCandles.put(figi, figiHistoricalCandles);
+        return getCandleSeries(figi).lastPriceAt(fakeNow.getEpochSecond());
+    }
+
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        var result = new HashMap<String, LastPrice>();
+        for (String figi : figis) {
+            var lastPrice = getLastPricesSync(figi);
+            if (lastPrice != null)
+                result.put(figi, lastPrice);
         }
+        return result;
+    }
 
-        for (HistoricCandle candle : figiHistoricalCandles) {
-            if (fakeNow.getEpochSecond() - candle.getTime().getSeconds() < 24 * 60 * 60) {
-                BigDecimal high = MapperUtils.quotationToBigDecimal(candle.getHigh());
-                BigDecimal low = MapperUtils.quotationToBigDecimal(candle.getLow());
-                BigDecimal medium = high.add(low).divide(BigDecimal.valueOf(2), RoundingMode.HALF_DOWN);
-                return LastPrice.newBuilder().setFigi(figi).setPrice(MapperUtils.bigDecimalToQuotation(medium)).build();
-            }
+    @Override
+    public CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis) {
+        return AsyncMarketService.completed(() -> getLastPrices(figis));
+    }
+
+    @Override
+    public CompletableFuture<List<Dividend>> getDividendsAsync(String figi) {
+        return AsyncMarketService.completed(() -> getDividendsSync(figi));
+    }
+
+    @Override
+    public CompletableFuture<Share> getShareByFigiAsync(String figi) {
+        return AsyncMarketService.completed(() -> getShareByFigiSync(figi));
+    }
+
+    private CandleSeries getCandleSeries(String figi) {
+        var candleSeries = historicalCandles.get(figi);
+        if (candleSeries == null) {
+            candleSeries = loadCandles(figi, fakeNow, Instant.now());
+            historicalCandles.put(figi, candleSeries);
         }
-        return null;
+        return candleSeries;
+    }
+
+    private CandleSeries loadCandles(String figi, Instant from, Instant to) {
+        return marketDataArchive.getCandles(figi, from, to, (f, t) -> {
+            MarketDataService marketDataService = getInvestApi().getMarketDataService();
+            return marketDataService.getCandlesSync(figi, f, t, CandleInterval.CANDLE_INTERVAL_DAY);
+        });
+    }
+
+    private List<Dividend> loadDividends(String figi, Instant from, Instant to) {
+        return marketDataArchive.getDividends(figi, from, to, (f, t) -> {
+            InstrumentsService instrumentsService = getInvestApi().getInstrumentsService();
+            return instrumentsService.getDividendsSync(figi, f, t);
+        });
+    }
+
+    private Share loadShare(String figi) {
+        return marketDataArchive.getShare(figi, f -> getInvestApi().getInstrumentsService().getShareByFigiSync(f));
     }
 
     @Override
@@ -106,16 +248,12 @@ public class BacktestMarketService extends MarketServiceBase {
         if (position == null) {
             throw new RuntimeException("Shorts are not allowed");
         }
-        var price = totalPrice(figi, numberOfLots);
-        cash = cash.add(price);
-        return "fake sell order id";
-    }
-
-    private BigDecimal totalPrice(String figi, int numberOfLots) {
-        var lastPrice = getLastPricesSync(figi);
         var share = getShareByFigiSync(figi);
-        var numberOfShares = numberOfLots * share.getLot();
-        return MapperUtils.quotationToBigDecimal(lastPrice.getPrice()).multiply(BigDecimal.valueOf(numberOfShares));
+        cash += FixedPoint.times(FixedPoint.of(getLastPricesSync(figi).getPrice()), (long) numberOfLots * share.getLot());
+        if (Objects.equals(valuedAt, fakeNow))
+            sharesValue -= FixedPoint.times(positionPrices.remove(figi), position.getQuantity().getUnits());
+        portfolio = null;
+        return "fake sell order id";
     }
 
     @Override
@@ -124,8 +262,8 @@ public class BacktestMarketService extends MarketServiceBase {
         var lastPrice = getLastPricesSync(figi);
         var share = getShareByFigiSync(figi);
         var numberOfShares = numberOfLots * share.getLot();
-        var price = MapperUtils.quotationToBigDecimal(lastPrice.getPrice()).multiply(BigDecimal.valueOf(numberOfShares));
-        if (price.compareTo(cash) > 0) {
+        long price = FixedPoint.times(FixedPoint.of(lastPrice.getPrice()), numberOfShares);
+        if (price > cash) {
             throw new RuntimeException("Not enough cash");
         }
         if (portfolioPositions.containsKey(figi)) {
@@ -139,11 +277,14 @@ public class BacktestMarketService extends MarketServiceBase {
                 setInstrumentType("share").
                 setAveragePositionPrice(averagePrice).
                 setCurrentPrice(averagePrice).
-                setQuantity(MapperUtils.bigDecimalToQuotation(BigDecimal.valueOf(numberOfShares))).
-                setQuantityLots(MapperUtils.bigDecimalToQuotation(BigDecimal.valueOf(numberOfLots))).
+                setQuantity(Quotation.newBuilder().setUnits(numberOfShares)).
+                setQuantityLots(Quotation.newBuilder().setUnits(numberOfLots)).
                 build();
         portfolioPositions.put(figi, newPosition);
-        cash = cash.subtract(price);
+        cash -= price;
+        if (Objects.equals(valuedAt, fakeNow))
+            addPositionValue(newPosition);
+        portfolio = null;
         return "fake buy order id";
     }
 
@@ -158,15 +299,7 @@ public class BacktestMarketService extends MarketServiceBase {
 
     @Override
     public List<Dividend> getDividendsSync(String figi) {
-        List<Dividend> dividendList = historicalDividends.get(figi);
-        if (dividendList == null) {
-            Instant from = now();
-            Instant to = Instant.now();
-            InvestApi investApi = getInvestApi();
-            InstrumentsService instrumentsService = investApi.getInstrumentsService();
-            dividendList = instrumentsService.getDividendsSync(figi, from, to);
-            historicalDividends.put(figi, dividendList);
-        }
+        List<Dividend> dividendList = getHistoricalDividends(figi);
         List<Dividend> result = new ArrayList<>();
         long fakeNowEpochSecond = fakeNow.getEpochSecond();
         for (Dividend div: dividendList) {
@@ -178,24 +311,64 @@ public class BacktestMarketService extends MarketServiceBase {
         return result;
     }
 
+    private List<Dividend> getHistoricalDividends(String figi) {
+        List<Dividend> dividendList = historicalDividends.get(figi);
+        if (dividendList == null) {
+            dividendList = loadDividends(figi, now(), Instant.now());
+            historicalDividends.put(figi, dividendList);
+        }
+        return dividendList;
+    }
+
+    /**
+     * Intervals between declared date and last buy date of all historical dividends of @figis.
+     * @{@link #getDividendsSync} returns a dividend only strictly inside its interval
+     * @param figis figis of the shares
+     * @return intervals as pairs of epoch seconds {declaredDate, lastBuyDate}
+     */
+    List<long[]> getDividendWindows(Collection<String> figis) {
+        var windows = new ArrayList<long[]>();
+        for (String figi : figis) {
+            try {
+                for (Dividend dividend : getHistoricalDividends(figi)) {
+                    windows.add(new long[]{dividend.getDeclaredDate().getSeconds(), dividend.getLastBuyDate().getSeconds()});
+                }
+            } catch (Exception e) {
+                // the strategy cannot find dividend ideas for this figi either
+                log.error("Failed to load dividends for figi=" + figi, e);
+            }
+        }
+        return windows;
+    }
+
+    public boolean hasOpenPositions() {
+        return !portfolioPositions.isEmpty();
+    }
+
     @Override
     public Share getShareByFigiSync(String figi) {
         Share share = sharesMap.get(figi);
         if (share == null) {
-            share= getInvestApi().getInstrumentsService().getShareByFigiSync(figi);
+            share = loadShare(figi);
             sharesMap.put(figi, share);
         }
         return share;
     }
 
+    /**
+     * Token is not required if all historical data is taken from offline archive
+     */
+    @Override
+    public String validateToken() {
+        if (marketDataArchive != null && marketDataArchive.isOffline()) return null;
+        return super.validateToken();
+    }
+
     @Override
     protected InvestApi getInvestApi() {
         if (token == null || token.isBlank()){
             throw new IllegalArgumentException("Token is not valid, please check configuration in src/main/resources/application.yaml");
         }
-        if (investApi == null) {
-            investApi = InvestApi.createSandbox(token);
-        }
-        return investApi;
+        return investApiRegistry.get(InvestApiRegistry.Endpoint.SANDBOX);
     }
 }
@@ -0,0 +1,153 @@
+package org.zaretkim.dividendsrobot.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+import org.zaretkim.dividendsrobot.model.SweepResult;
+
+import javax.annotation.PreDestroy;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs backtests for every combination of strategy parameters in parallel on one shared pool. All backtests share one
+ * immutable set of historical data, every backtest has its own strategy and portfolio. Grids larger than
+ * @maxGridSize are rejected. Sweeps requested by users are executed as jobs of @{@link BacktestJobService}
+ */
+@Service
+@Slf4j
+public class BacktestSweepService {
+    private final PreDividendsStrategyService preDividendsStrategyService;
+    private final BacktestMarketService backtestMarketService;
+    private final MeterRegistry meterRegistry;
+    private final int maxGridSize;
+    private final ExecutorService executor;
+
+    public BacktestSweepService(PreDividendsStrategyService preDividendsStrategyService,
+                                BacktestMarketService backtestMarketService,
+                                MeterRegistry meterRegistry,
+                                @Value("${app.config.backtest-jobs.sweep-threads}") int threads,
+                                @Value("${app.config.backtest-jobs.max-sweep-size}") int maxGridSize) {
+        this.preDividendsStrategyService = preDividendsStrategyService;
+        this.backtestMarketService = backtestMarketService;
+        this.meterRegistry = meterRegistry;
+        this.maxGridSize = maxGridSize;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            var thread = new Thread(r, "backtest-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Checks that the grid is not empty and not larger than @maxGridSize
+     * @return number of backtests of the grid
+     * @throws IllegalArgumentException if the grid is empty or too large
+     */
+    public int checkGridSize(List<Double> minDividendYields, List<Double> sufficientProfits, List<Double> maxPositionPercentages) {
+        long size = (long) minDividendYields.size() * sufficientProfits.size() * maxPositionPercentages.size();
+        if (size == 0)
+            throw new IllegalArgumentException("Sweep has no parameter values");
+        if (size > maxGridSize)
+            throw new IllegalArgumentException("Sweep has " + size + " backtests, at most " + maxGridSize + " are allowed");
+        return (int) size;
+    }
+
+    /**
+     * Runs backtest for the last @days days for every combination of parameters with current strategy configuration
+     * @param days number of days to run, backtest ends today
+     * @param minDividendYields values for min-dividend-yield
+     * @param sufficientProfits values for sufficient-profit
+     * @param maxPositionPercentages values for max-position-percentage
+     * @return results sorted from the best final funds to the worst
+     */
+    public List<SweepResult> sweep(int days, List<Double> minDividendYields, List<Double> sufficientProfits, List<Double> maxPositionPercentages) {
+        return sweep(preDividendsStrategyService.copy(), days, minDividendYields, sufficientProfits, maxPositionPercentages, backtestsDone -> {});
+    }
+
+    /**
+     * Same as @{@link #sweep(int, List, List, List)} but copies parameters from @template and reports progress.
+     * Backtests of the grid are cancelled when the calling thread is interrupted
+     * @param progress receives number of finished backtests, it is called from the threads of the pool
+     * @throws CancellationException if the calling thread is interrupted
+     */
+    List<SweepResult> sweep(PreDividendsStrategyService template, int days, List<Double> minDividendYields,
+                            List<Double> sufficientProfits, List<Double> maxPositionPercentages, IntConsumer progress) {
+        checkGridSize(minDividendYields, sufficientProfits, maxPositionPercentages);
+        Instant start = RobotRunner.backtestStart(days);
+        String allowedFigis = template.getAllowedFigis();
+        BacktestMarketData marketData = backtestMarketService.loadMarketData(List.of(allowedFigis.split("\\s+")), start);
+
+        var done = new AtomicInteger();
+        var futures = new ArrayList<Future<SweepResult>>();
+        var results = new ArrayList<SweepResult>();
+        try {
+            for (double minDividendYield : minDividendYields) {
+                for (double sufficientProfit : sufficientProfits) {
+                    for (double maxPositionPercentage : maxPositionPercentages) {
+                        futures.add(executor.submit(() -> {
+                            try {
+                                return runBacktest(template, marketData, start, days, allowedFigis, minDividendYield, sufficientProfit, maxPositionPercentage);
+                            } finally {
+                                progress.accept(done.incrementAndGet());
+                            }
+                        }));
+                    }
+                }
+            }
+            for (Future<SweepResult> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Sweep is interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Sweep failed", e.getCause());
+        } finally {
+            for (Future<SweepResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+        results.sort(Comparator.comparing(SweepResult::getFinalFunds, Comparator.nullsLast(Comparator.reverseOrder())));
+        return results;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private SweepResult runBacktest(PreDividendsStrategyService template, BacktestMarketData marketData, Instant start, int backDays,
+                                    String allowedFigis, double minDividendYield, double sufficientProfit, double maxPositionPercentage) {
+        var marketService = backtestMarketService.createRun(marketData);
+        var strategy = template.copy();
+        strategy.setMarketService(new MeteredMarketService(marketService, meterRegistry, "backtest"));
+        strategy.setAllowedFigis(allowedFigis);
+        strategy.setMinDividendYield(minDividendYield);
+        strategy.setSufficientProfit(sufficientProfit);
+        strategy.setMaxPositionPercentage(maxPositionPercentage);
+
+        BigDecimal initialFunds = strategy.totalAmountOfFunds(marketService.getPortfolio());
+        try {
+            RobotRunner.runBacktestDays(strategy, marketService, start, backDays, meterRegistry);
+        } catch (Throwable t) {
+            log.info(t.getMessage(), t);
+            return new SweepResult(minDividendYield, sufficientProfit, maxPositionPercentage, initialFunds, null, null, t.getMessage());
+        }
+        BigDecimal finalFunds = strategy.totalAmountOfFunds(marketService.getPortfolio());
+        BigDecimal yield = RobotRunner.yieldInPercents(initialFunds, finalFunds);
+        return new SweepResult(minDividendYield, sufficientProfit, maxPositionPercentage, initialFunds, finalFunds, yield, null);
+    }
+}
@@ -0,0 +1,40 @@
+package org.zaretkim.dividendsrobot.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Starts asynchronous calls for many items keeping at most @maxConcurrency calls in flight
+ */
+public final class FanOut {
+    private FanOut() {
+    }
+
+    /**
+     * Starts @call for every item. Blocks the calling thread while @maxConcurrency calls are in flight
+     * @param items items to process
+     * @param maxConcurrency maximal number of calls in flight
+     * @param call asynchronous call for one item
+     * @return futures in the order of @items. Failure of one call does not affect others
+     */
+    public static <T, R> List<CompletableFuture<R>> start(Collection<T> items, int maxConcurrency, Function<T, CompletableFuture<R>> call) {
+        var semaphore = new Semaphore(Math.max(1, maxConcurrency));
+        var futures = new ArrayList<CompletableFuture<R>>(items.size());
+        for (T item : items) {
+            semaphore.acquireUninterruptibly();
+            CompletableFuture<R> future;
+            try {
+                future = call.apply(item);
+            } catch (Throwable t) {
+                future = CompletableFuture.failedFuture(t);
+            }
+            future.whenComplete((r, t) -> semaphore.release());
+            futures.add(future);
+        }
+        return futures;
+    }
+}
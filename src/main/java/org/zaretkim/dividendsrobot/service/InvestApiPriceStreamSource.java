@@ -0,0 +1,49 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import org.zaretkim.dividendsrobot.marketdata.PriceStreamSource;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.core.stream.MarketDataSubscriptionService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * PriceStreamSource implementation based on market data stream of the exchange. Sandbox token is not accepted
+ * by the real endpoint, so the stream is opened on the endpoint of the running robot
+ */
+@Component
+@RequiredArgsConstructor
+public class InvestApiPriceStreamSource implements PriceStreamSource {
+    private final InvestApiRegistry investApiRegistry;
+
+    @Override
+    public PriceStream open(boolean sandbox, Consumer<LastPrice> onPrice, Consumer<Throwable> onError) {
+        var endpoint = sandbox ? InvestApiRegistry.Endpoint.SANDBOX : InvestApiRegistry.Endpoint.REAL;
+        var streamService = investApiRegistry.get(endpoint).getMarketDataStreamService();
+        MarketDataSubscriptionService subscription = streamService.newStream("prices-" + UUID.randomUUID(), response -> {
+            if (response.hasLastPrice())
+                onPrice.accept(response.getLastPrice());
+        }, onError);
+
+        return new PriceStream() {
+            @Override
+            public void subscribe(Collection<String> figis) {
+                subscription.subscribeLastPrices(new ArrayList<>(figis));
+            }
+
+            @Override
+            public void unsubscribe(Collection<String> figis) {
+                subscription.unsubscribeLastPrices(new ArrayList<>(figis));
+            }
+
+            @Override
+            public void close() {
+                subscription.cancel();
+            }
+        };
+    }
+}
@@ -0,0 +1,263 @@
+package org.zaretkim.dividendsrobot.service;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.stub.MetadataUtils;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.core.InvestApi;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps gRPC channels to the exchange shared by all market services. Every endpoint has a small pool of channels
+ * with keepalive, @{@link InvestApi} instances over them are returned in round-robin order. Channels are connected
+ * when the application is ready, so the first robot step does not pay for TLS handshake, and closed on shutdown.
+ * Unary calls of every endpoint are limited and retried by @{@link RateLimitInterceptor}, number of retries is
+ * exposed as a metric
+ */
+@Component
+@Slf4j
+public class InvestApiRegistry implements MeterBinder {
+    private static final int MAX_INBOUND_MESSAGE_SIZE = 16 * 1024 * 1024;
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(5);
+    private static final Metadata.Key<String> AUTHORIZATION_HEADER = Metadata.Key.of("Authorization", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> APP_NAME_HEADER = Metadata.Key.of("x-app-name", Metadata.ASCII_STRING_MARSHALLER);
+
+    public enum Endpoint {
+        /**
+         * real exchange, used by @{@link RealMarketService}
+         */
+        REAL,
+        /**
+         * sandbox, used by @{@link SandboxMarketService} and to load history for @{@link BacktestMarketService}
+         */
+        SANDBOX
+    }
+
+    @Setter
+    @Value("${app.config.token}")
+    private String token;
+    @Value("${app.config.appname}")
+    private String appname;
+    @Value("${app.config.channels.real-target}")
+    private String realTarget = "invest-public-api.tinkoff.ru:443";
+    @Value("${app.config.channels.sandbox-target}")
+    private String sandboxTarget = "sandbox-invest-public-api.tinkoff.ru:443";
+    @Setter
+    @Value("${app.config.channels.pool-size}")
+    private int poolSize = 1;
+    @Value("${app.config.channels.keepalive-time}")
+    private Duration keepAliveTime = Duration.ofSeconds(30);
+    @Value("${app.config.channels.request-timeout}")
+    private Duration requestTimeout = Duration.ofSeconds(60);
+    @Setter
+    @Value("${app.config.channels.warm-up}")
+    private boolean warmUp = true;
+    @Setter
+    @Value("${app.config.rate-limits.enabled}")
+    private boolean rateLimitsEnabled = true;
+    @Value("${app.config.rate-limits.limits}")
+    private String rateLimits = "UsersService:100 InstrumentsService:200 MarketDataService:300 OperationsService:200 OrdersService:100 StopOrdersService:50 SandboxService:200";
+    @Value("${app.config.rate-limits.default-limit}")
+    private int defaultRateLimit = 100;
+    @Value("${app.config.rate-limits.max-attempts}")
+    private int maxAttempts = 5;
+    @Value("${app.config.rate-limits.initial-backoff}")
+    private Duration initialBackoff = Duration.ofMillis(200);
+    @Value("${app.config.rate-limits.max-backoff}")
+    private Duration maxBackoff = Duration.ofSeconds(10);
+
+    private final Map<Endpoint, List<InvestApi>> apis = new EnumMap<>(Endpoint.class);
+    private final List<ManagedChannel> channels = new ArrayList<>();
+    private final Map<Endpoint, RateLimitInterceptor> rateLimiters = new EnumMap<>(Endpoint.class);
+    private ScheduledExecutorService retryScheduler;
+    private final AtomicInteger next = new AtomicInteger();
+    private boolean closed = false;
+
+    /**
+     * @param endpoint endpoint of the exchange
+     * @return api over one of the shared channels to the endpoint, channels are created on the first call
+     */
+    public InvestApi get(Endpoint endpoint) {
+        List<InvestApi> pool;
+        synchronized (apis) {
+            if (closed) throw new IllegalStateException("Channels to the exchange are closed");
+            pool = apis.get(endpoint);
+            if (pool == null) {
+                pool = createPool(endpoint);
+                apis.put(endpoint, pool);
+            }
+        }
+        return pool.get(Math.floorMod(next.getAndIncrement(), pool.size()));
+    }
+
+    /**
+     * @return number of opened channels
+     */
+    public int getChannelCount() {
+        synchronized (apis) {
+            return channels.size();
+        }
+    }
+
+    /**
+     * @param endpoint endpoint of the exchange
+     * @return rate limiter of the endpoint or null if it is disabled or channels to the endpoint are not created yet
+     */
+    public RateLimitInterceptor getRateLimiter(Endpoint endpoint) {
+        synchronized (apis) {
+            return rateLimiters.get(endpoint);
+        }
+    }
+
+    /**
+     * Registers counter of retried calls for every endpoint
+     */
+    @Override
+    public void bindTo(MeterRegistry meterRegistry) {
+        for (Endpoint endpoint : Endpoint.values()) {
+            FunctionCounter.builder("dividendsrobot.exchange.retries", this, registry -> {
+                        var rateLimiter = registry.getRateLimiter(endpoint);
+                        return rateLimiter == null ? 0 : rateLimiter.getRetries();
+                    }).
+                    description("Calls to the exchange repeated after RESOURCE_EXHAUSTED or UNAVAILABLE").
+                    tag("endpoint", endpoint.name().toLowerCase()).
+                    register(meterRegistry);
+        }
+    }
+
+    /**
+     * Creates channels to all endpoints and starts connecting them in background
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        if (!warmUp || token == null || token.isBlank()) return;
+        for (Endpoint endpoint : Endpoint.values()) {
+            try {
+                get(endpoint);
+            } catch (Throwable t) {
+                log.info("Could not warm up channels to {}: {}", endpoint, t.getMessage());
+            }
+        }
+        synchronized (apis) {
+            for (ManagedChannel channel : channels) {
+                channel.getState(true);
+            }
+        }
+        log.info("Connecting {} channels to the exchange", getChannelCount());
+    }
+
+    @PreDestroy
+    public void close() {
+        List<ManagedChannel> toClose;
+        synchronized (apis) {
+            closed = true;
+            toClose = new ArrayList<>(channels);
+            channels.clear();
+            apis.clear();
+            rateLimiters.clear();
+            if (retryScheduler != null) retryScheduler.shutdownNow();
+        }
+        for (ManagedChannel channel : toClose) {
+            channel.shutdown();
+        }
+        for (ManagedChannel channel : toClose) {
+            try {
+                if (!channel.awaitTermination(SHUTDOWN_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS))
+                    channel.shutdownNow();
+            } catch (InterruptedException e) {
+                channel.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private List<InvestApi> createPool(Endpoint endpoint) {
+        if (token == null || token.isBlank())
+            throw new IllegalArgumentException("Token is not valid. Please, check configuration in src/main/resources/application.yaml");
+        var rateLimiter = createRateLimiter(endpoint);
+        var pool = new ArrayList<InvestApi>();
+        for (int i = 0; i < Math.max(1, poolSize); i++) {
+            var channel = createChannel(endpoint == Endpoint.REAL ? realTarget : sandboxTarget, rateLimiter);
+            channels.add(channel);
+            pool.add(endpoint == Endpoint.REAL ? InvestApi.create(channel) : InvestApi.createSandbox(channel));
+        }
+        log.info("Created {} channels to {}", pool.size(), endpoint);
+        return List.copyOf(pool);
+    }
+
+    private RateLimitInterceptor createRateLimiter(Endpoint endpoint) {
+        if (!rateLimitsEnabled) return null;
+        if (retryScheduler == null) {
+            retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "rate-limit");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        var rateLimiter = new RateLimitInterceptor(RateLimitInterceptor.parseLimits(rateLimits), defaultRateLimit,
+                maxAttempts, initialBackoff, maxBackoff, retryScheduler);
+        rateLimiters.put(endpoint, rateLimiter);
+        return rateLimiter;
+    }
+
+    private ManagedChannel createChannel(String target, RateLimitInterceptor rateLimiter) {
+        var headers = new Metadata();
+        headers.put(AUTHORIZATION_HEADER, "Bearer " + token);
+        if (appname != null && !appname.isBlank())
+            headers.put(APP_NAME_HEADER, appname);
+        // interceptors are called from the last one: deadline is set for the whole call, then attempts are limited
+        var interceptors = new ArrayList<ClientInterceptor>();
+        interceptors.add(MetadataUtils.newAttachHeadersInterceptor(headers));
+        if (rateLimiter != null) interceptors.add(rateLimiter);
+        interceptors.add(new TimeoutInterceptor(requestTimeout));
+        return ManagedChannelBuilder.forTarget(target).
+                useTransportSecurity().
+                keepAliveTime(keepAliveTime.toMillis(), TimeUnit.MILLISECONDS).
+                keepAliveWithoutCalls(true).
+                maxInboundMessageSize(MAX_INBOUND_MESSAGE_SIZE).
+                intercept(interceptors).
+                build();
+    }
+
+    /**
+     * Sets deadline for calls without their own deadline, streams are not limited
+     */
+    private static class TimeoutInterceptor implements ClientInterceptor {
+        private final Duration timeout;
+
+        TimeoutInterceptor(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public <Q, S> ClientCall<Q, S> interceptCall(MethodDescriptor<Q, S> method, CallOptions callOptions, Channel next) {
+            if (method.getType() == MethodDescriptor.MethodType.UNARY && callOptions.getDeadline() == null)
+                callOptions = callOptions.withDeadlineAfter(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return next.newCall(method, callOptions);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.zaretkim.dividendsrobot.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+
+/**
+ * Keeps the max-concurrent-requests setting for services which send many market requests at once.
+ * Asynchronous calls are limited by @{@link FanOut}, blocking calls run on one bounded pool shared by all services,
+ * so concurrent backtests and warm-up together do not exceed the limit
+ */
+@Component
+public class MarketRequestExecutor {
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+    private final int maxConcurrentRequests;
+    private ExecutorService executor;
+    private boolean closed = false;
+
+    public MarketRequestExecutor(@Value("${app.config.max-concurrent-requests:8}") int maxConcurrentRequests) {
+        this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    /**
+     * Starts asynchronous @call for every item using @{@link FanOut}, at most @maxConcurrentRequests at once
+     * @return futures in the order of @items
+     */
+    public <T, R> List<CompletableFuture<R>> fanOut(Collection<T> items, Function<T, CompletableFuture<R>> call) {
+        return FanOut.start(items, maxConcurrentRequests, call);
+    }
+
+    /**
+     * Runs blocking @call for every item on the shared pool
+     * @param items items to process
+     * @param call blocking call for one item
+     * @return futures in the order of @items. Failure of one call does not affect others
+     */
+    public <T, R> List<CompletableFuture<R>> supplyAll(Collection<T> items, Function<T, R> call) {
+        var executor = executor();
+        var futures = new ArrayList<CompletableFuture<R>>(items.size());
+        for (T item : items) {
+            futures.add(CompletableFuture.supplyAsync(() -> call.apply(item), executor));
+        }
+        return futures;
+    }
+
+    /**
+     * Runs blocking @task on the shared pool
+     */
+    public CompletableFuture<Void> runAsync(Runnable task) {
+        return CompletableFuture.runAsync(task, executor());
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        closed = true;
+        if (executor != null) executor.shutdownNow();
+    }
+
+    private synchronized ExecutorService executor() {
+        if (closed) throw new RejectedExecutionException("Market request executor is shut down");
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(maxConcurrentRequests, r -> {
+                var thread = new Thread(r, "market-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+}
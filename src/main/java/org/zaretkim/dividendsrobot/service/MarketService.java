@@ -3,12 +3,17 @@ package org.zaretkim.dividendsrobot.service;
 import ru.tinkoff.piapi.contract.v1.*;
 
 import java.time.Instant;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Provides basic exchange operations required for pre-dividends strategy
+ * Provides basic exchange operations required for pre-dividends strategy.
+ * Asynchronous operations by default execute blocking ones in the calling thread,
+ * implementations talking to the exchange override them with really asynchronous calls
  */
-public interface MarketService {
+public interface MarketService extends AsyncMarketService {
     /**
      * Get current portfolio
      * @return current portfolio
@@ -42,6 +47,13 @@ public interface MarketService {
      */
     LastPrice getLastPricesSync(String figi);
 
+    /**
+     * Get last prices for several shares with one request
+     * @param figis figis of the shares for which prices are requested
+     * @return last prices by figi. Figis without known price are absent in the result
+     */
+    Map<String, LastPrice> getLastPrices(Collection<String> figis);
+
     /**
      * Get current time. Usually equals to "Instant.now()' except for services emulating back tests
      * @return current time
@@ -76,9 +88,53 @@ public interface MarketService {
      */
     void cancelOrder(String orderId);
 
+    /**
+     * Get state of the order. By default the order is searched among active orders, services which
+     * execute orders immediately do not keep them
+     * @param orderId id of the order returned by @sellMarket or @buyMarket
+     * @return state of the order or null if the order is already executed and its state is not kept
+     */
+    default OrderState getOrderStateSync(String orderId) {
+        for (OrderState orderState : getOrders()) {
+            if (orderState.getOrderId().equals(orderId))
+                return orderState;
+        }
+        return null;
+    }
+
     /**
      * Validates token for this service
      * @return null if token is valid or error message for invalid token
      */
     String validateToken();
+
+    @Override
+    default CompletableFuture<Share> getShareByFigiAsync(String figi) {
+        return AsyncMarketService.completed(() -> getShareByFigiSync(figi));
+    }
+
+    @Override
+    default CompletableFuture<List<Dividend>> getDividendsAsync(String figi) {
+        return AsyncMarketService.completed(() -> getDividendsSync(figi));
+    }
+
+    @Override
+    default CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis) {
+        return AsyncMarketService.completed(() -> getLastPrices(figis));
+    }
+
+    @Override
+    default CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots) {
+        return AsyncMarketService.completed(() -> sellMarket(figi, numberOfLots));
+    }
+
+    @Override
+    default CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots) {
+        return AsyncMarketService.completed(() -> buyMarket(figi, numberOfLots));
+    }
+
+    @Override
+    default CompletableFuture<OrderState> getOrderStateAsync(String orderId) {
+        return AsyncMarketService.completed(() -> getOrderStateSync(orderId));
+    }
 }
@@ -1,7 +1,11 @@
 package org.zaretkim.dividendsrobot.service;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.zaretkim.dividendsrobot.marketdata.DividendCache;
+import org.zaretkim.dividendsrobot.marketdata.PriceBoard;
+import org.zaretkim.dividendsrobot.marketdata.ShareCache;
 import ru.tinkoff.piapi.contract.v1.Dividend;
 import ru.tinkoff.piapi.contract.v1.LastPrice;
 import ru.tinkoff.piapi.contract.v1.Share;
@@ -10,7 +14,12 @@ import ru.tinkoff.piapi.core.InvestApi;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Common operations for @{@link RealMarketService} and @{@link SandboxMarketService}
@@ -19,25 +28,95 @@ import java.util.List;
 public abstract class MarketServiceBase implements MarketService {
     @Value("${app.config.token}")
     protected String token;
+    @Autowired
+    protected ShareCache shareCache;
+    @Autowired
+    protected PriceBoard priceBoard;
+    @Autowired
+    protected InvestApiRegistry investApiRegistry;
+    @Autowired
+    protected DividendCache dividendCache;
 
 
     protected abstract InvestApi getInvestApi();
     @Override
     public List<Dividend> getDividendsSync(String figi) {
+        List<Dividend> cached = getCachedDividends(figi);
+        if (cached != null) return cached;
         Instant from = now();
         Instant to = from.plus(30, ChronoUnit.DAYS);
         InvestApi investApi = getInvestApi();
         InstrumentsService instrumentsService = investApi.getInstrumentsService();
-        return instrumentsService.getDividendsSync(figi, from, to);
+        return cacheDividends(figi, instrumentsService.getDividendsSync(figi, from, to));
+    }
+
+    @Override
+    public CompletableFuture<List<Dividend>> getDividendsAsync(String figi) {
+        List<Dividend> cached = getCachedDividends(figi);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        Instant from = now();
+        Instant to = from.plus(30, ChronoUnit.DAYS);
+        return requestDividends(figi, from, to).thenApply(dividends -> cacheDividends(figi, dividends));
+    }
+
+    /**
+     * Requests dividends from the exchange, the cache is not used
+     */
+    protected CompletableFuture<List<Dividend>> requestDividends(String figi, Instant from, Instant to) {
+        return getInvestApi().getInstrumentsService().getDividends(figi, from, to);
+    }
+
+    private List<Dividend> getCachedDividends(String figi) {
+        return dividendCache == null ? null : dividendCache.get(figi);
+    }
+
+    private List<Dividend> cacheDividends(String figi, List<Dividend> dividends) {
+        if (dividendCache != null) dividendCache.put(figi, dividends);
+        return dividends;
     }
 
     @Override
     public Share getShareByFigiSync(String figi) {
-        return getInvestApi().getInstrumentsService().getShareByFigiSync(figi);
+        preloadSharesIfNeeded();
+        return shareCache.getOrLoad(figi, f -> getInvestApi().getInstrumentsService().getShareByFigiSync(f));
+    }
+
+    @Override
+    public CompletableFuture<Share> getShareByFigiAsync(String figi) {
+        preloadSharesIfNeeded();
+        Share share = shareCache.get(figi);
+        if (share != null) return CompletableFuture.completedFuture(share);
+        return requestShare(figi).thenApply(loadedShare -> {
+            shareCache.put(loadedShare);
+            return loadedShare;
+        });
+    }
+
+    /**
+     * Requests share from the exchange, the cache is not used
+     */
+    protected CompletableFuture<Share> requestShare(String figi) {
+        return getInvestApi().getInstrumentsService().getShareByFigi(figi);
+    }
+
+    /**
+     * Fills share cache with all shares using one request if cache is configured for preloading
+     */
+    public void preloadSharesIfNeeded() {
+        if (!shareCache.needsPreload()) return;
+        try {
+            shareCache.putAll(getInvestApi().getInstrumentsService().getAllSharesSync());
+        } catch (Exception e) {
+            log.info("Could not preload shares", e);
+            // do not retry bulk request on every lookup, shares are loaded one by one until the next preload
+            shareCache.putAll(List.of());
+        }
     }
 
     @Override
     public LastPrice getLastPricesSync(String figi) {
+        LastPrice streamedPrice = getStreamedPrice(figi);
+        if (streamedPrice != null) return streamedPrice;
         List<LastPrice> lastPrices = getInvestApi().getMarketDataService().getLastPricesSync(List.of(figi));
         if (lastPrices.size() == 0) {
             log.info("Could not get last prices for " + figi);
@@ -46,6 +125,60 @@ public abstract class MarketServiceBase implements MarketService {
         return lastPrices.get(0);
     }
 
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        var result = new HashMap<String, LastPrice>();
+        var missingFigis = takeStreamedPrices(figis, result);
+        if (missingFigis.isEmpty()) return result;
+        for (LastPrice lastPrice : getInvestApi().getMarketDataService().getLastPricesSync(missingFigis)) {
+            result.put(lastPrice.getFigi(), lastPrice);
+        }
+        if (result.size() < figis.size()) {
+            log.info("Could not get last prices for some of " + figis);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis) {
+        var result = new HashMap<String, LastPrice>();
+        var missingFigis = takeStreamedPrices(figis, result);
+        if (missingFigis.isEmpty()) return CompletableFuture.completedFuture(result);
+        return getInvestApi().getMarketDataService().getLastPrices(missingFigis).thenApply(lastPrices -> {
+            for (LastPrice lastPrice : lastPrices) {
+                result.put(lastPrice.getFigi(), lastPrice);
+            }
+            return result;
+        });
+    }
+
+    private LastPrice getStreamedPrice(String figi) {
+        return priceBoard == null ? null : priceBoard.get(figi);
+    }
+
+    /**
+     * Puts prices available on @{@link PriceBoard} to @result
+     * @return figis without streamed price which have to be requested
+     */
+    private List<String> takeStreamedPrices(Collection<String> figis, Map<String, LastPrice> result) {
+        var missingFigis = new ArrayList<String>();
+        for (String figi : figis) {
+            LastPrice streamedPrice = getStreamedPrice(figi);
+            if (streamedPrice != null)
+                result.put(figi, streamedPrice);
+            else
+                missingFigis.add(figi);
+        }
+        return missingFigis;
+    }
+
+    /**
+     * @return true if token is configured, it is not checked by the exchange
+     */
+    public boolean hasToken() {
+        return token != null && !token.isBlank();
+    }
+
     @Override
     public String validateToken() {
         if (token == null || token.isEmpty())
@@ -0,0 +1,27 @@
+package org.zaretkim.dividendsrobot.service;
+
+/**
+ * Base class for @{@link MarketService} implementations which add behaviour around another market service
+ */
+public abstract class MarketServiceDecorator implements MarketService {
+    protected final MarketService delegate;
+
+    protected MarketServiceDecorator(MarketService delegate) {
+        this.delegate = delegate;
+    }
+
+    public MarketService getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @param marketService market service, possibly wrapped into decorators
+     * @return innermost market service
+     */
+    public static MarketService unwrap(MarketService marketService) {
+        while (marketService instanceof MarketServiceDecorator) {
+            marketService = ((MarketServiceDecorator) marketService).getDelegate();
+        }
+        return marketService;
+    }
+}
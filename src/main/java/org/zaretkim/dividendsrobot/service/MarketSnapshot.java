@@ -0,0 +1,206 @@
+package org.zaretkim.dividendsrobot.service;
+
+import ru.tinkoff.piapi.contract.v1.*;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * MarketService for one strategy step. Loads every share, dividends list and last price at most once
+ * and serves repeated requests from memory, so all decisions of the step see the same data.
+ * Concurrent identical requests share one request to the underlying service. Failed requests are not remembered.
+ * Orders and portfolio requests are passed to the underlying service as is
+ */
+public class MarketSnapshot implements MarketService {
+    private final MarketService marketService;
+    private final Instant now;
+    private final ConcurrentHashMap<String, CompletableFuture<Share>> shares = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<List<Dividend>>> dividends = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<LastPrice>> lastPrices = new ConcurrentHashMap<>();
+
+    public MarketSnapshot(MarketService marketService) {
+        this.marketService = marketService;
+        this.now = marketService.now();
+    }
+
+    @Override
+    public PortfolioResponse getPortfolio() {
+        return marketService.getPortfolio();
+    }
+
+    @Override
+    public boolean isWorkingHours() {
+        return marketService.isWorkingHours();
+    }
+
+    @Override
+    public Share getShareByFigiSync(String figi) {
+        return join(getShareByFigiAsync(figi));
+    }
+
+    @Override
+    public CompletableFuture<Share> getShareByFigiAsync(String figi) {
+        return singleFlight(shares, figi, marketService::getShareByFigiAsync);
+    }
+
+    @Override
+    public List<Dividend> getDividendsSync(String figi) {
+        return join(getDividendsAsync(figi));
+    }
+
+    @Override
+    public CompletableFuture<List<Dividend>> getDividendsAsync(String figi) {
+        return singleFlight(dividends, figi, marketService::getDividendsAsync);
+    }
+
+    @Override
+    public LastPrice getLastPricesSync(String figi) {
+        return getLastPrices(List.of(figi)).get(figi);
+    }
+
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        return join(getLastPricesAsync(figis));
+    }
+
+    /**
+     * Requests prices absent in the snapshot with one batched request
+     */
+    @Override
+    public CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis) {
+        var futures = new HashMap<String, CompletableFuture<LastPrice>>();
+        var batch = new CompletableFuture<Map<String, LastPrice>>();
+        var claimedFigis = new ArrayList<String>();
+        for (String figi : figis) {
+            var future = lastPrices.get(figi);
+            if (future == null) {
+                var created = batch.thenApply(prices -> prices.get(figi));
+                future = lastPrices.putIfAbsent(figi, created);
+                if (future == null) {
+                    future = created;
+                    claimedFigis.add(figi);
+                    created.whenComplete((r, t) -> {
+                        if (t != null) lastPrices.remove(figi, created);
+                    });
+                }
+            }
+            futures.put(figi, future);
+        }
+        if (!claimedFigis.isEmpty()) {
+            CompletableFuture<Map<String, LastPrice>> response;
+            try {
+                response = marketService.getLastPricesAsync(claimedFigis);
+            } catch (Throwable t) {
+                response = CompletableFuture.failedFuture(t);
+            }
+            response.whenComplete((prices, t) -> {
+                if (t != null) batch.completeExceptionally(t);
+                else batch.complete(prices);
+            });
+        }
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).thenApply(v -> {
+            var result = new HashMap<String, LastPrice>();
+            futures.forEach((figi, future) -> {
+                var lastPrice = future.join();
+                if (lastPrice != null) result.put(figi, lastPrice);
+            });
+            return result;
+        });
+    }
+
+    /**
+     * @return time of the snapshot creation
+     */
+    @Override
+    public Instant now() {
+        return now;
+    }
+
+    @Override
+    public String sellMarket(String figi, int numberOfLots) {
+        return marketService.sellMarket(figi, numberOfLots);
+    }
+
+    @Override
+    public CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots) {
+        return marketService.sellMarketAsync(figi, numberOfLots);
+    }
+
+    @Override
+    public String buyMarket(String figi, int numberOfLots) {
+        return marketService.buyMarket(figi, numberOfLots);
+    }
+
+    @Override
+    public CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots) {
+        return marketService.buyMarketAsync(figi, numberOfLots);
+    }
+
+    @Override
+    public List<OrderState> getOrders() {
+        return marketService.getOrders();
+    }
+
+    @Override
+    public void cancelOrder(String orderId) {
+        marketService.cancelOrder(orderId);
+    }
+
+    @Override
+    public OrderState getOrderStateSync(String orderId) {
+        return marketService.getOrderStateSync(orderId);
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderStateAsync(String orderId) {
+        return marketService.getOrderStateAsync(orderId);
+    }
+
+    @Override
+    public String validateToken() {
+        return marketService.validateToken();
+    }
+
+    private static <T> CompletableFuture<T> singleFlight(ConcurrentHashMap<String, CompletableFuture<T>> cache, String figi,
+                                                         Function<String, CompletableFuture<T>> request) {
+        var existing = cache.get(figi);
+        if (existing != null) return existing;
+        var future = new CompletableFuture<T>();
+        existing = cache.putIfAbsent(figi, future);
+        if (existing != null) return existing;
+        CompletableFuture<T> response;
+        try {
+            response = request.apply(figi);
+        } catch (Throwable t) {
+            response = CompletableFuture.failedFuture(t);
+        }
+        response.whenComplete((result, t) -> {
+            if (t != null) {
+                cache.remove(figi, future);
+                future.completeExceptionally(t);
+            } else {
+                future.complete(result);
+            }
+        });
+        return future;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads shares, upcoming dividends and the trading calendar for allowed figis into the caches when the application
+ * is ready, so the first /start, /status and /config requests do not wait for cold lookups. Figis are loaded
+ * in parallel through @{@link MarketRequestExecutor}. Until warm-up is finished the application is reported
+ * as not ready by @{@link WarmUpHealthIndicator}
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MarketWarmUpService {
+    private final RealMarketService realMarketService;
+    private final SandboxMarketService sandboxMarketService;
+    private final BacktestMarketService backtestMarketService;
+    private final PreDividendsStrategyService preDividendsStrategyService;
+    private final MarketRequestExecutor marketRequests;
+    @Setter
+    @Value("${app.config.warm-up.enabled}")
+    private boolean enabled = true;
+
+    private volatile boolean finished = false;
+    private volatile Duration duration;
+    private final AtomicInteger loaded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!enabled) {
+            finished = true;
+            return;
+        }
+        var thread = new Thread(this::warmUp, "market-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Loads data for allowed figis and waits until all of it is loaded. Errors are logged and counted,
+     * data which could not be loaded is requested later on demand
+     */
+    public void warmUp() {
+        long start = System.nanoTime();
+        try {
+            var figis = List.of(preDividendsStrategyService.getAllowedFigis().trim().split("\\s+"));
+            var tasks = new ArrayList<CompletableFuture<?>>();
+            MarketServiceBase marketService = realMarketService.hasAccount() ? realMarketService : sandboxMarketService;
+            if (marketService.hasToken()) {
+                if (marketService == realMarketService)
+                    tasks.add(count(marketRequests.runAsync(realMarketService::getTradingCalendar)));
+                tasks.addAll(marketRequests.fanOut(figis, figi -> count(marketService.getShareByFigiAsync(figi))));
+                tasks.addAll(marketRequests.fanOut(figis, figi -> count(marketService.getDividendsAsync(figi))));
+            }
+            if (backtestMarketService.validateToken() == null) {
+                for (var share : loadBacktestShares(figis)) {
+                    tasks.add(count(share));
+                }
+            }
+            for (var task : tasks) {
+                try {
+                    task.join();
+                } catch (Throwable ignored) {
+                    // counted and logged by @count
+                }
+            }
+        } catch (Throwable t) {
+            log.info("Warm-up failed", t);
+        } finally {
+            duration = Duration.ofNanos(System.nanoTime() - start);
+            finished = true;
+            log.info("Warm-up finished in {} ms: {} loaded, {} failed", duration.toMillis(), loaded.get(), failed.get());
+        }
+    }
+
+    /**
+     * Loads shares used by backtests and /config validation in parallel
+     * @param figis figis of the shares
+     * @return futures in the order of @figis
+     */
+    public List<CompletableFuture<Share>> loadBacktestShares(Collection<String> figis) {
+        return marketRequests.supplyAll(figis, backtestMarketService::getShareByFigiSync);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return duration of the finished warm-up or null
+     */
+    public Duration getDuration() {
+        return duration;
+    }
+
+    public int getLoaded() {
+        return loaded.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    private <T> CompletableFuture<T> count(CompletableFuture<T> task) {
+        return task.whenComplete((result, t) -> {
+            if (t == null) {
+                loaded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                log.info("Warm-up request failed: {}", t.getMessage());
+            }
+        });
+    }
+}
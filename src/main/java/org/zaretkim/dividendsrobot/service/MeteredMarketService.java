@@ -0,0 +1,179 @@
+package org.zaretkim.dividendsrobot.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import ru.tinkoff.piapi.contract.v1.*;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Decorator which measures latency and counts errors of every call to the wrapped @{@link MarketService}.
+ * Meters are tagged by @implementation (real, sandbox, backtest) and method name.
+ * Latency of asynchronous calls is measured until the returned future is completed
+ */
+public class MeteredMarketService extends MarketServiceDecorator {
+    static final String CALLS_METER = "dividendsrobot.market.calls";
+    static final String ERRORS_METER = "dividendsrobot.market.errors";
+    private final MeterRegistry meterRegistry;
+    private final String implementation;
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public MeteredMarketService(MarketService delegate, MeterRegistry meterRegistry, String implementation) {
+        super(delegate);
+        this.meterRegistry = meterRegistry;
+        this.implementation = implementation;
+    }
+
+    private Timer timer(String method) {
+        return timers.computeIfAbsent(method, m -> Timer.builder(CALLS_METER).
+                description("Latency of market service calls").
+                tag("implementation", implementation).
+                tag("method", m).
+                register(meterRegistry));
+    }
+
+    private void countError(String method, Throwable t) {
+        Counter.builder(ERRORS_METER).
+                description("Failed market service calls").
+                tag("implementation", implementation).
+                tag("method", method).
+                tag("exception", t.getClass().getSimpleName()).
+                register(meterRegistry).
+                increment();
+    }
+
+    private <T> T measure(String method, Supplier<T> call) {
+        long start = System.nanoTime();
+        try {
+            return call.get();
+        } catch (RuntimeException | Error e) {
+            countError(method, e);
+            throw e;
+        } finally {
+            timer(method).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private <T> CompletableFuture<T> measureAsync(String method, Supplier<CompletableFuture<T>> call) {
+        long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException | Error e) {
+            countError(method, e);
+            timer(method).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+        return future.whenComplete((result, t) -> {
+            if (t != null) countError(method, t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+            timer(method).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        });
+    }
+
+    @Override
+    public PortfolioResponse getPortfolio() {
+        return measure("getPortfolio", delegate::getPortfolio);
+    }
+
+    @Override
+    public boolean isWorkingHours() {
+        return measure("isWorkingHours", delegate::isWorkingHours);
+    }
+
+    @Override
+    public Share getShareByFigiSync(String figi) {
+        return measure("getShareByFigi", () -> delegate.getShareByFigiSync(figi));
+    }
+
+    @Override
+    public List<Dividend> getDividendsSync(String figi) {
+        return measure("getDividends", () -> delegate.getDividendsSync(figi));
+    }
+
+    @Override
+    public LastPrice getLastPricesSync(String figi) {
+        return measure("getLastPrice", () -> delegate.getLastPricesSync(figi));
+    }
+
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        return measure("getLastPrices", () -> delegate.getLastPrices(figis));
+    }
+
+    @Override
+    public Instant now() {
+        return delegate.now();
+    }
+
+    @Override
+    public String sellMarket(String figi, int numberOfLots) {
+        return measure("sellMarket", () -> delegate.sellMarket(figi, numberOfLots));
+    }
+
+    @Override
+    public String buyMarket(String figi, int numberOfLots) {
+        return measure("buyMarket", () -> delegate.buyMarket(figi, numberOfLots));
+    }
+
+    @Override
+    public List<OrderState> getOrders() {
+        return measure("getOrders", delegate::getOrders);
+    }
+
+    @Override
+    public void cancelOrder(String orderId) {
+        measure("cancelOrder", () -> {
+            delegate.cancelOrder(orderId);
+            return null;
+        });
+    }
+
+    @Override
+    public OrderState getOrderStateSync(String orderId) {
+        return measure("getOrderState", () -> delegate.getOrderStateSync(orderId));
+    }
+
+    @Override
+    public String validateToken() {
+        return delegate.validateToken();
+    }
+
+    @Override
+    public CompletableFuture<Share> getShareByFigiAsync(String figi) {
+        return measureAsync("getShareByFigiAsync", () -> delegate.getShareByFigiAsync(figi));
+    }
+
+    @Override
+    public CompletableFuture<List<Dividend>> getDividendsAsync(String figi) {
+        return measureAsync("getDividendsAsync", () -> delegate.getDividendsAsync(figi));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis) {
+        return measureAsync("getLastPricesAsync", () -> delegate.getLastPricesAsync(figis));
+    }
+
+    @Override
+    public CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots) {
+        return measureAsync("sellMarketAsync", () -> delegate.sellMarketAsync(figi, numberOfLots));
+    }
+
+    @Override
+    public CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots) {
+        return measureAsync("buyMarketAsync", () -> delegate.buyMarketAsync(figi, numberOfLots));
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderStateAsync(String orderId) {
+        return measureAsync("getOrderStateAsync", () -> delegate.getOrderStateAsync(orderId));
+    }
+}
@@ -0,0 +1,93 @@
+package org.zaretkim.dividendsrobot.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the same strategy for several accounts. Every account has its own @{@link PreDividendsStrategyService},
+ * portfolio and orders. Accounts of one step share one @{@link MarketSnapshot}, so every share, dividends list
+ * and last price is requested once per step regardless of the number of accounts. Steps of accounts run in parallel
+ */
+@Slf4j
+public class MultiAccountStrategy {
+    private final MarketService marketData;
+    private final AccountOperations accountOperations;
+    private final Map<String, PreDividendsStrategyService> strategies = new LinkedHashMap<>();
+    private final Executor executor;
+    private final MeterRegistry meterRegistry;
+    private final String implementation;
+
+    /**
+     * @param template strategy which parameters are copied for every account
+     * @param marketData market data shared by accounts
+     * @param accountOperations portfolio and orders of the accounts
+     * @param accountIds ids of the accounts
+     * @param executor executor for parallel steps of the accounts
+     * @param meterRegistry registry for market service calls of the accounts
+     * @param implementation tag of market service calls: real or sandbox
+     */
+    public MultiAccountStrategy(PreDividendsStrategyService template, MarketService marketData, AccountOperations accountOperations,
+                                List<String> accountIds, Executor executor, MeterRegistry meterRegistry, String implementation) {
+        this.marketData = marketData;
+        this.accountOperations = accountOperations;
+        this.executor = executor;
+        this.meterRegistry = meterRegistry;
+        this.implementation = implementation;
+        for (String accountId : accountIds) {
+            var strategy = template.copy();
+            strategy.setMarketService(accountMarketService(marketData, accountId));
+            strategies.put(accountId, strategy);
+        }
+    }
+
+    /**
+     * Executes strategy step for every account in parallel
+     * @return true if steps of all accounts are successfully executed
+     */
+    public boolean step() {
+        var snapshot = new MarketSnapshot(marketData);
+        var futures = new ArrayList<CompletableFuture<Boolean>>();
+        for (var entry : strategies.entrySet()) {
+            var strategy = entry.getValue();
+            strategy.setMarketService(accountMarketService(snapshot, entry.getKey()));
+            futures.add(CompletableFuture.supplyAsync(strategy::step, executor));
+        }
+        boolean result = true;
+        var accountIds = new ArrayList<>(strategies.keySet());
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                if (!futures.get(i).join()) {
+                    log.info("Step failed for account {}", accountIds.get(i));
+                    result = false;
+                }
+            } catch (Throwable t) {
+                log.info("Step failed for account {}", accountIds.get(i), t);
+                result = false;
+            }
+        }
+        // later requests of the strategies, for example from /status, should not see data of the finished step
+        for (var entry : strategies.entrySet()) {
+            entry.getValue().setMarketService(accountMarketService(marketData, entry.getKey()));
+        }
+        return result;
+    }
+
+    /**
+     * @return strategies by account id
+     */
+    public Map<String, PreDividendsStrategyService> getStrategies() {
+        return Collections.unmodifiableMap(strategies);
+    }
+
+    private MarketService accountMarketService(MarketService data, String accountId) {
+        return new MeteredMarketService(new AccountMarketService(data, accountOperations, accountId), meterRegistry, implementation);
+    }
+}
@@ -0,0 +1,139 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import ru.tinkoff.piapi.contract.v1.OrderExecutionReportStatus;
+import ru.tinkoff.piapi.contract.v1.OrderState;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks fills of submitted orders. States of all orders are polled concurrently with
+ * @{@link MarketService#getOrderStateAsync} until the order is finished or the fill timeout is reached,
+ * so the step knows executed lots and money before it ends
+ */
+@Slf4j
+public class OrderExecutor {
+    private final MarketService market;
+    private final long fillTimeoutNanos;
+    private final Executor pollDelay;
+
+    /**
+     * @param market market service which created the orders
+     * @param fillTimeout maximum time to wait for the order to be finished
+     * @param pollInterval interval between requests of the order state
+     */
+    public OrderExecutor(MarketService market, Duration fillTimeout, Duration pollInterval) {
+        this.market = market;
+        this.fillTimeoutNanos = fillTimeout.toNanos();
+        this.pollDelay = CompletableFuture.delayedExecutor(pollInterval.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Result of the order when it is finished or when the fill timeout is reached
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Fill {
+        private final String figi;
+        private final String orderId;
+        private final int lotsRequested;
+        private final int lotsExecuted;
+        /**
+         * money of executed lots in fixed point without commission
+         */
+        private final long executedAmount;
+        /**
+         * commission of executed lots in fixed point
+         */
+        private final long commission;
+        /**
+         * true if the order is finished: filled, rejected or cancelled
+         */
+        private final boolean finished;
+
+        @Override
+        public String toString() {
+            return figi + " " + lotsExecuted + "/" + lotsRequested + " lots for " + FixedPoint.toBigDecimal(executedAmount) +
+                    (finished ? "" : " (not finished)");
+        }
+    }
+
+    /**
+     * @param figi figi of the order
+     * @param lotsRequested number of lots in the order
+     * @param estimatedLotPrice price of one lot used if the service does not report executed money
+     * @param order future with id of the created order
+     * @return future with fill of the order. It is never completed exceptionally: the order which could not be
+     * created has no executed lots, the order which state could not be requested is reported as not finished
+     */
+    public CompletableFuture<Fill> track(String figi, int lotsRequested, long estimatedLotPrice, CompletableFuture<String> order) {
+        long deadline = System.nanoTime() + fillTimeoutNanos;
+        return order.thenCompose(orderId -> {
+            // services executing orders immediately may not return order ids
+            if (orderId == null) return CompletableFuture.completedFuture(executed(figi, null, lotsRequested, estimatedLotPrice));
+            return poll(figi, orderId, lotsRequested, estimatedLotPrice, deadline);
+        }).exceptionally(t -> {
+            log.info("Failed to execute order for {}, error: {}", figi, unwrap(t).getMessage());
+            return new Fill(figi, null, lotsRequested, 0, 0, 0, false);
+        });
+    }
+
+    /**
+     * Waits for all fills
+     * @param fills futures returned by @track
+     * @return fills in the same order
+     */
+    public static List<Fill> await(List<CompletableFuture<Fill>> fills) {
+        var result = new ArrayList<Fill>(fills.size());
+        for (CompletableFuture<Fill> fill : fills) {
+            result.add(fill.join());
+        }
+        return result;
+    }
+
+    private CompletableFuture<Fill> poll(String figi, String orderId, int lotsRequested, long estimatedLotPrice, long deadline) {
+        return market.getOrderStateAsync(orderId).thenCompose(orderState -> {
+            if (orderState == null)
+                return CompletableFuture.completedFuture(executed(figi, orderId, lotsRequested, estimatedLotPrice));
+            var fill = fill(figi, orderId, orderState, estimatedLotPrice);
+            if (fill.isFinished() || System.nanoTime() - deadline >= 0)
+                return CompletableFuture.completedFuture(fill);
+            return CompletableFuture.runAsync(() -> {}, pollDelay).
+                    thenCompose(ignored -> poll(figi, orderId, lotsRequested, estimatedLotPrice, deadline));
+        }).exceptionally(t -> {
+            log.info("Failed to get state of order {} for {}, error: {}", orderId, figi, unwrap(t).getMessage());
+            return new Fill(figi, orderId, lotsRequested, 0, 0, 0, false);
+        });
+    }
+
+    private static Fill executed(String figi, String orderId, int lots, long estimatedLotPrice) {
+        return new Fill(figi, orderId, lots, lots, FixedPoint.times(estimatedLotPrice, lots), 0, true);
+    }
+
+    private static Fill fill(String figi, String orderId, OrderState orderState, long estimatedLotPrice) {
+        var status = orderState.getExecutionReportStatus();
+        boolean finished = status == OrderExecutionReportStatus.EXECUTION_REPORT_STATUS_FILL ||
+                status == OrderExecutionReportStatus.EXECUTION_REPORT_STATUS_REJECTED ||
+                status == OrderExecutionReportStatus.EXECUTION_REPORT_STATUS_CANCELLED;
+        int lotsExecuted = (int) orderState.getLotsExecuted();
+        long executedAmount = orderState.hasExecutedOrderPrice() ?
+                FixedPoint.of(orderState.getExecutedOrderPrice()) : FixedPoint.times(estimatedLotPrice, lotsExecuted);
+        long commission = orderState.hasExecutedCommission() ? FixedPoint.of(orderState.getExecutedCommission()) : 0;
+        return new Fill(figi, orderId, (int) orderState.getLotsRequested(), lotsExecuted, executedAmount, commission, finished);
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null)
+            return t.getCause();
+        return t;
+    }
+}
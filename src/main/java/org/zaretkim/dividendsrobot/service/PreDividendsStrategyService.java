@@ -1,34 +1,47 @@
 package org.zaretkim.dividendsrobot.service;
 
 import com.google.protobuf.Timestamp;
-import lombok.RequiredArgsConstructor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
 import org.zaretkim.dividendsrobot.model.DividendIdea;
 import ru.tinkoff.piapi.contract.v1.*;
-import ru.tinkoff.piapi.core.utils.MapperUtils;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
  * PreDividend strategy implementation. On every @step run finds shares which hava actual declared dividends
  * with yield higher than @minDividendYield and opens positions for them. Close positions when they have
- * at least @sufficientProfit profit or last buy date for the dividends is reached. @step is executed once a day
+ * at least @sufficientProfit profit or last buy date for the dividends is reached. @step is executed once a day,
+ * between steps profit of the positions is checked on every price update by @{@link TakeProfitEngine}.
+ * Fills of the step orders are tracked by @{@link OrderExecutor}, money of executed sells is used for buys of the same step
  */
 @Service
-@RequiredArgsConstructor
 @Slf4j
 public class PreDividendsStrategyService {
+    private static final Duration ORDER_POLL_INTERVAL = Duration.ofMillis(500);
     @Setter
     private MarketService marketService;
     @Value("${app.config.sufficient-profit}")
@@ -43,6 +56,31 @@ public class PreDividendsStrategyService {
     @Value("${app.config.min-dividend-yield}")
     private double minDividendYield;
 
+    @Setter
+    @Value("${app.config.order-fill-timeout:30s}")
+    private Duration orderFillTimeout = Duration.ofSeconds(30);
+
+    private final MeterRegistry meterRegistry;
+    private final MarketRequestExecutor marketRequests;
+    private final Map<String, Timer> phaseTimers = new ConcurrentHashMap<>();
+
+    private final Set<String> sellingFigis = ConcurrentHashMap.newKeySet();
+    private volatile Set<String> dividendIdeaFigis = Set.of();
+    private volatile List<OrderExecutor.Fill> lastStepFills = List.of();
+
+    @Autowired
+    public PreDividendsStrategyService(MeterRegistry meterRegistry, MarketRequestExecutor marketRequests) {
+        this.meterRegistry = meterRegistry;
+        this.marketRequests = marketRequests;
+    }
+
+    /**
+     * Creates strategy which sends at most @{@link MarketRequestExecutor#DEFAULT_MAX_CONCURRENT_REQUESTS} requests at once
+     */
+    public PreDividendsStrategyService(MeterRegistry meterRegistry) {
+        this(meterRegistry, new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS));
+    }
+
     public double getSufficientProfit() {
         return sufficientProfit;
     }
@@ -75,6 +113,19 @@ public class PreDividendsStrategyService {
         this.minDividendYield = minDividendYield;
     }
 
+    /**
+     * @return new strategy with the same parameters, meter registry and request limit, market service is not copied
+     */
+    public PreDividendsStrategyService copy() {
+        var copy = new PreDividendsStrategyService(meterRegistry, marketRequests);
+        copy.setAllowedFigis(allowedFigis);
+        copy.setMinDividendYield(minDividendYield);
+        copy.setSufficientProfit(sufficientProfit);
+        copy.setMaxPositionPercentage(maxPositionPercentage);
+        copy.setOrderFillTimeout(orderFillTimeout);
+        return copy;
+    }
+
     /**
      * Executes next step for the strategy
      * @return true if step is successfully executed or false if any error happened
@@ -86,11 +137,21 @@ public class PreDividendsStrategyService {
                 log.info("Out of working hours");
                 return true;
             }
-            PortfolioResponse portfolio = marketService.getPortfolio();
-            Set<String> dividendsFigis = findDividendsIdeas().stream().map(DividendIdea::getFigi).collect(Collectors.toSet());
-            closePendingOrders();
-            closeOutdatedPositions(portfolio, dividendsFigis);
-            openNewPositions(portfolio, dividendsFigis);
+            // sell orders submitted before the step are already reflected in the portfolio
+            sellingFigis.clear();
+            long start = System.nanoTime();
+            var market = new MarketSnapshot(marketService);
+            PortfolioResponse portfolio = market.getPortfolio();
+            Set<String> dividendsFigis = phaseTimer("ideas").record(() ->
+                    findDividendsIdeas(market).stream().map(DividendIdea::getFigi).collect(Collectors.toSet()));
+            dividendIdeaFigis = Set.copyOf(dividendsFigis);
+            phaseTimer("pendingOrders").record(() -> closePendingOrders(market));
+            var orders = new OrderExecutor(market, orderFillTimeout, ORDER_POLL_INTERVAL);
+            var fills = new ArrayList<OrderExecutor.Fill>();
+            long releasedCash = phaseTimer("closing").record(() -> closeOutdatedPositions(market, orders, portfolio, dividendsFigis, fills));
+            phaseTimer("opening").record(() -> openNewPositions(market, orders, portfolio, dividendsFigis, releasedCash, fills));
+            lastStepFills = List.copyOf(fills);
+            phaseTimer("total").record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
             return true;
         } catch (Throwable t) {
             log.error(t.getMessage(), t);
@@ -98,30 +159,62 @@ public class PreDividendsStrategyService {
         }
     }
 
+    private Timer phaseTimer(String phase) {
+        return phaseTimers.computeIfAbsent(phase, p -> Timer.builder("dividendsrobot.step").
+                description("Duration of strategy step phases").
+                tag("phase", p).
+                register(meterRegistry));
+    }
+
     public List<DividendIdea> findDividendsIdeas() {
-        Timestamp now = Timestamp.newBuilder().setSeconds(marketService.now().getEpochSecond()).build();
+        return findDividendsIdeas(marketService);
+    }
+
+    private List<DividendIdea> findDividendsIdeas(MarketService market) {
+        Timestamp now = Timestamp.newBuilder().setSeconds(market.now().getEpochSecond()).build();
+
+        long minDividendYieldValue = FixedPoint.of(BigDecimal.valueOf(minDividendYield).divide(BigDecimal.valueOf(100), RoundingMode.HALF_DOWN));
+        var figis = List.of(allowedFigis.split("\\s+"));
+        var candidateFutures = marketRequests.fanOut(figis, figi -> market.getDividendsAsync(figi).thenCompose(dividends -> {
+            if (dividends.size() == 0) return CompletableFuture.completedFuture(null);
+            var dividend = dividends.get(0);
+            if (!dividend.hasLastBuyDate()) return CompletableFuture.completedFuture(null);
+            var lastBuyDate = dividend.getLastBuyDate();
+            if (lastBuyDate.getSeconds() < now.getSeconds()) return CompletableFuture.completedFuture(null);
+            MoneyValue dividendNet = dividend.getDividendNet();
+            return market.getShareByFigiAsync(figi).thenApply(share -> {
+                if (!dividendNet.getCurrency().equals(share.getCurrency())) return null;
+                return Map.entry(dividend, share);
+            });
+        }));
+        var candidates = new LinkedHashMap<String, Dividend>();
+        var shares = new HashMap<String, Share>();
+        for (int i = 0; i < figis.size(); i++) {
+            var figi = figis.get(i);
+            try {
+                var candidate = candidateFutures.get(i).join();
+                if (candidate == null) continue;
+                candidates.put(figi, candidate.getKey());
+                shares.put(figi, candidate.getValue());
+            } catch (Exception e) {
+                log.error("Failed to calculate idea for figi=" + figi, unwrap(e));
+            }
+        }
 
-        var minDividendYieldValue = BigDecimal.valueOf(minDividendYield).divide(BigDecimal.valueOf(100), RoundingMode.HALF_DOWN);
         var ideas = new ArrayList<DividendIdea>();
-        for (var figi: allowedFigis.split("\\s+")) {
+        if (candidates.isEmpty()) return ideas;
+        Map<String, LastPrice> lastPrices = market.getLastPrices(candidates.keySet());
+        for (var candidate: candidates.entrySet()) {
+            var figi = candidate.getKey();
             try {
-                List<Dividend> dividends = marketService.getDividendsSync(figi);
-                if (dividends.size() == 0) continue;
-                var dividend = dividends.get(0);
-                if (!dividend.hasLastBuyDate()) continue;
-                var lastBuyDate = dividend.getLastBuyDate();
-                if (lastBuyDate.getSeconds() < now.getSeconds()) continue;
-                MoneyValue dividendNet = dividend.getDividendNet();
-                Share share = marketService.getShareByFigiSync(figi);
-                if (!dividendNet.getCurrency().equals(share.getCurrency())) continue;
-                var lastPrice = marketService.getLastPricesSync(figi);
-                if (!lastPrice.hasPrice()) continue;
-                Quotation priceQuotation = lastPrice.getPrice();
-                var price = MapperUtils.quotationToBigDecimal(priceQuotation);
-                var dividendValue = MapperUtils.moneyValueToBigDecimal(dividendNet);
-                var dividendYield = dividendValue.divide(price, RoundingMode.HALF_UP);
-                if (dividendYield.compareTo(minDividendYieldValue) < 0) continue;
-                var idea = new DividendIdea(figi, share.getTicker(), dividendYield, price, dividendValue);
+                var lastPrice = lastPrices.get(figi);
+                if (lastPrice == null || !lastPrice.hasPrice()) continue;
+                long price = FixedPoint.of(lastPrice.getPrice());
+                long dividendValue = FixedPoint.of(candidate.getValue().getDividendNet());
+                long dividendYield = FixedPoint.divide(dividendValue, price, RoundingMode.HALF_UP);
+                if (dividendYield < minDividendYieldValue) continue;
+                var idea = new DividendIdea(figi, shares.get(figi).getTicker(), FixedPoint.toBigDecimal(dividendYield),
+                        FixedPoint.toBigDecimal(price), FixedPoint.toBigDecimal(dividendValue));
                 ideas.add(idea);
             } catch (Exception e) {
                 log.error("Failed to calculate idea for figi=" + figi, e);
@@ -131,61 +224,216 @@ public class PreDividendsStrategyService {
     }
 
     /**
-     * Creates "buy" orders for figis from @dividendsFigis
-     * @param portfolio current portfolio
+     * Creates "buy" orders for figis from @dividendsFigis and waits for their fills
+     * @param market market service of the current step
+     * @param orders tracker of the step orders
+     * @param portfolio portfolio at the beginning of the step
      * @param dividendsFigis figis to buy
+     * @param releasedCash money of executed sells of the step in fixed point
+     * @param fills receives fills of the created orders
      */
-    private void openNewPositions(PortfolioResponse portfolio, Set<String> dividendsFigis) {
+    private void openNewPositions(MarketService market, OrderExecutor orders, PortfolioResponse portfolio, Set<String> dividendsFigis,
+                                  long releasedCash, List<OrderExecutor.Fill> fills) {
         HashSet<String> figisToOpen = new HashSet<>(dividendsFigis);
         for (PortfolioPosition portfolioPosition : portfolio.getPositionsList()) {
             figisToOpen.remove(portfolioPosition.getFigi());
         }
-        BigDecimal totalAmountOfFunds = totalAmountOfFunds(portfolio);
-        BigDecimal maxAmountForOnePosition = totalAmountOfFunds.multiply(BigDecimal.valueOf(maxPositionPercentage / 100));
-        BigDecimal availableCash = MapperUtils.moneyValueToBigDecimal(portfolio.getTotalAmountCurrencies());
-        for (String figi : figisToOpen) {
-            Share share = marketService.getShareByFigiSync(figi);
-            LastPrice lastPrice = marketService.getLastPricesSync(figi);
-            BigDecimal lotPrice = MapperUtils.quotationToBigDecimal(lastPrice.getPrice()).multiply(BigDecimal.valueOf(share.getLot()));
-            int numberOfLots = maxAmountForOnePosition.divide(lotPrice, RoundingMode.DOWN).intValue();
-            var totalPositionPrice = lotPrice.multiply(BigDecimal.valueOf(numberOfLots));
-            while (totalPositionPrice.compareTo(availableCash.multiply(BigDecimal.valueOf(0.95))) >= 0) {
-                totalPositionPrice = totalPositionPrice.subtract(lotPrice);
-                numberOfLots--;
-            }
-            if (numberOfLots > 0)
-            {
-                marketService.buyMarket(figi, numberOfLots);
-                availableCash = availableCash.subtract(totalPositionPrice);
+        if (figisToOpen.isEmpty()) return;
+        long maxAmountForOnePosition = FixedPoint.multiply(totalAmountOfFundsFixed(portfolio), FixedPoint.of(BigDecimal.valueOf(maxPositionPercentage / 100)));
+        long availableCash = FixedPoint.of(portfolio.getTotalAmountCurrencies()) + releasedCash;
+        Map<String, LastPrice> lastPrices = market.getLastPrices(figisToOpen);
+        var figis = new ArrayList<>(figisToOpen);
+        var shareFutures = marketRequests.fanOut(figis, market::getShareByFigiAsync);
+        var buys = new ArrayList<Map.Entry<String, Integer>>();
+        var lotPrices = new HashMap<String, Long>();
+        for (int i = 0; i < figis.size(); i++) {
+            var figi = figis.get(i);
+            try {
+                Share share = shareFutures.get(i).join();
+                LastPrice lastPrice = lastPrices.get(figi);
+                if (lastPrice == null) {
+                    log.info("Could not get last price for {}", figi);
+                    continue;
+                }
+                long lotPrice = FixedPoint.times(FixedPoint.of(lastPrice.getPrice()), share.getLot());
+                int numberOfLots = (int) (maxAmountForOnePosition / lotPrice);
+                long totalPositionPrice = FixedPoint.times(lotPrice, numberOfLots);
+                // keep 5% of the cash: for fixed point total, total >= cash * 0.95 is the same as
+                // total >= cash - floor(cash / 20), which is exact and does not overflow for large accounts
+                long cashLimit = availableCash - Math.floorDiv(availableCash, 20);
+                while (totalPositionPrice >= cashLimit) {
+                    totalPositionPrice -= lotPrice;
+                    numberOfLots--;
+                }
+                if (numberOfLots > 0)
+                {
+                    buys.add(Map.entry(figi, numberOfLots));
+                    lotPrices.put(figi, lotPrice);
+                    availableCash -= totalPositionPrice;
+                }
+            } catch (Exception e) {
+                log.error("Failed to open position for figi=" + figi, unwrap(e));
             }
         }
 
+        var fillFutures = new ArrayList<CompletableFuture<OrderExecutor.Fill>>();
+        marketRequests.fanOut(buys, buy -> {
+            var order = submit(() -> market.buyMarketAsync(buy.getKey(), buy.getValue()));
+            fillFutures.add(orders.track(buy.getKey(), buy.getValue(), lotPrices.get(buy.getKey()), order));
+            return order;
+        });
+        for (var fill : OrderExecutor.await(fillFutures)) {
+            log.info("buy {}", fill);
+            fills.add(fill);
+        }
+    }
+
+    private static CompletableFuture<String> submit(Supplier<CompletableFuture<String>> order) {
+        try {
+            return order.get();
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
     }
 
     public BigDecimal totalAmountOfFunds(PortfolioResponse portfolio) {
-        var currencies = MapperUtils.moneyValueToBigDecimal(portfolio.getTotalAmountCurrencies());
-        var shares = MapperUtils.moneyValueToBigDecimal(portfolio.getTotalAmountShares());
-        var total = currencies.add(shares);
-        log.info("total: {}", total);
+        return FixedPoint.toBigDecimal(totalAmountOfFundsFixed(portfolio));
+    }
+
+    private long totalAmountOfFundsFixed(PortfolioResponse portfolio) {
+        long total = FixedPoint.of(portfolio.getTotalAmountCurrencies()) + FixedPoint.of(portfolio.getTotalAmountShares());
+        if (log.isInfoEnabled())
+            log.info("total: {}", FixedPoint.toBigDecimal(total));
         return total;
     }
 
-    private void closeOutdatedPositions(PortfolioResponse portfolio, Set<String> dividendIdeaFigis) {
+    /**
+     * Creates "sell" orders for positions which are not dividend ideas anymore or have sufficient profit
+     * and waits for their fills
+     * @return money of executed sells without commission in fixed point
+     */
+    private long closeOutdatedPositions(MarketService market, OrderExecutor orders, PortfolioResponse portfolio,
+                                        Set<String> dividendIdeaFigis, List<OrderExecutor.Fill> fills) {
+        var positionsToCheck = new ArrayList<PortfolioPosition>();
+        var figisWithoutCurrentPrice = new HashSet<String>();
         for (PortfolioPosition portfolioPosition : portfolio.getPositionsList()) {
             var instrumentType = portfolioPosition.getInstrumentType();
             if (!"share".equals(instrumentType)) continue;
             if (dividendIdeaFigis.contains(portfolioPosition.getFigi())) continue;
-            try {
-                BigDecimal expectedYield = calculateExpectedYield(portfolioPosition);
-                if (expectedYield.compareTo(BigDecimal.valueOf(sufficientProfit)) <= 0 && hasTimeBeforeLastBuyDate(portfolioPosition.getFigi()))
-                    continue;
+            positionsToCheck.add(portfolioPosition);
+            if (!portfolioPosition.hasCurrentPrice())
+                figisWithoutCurrentPrice.add(portfolioPosition.getFigi());
+        }
+        Map<String, LastPrice> lastPrices = getLastPricesOrEmpty(market, figisWithoutCurrentPrice);
 
-                marketService.sellMarket(portfolioPosition.getFigi(), (int) portfolioPosition.getQuantityLots().getUnits());
+        var positionsToSell = new ArrayList<PortfolioPosition>();
+        var positionsToCheckDividends = new ArrayList<PortfolioPosition>();
+        long sufficientProfitValue = FixedPoint.of(BigDecimal.valueOf(sufficientProfit));
+        for (PortfolioPosition portfolioPosition : positionsToCheck) {
+            try {
+                long expectedYield = calculateExpectedYield(market, portfolioPosition, lastPrices.get(portfolioPosition.getFigi()));
+                if (expectedYield <= sufficientProfitValue)
+                    positionsToCheckDividends.add(portfolioPosition);
+                else
+                    positionsToSell.add(portfolioPosition);
             } catch (Throwable e) {
                 log.info("Failed to process {}, error: {}", portfolioPosition.getFigi(), e.getMessage(), e);
             }
         }
 
+        var dividendFutures = marketRequests.fanOut(positionsToCheckDividends, p -> market.getDividendsAsync(p.getFigi()));
+        for (int i = 0; i < positionsToCheckDividends.size(); i++) {
+            var portfolioPosition = positionsToCheckDividends.get(i);
+            try {
+                if (!hasTimeBeforeLastBuyDate(market, dividendFutures.get(i).join()))
+                    positionsToSell.add(portfolioPosition);
+            } catch (Throwable e) {
+                var cause = unwrap(e);
+                log.info("Failed to process {}, error: {}", portfolioPosition.getFigi(), cause.getMessage(), cause);
+            }
+        }
+
+        var fillFutures = new ArrayList<CompletableFuture<OrderExecutor.Fill>>();
+        marketRequests.fanOut(positionsToSell, p -> {
+            var figi = p.getFigi();
+            int numberOfLots = (int) p.getQuantityLots().getUnits();
+            var order = submit(() -> sellPosition(market, figi, numberOfLots));
+            if (order == null) return CompletableFuture.completedFuture(null);
+            fillFutures.add(orders.track(figi, numberOfLots, estimatedLotPrice(market, p, lastPrices.get(figi)), order));
+            return order;
+        });
+        long releasedCash = 0;
+        for (var fill : OrderExecutor.await(fillFutures)) {
+            log.info("sell {}", fill);
+            fills.add(fill);
+            releasedCash += fill.getExecutedAmount() - fill.getCommission();
+        }
+        return releasedCash;
+    }
+
+    /**
+     * Requests last prices in one batch. If the batch fails, empty map is returned and prices are requested
+     * for every position separately, so the failure affects only positions which prices are not available
+     */
+    private static Map<String, LastPrice> getLastPricesOrEmpty(MarketService market, Set<String> figis) {
+        if (figis.isEmpty()) return Map.of();
+        try {
+            return market.getLastPrices(figis);
+        } catch (Throwable e) {
+            log.info("Failed to get last prices for {}, error: {}", figis, e.getMessage(), e);
+            return Map.of();
+        }
+    }
+
+    private long estimatedLotPrice(MarketService market, PortfolioPosition portfolioPosition, LastPrice lastPrice) {
+        long lots = portfolioPosition.getQuantityLots().getUnits();
+        if (lots == 0) return 0;
+        try {
+            return FixedPoint.times(currentPrice(market, portfolioPosition, lastPrice), portfolioPosition.getQuantity().getUnits()) / lots;
+        } catch (Throwable e) {
+            log.info("Could not estimate price of {}, error: {}", portfolioPosition.getFigi(), e.getMessage());
+            return 0;
+        }
+    }
+    /**
+     * Creates "sell" order for the position unless the position is already being sold since the last step
+     * @param figi figi of the position
+     * @param numberOfLots number of lots to sell
+     * @return future of the order id or null if the position is already being sold
+     */
+    public CompletableFuture<String> sellPosition(String figi, int numberOfLots) {
+        return sellPosition(marketService, figi, numberOfLots);
+    }
+
+    private CompletableFuture<String> sellPosition(MarketService market, String figi, int numberOfLots) {
+        if (!sellingFigis.add(figi)) {
+            log.info("Position {} is already being sold", figi);
+            return null;
+        }
+        CompletableFuture<String> order;
+        try {
+            order = market.sellMarketAsync(figi, numberOfLots);
+        } catch (Throwable t) {
+            sellingFigis.remove(figi);
+            throw t;
+        }
+        return order.whenComplete((orderId, t) -> {
+            if (t != null) sellingFigis.remove(figi);
+        });
+    }
+
+    /**
+     * @return fills of the orders created on the last step
+     */
+    public List<OrderExecutor.Fill> getLastStepFills() {
+        return lastStepFills;
+    }
+
+    /**
+     * @return figis of dividend ideas found on the last step. Such positions are kept regardless of their yield
+     */
+    public Set<String> getDividendIdeaFigis() {
+        return dividendIdeaFigis;
     }
 
     /**
@@ -194,33 +442,55 @@ public class PreDividendsStrategyService {
      * @return expected yield in percents
      */
     public BigDecimal calculateExpectedYield(PortfolioPosition portfolioPosition) {
-        MoneyValue averagePositionPrice = portfolioPosition.getAveragePositionPrice();
-        BigDecimal currentPrice;
-        if (portfolioPosition.hasCurrentPrice()) {
-            currentPrice = MapperUtils.moneyValueToBigDecimal(portfolioPosition.getCurrentPrice());
-        } else {
-            Quotation lastPrice = marketService.getLastPricesSync(portfolioPosition.getFigi()).getPrice();
-            var currentPriceMoneyValue = MoneyValue.newBuilder(averagePositionPrice).setUnits(lastPrice.getUnits()).setNano(lastPrice.getNano()).build();
-            currentPrice = MapperUtils.moneyValueToBigDecimal(currentPriceMoneyValue);
-        }
+        return FixedPoint.toBigDecimal(calculateExpectedYield(marketService, portfolioPosition, null));
+    }
+
+    /**
+     * Calculate expected yield for the position in percents
+     * @param market market service used to request last price
+     * @param portfolioPosition position for which yield is to be calculated
+     * @param lastPrice already requested last price for the position or null if it should be requested
+     * @return expected yield in percents in fixed point
+     */
+    private long calculateExpectedYield(MarketService market, PortfolioPosition portfolioPosition, LastPrice lastPrice) {
+        long currentPrice = currentPrice(market, portfolioPosition, lastPrice);
+        long averagePrice = FixedPoint.of(portfolioPosition.getAveragePositionPrice());
+        return FixedPoint.times(FixedPoint.divide(currentPrice - averagePrice, averagePrice, RoundingMode.CEILING), 100);
+    }
 
-        BigDecimal averagePrice = MapperUtils.moneyValueToBigDecimal(averagePositionPrice);
-        return currentPrice.subtract(averagePrice).divide(averagePrice, RoundingMode.CEILING).multiply(BigDecimal.valueOf(100));
+    /**
+     * @return price of one share of the position in fixed point
+     */
+    private static long currentPrice(MarketService market, PortfolioPosition portfolioPosition, LastPrice lastPrice) {
+        if (portfolioPosition.hasCurrentPrice())
+            return FixedPoint.of(portfolioPosition.getCurrentPrice());
+        if (lastPrice == null)
+            lastPrice = market.getLastPricesSync(portfolioPosition.getFigi());
+        return FixedPoint.of(lastPrice.getPrice());
     }
 
     public boolean hasTimeBeforeLastBuyDate(String figi) {
-        List<Dividend> dividendList = marketService.getDividendsSync(figi);
+        return hasTimeBeforeLastBuyDate(marketService, marketService.getDividendsSync(figi));
+    }
+
+    private boolean hasTimeBeforeLastBuyDate(MarketService market, List<Dividend> dividendList) {
         if (dividendList.size() == 0) return false;
         Dividend dividend = dividendList.get(0);
         Instant lastBuyDate = Instant.ofEpochSecond(dividend.getLastBuyDate().getSeconds()).truncatedTo(ChronoUnit.DAYS);
-        return lastBuyDate.compareTo(marketService.now()) > 0;
+        return lastBuyDate.compareTo(market.now()) > 0;
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null)
+            return t.getCause();
+        return t;
     }
 
-    private void closePendingOrders() {
-        for (OrderState orderState : marketService.getOrders()) {
+    private void closePendingOrders(MarketService market) {
+        for (OrderState orderState : market.getOrders()) {
             if (orderState.getLotsExecuted() == orderState.getLotsRequested()) continue;
             log.info("Cancel order for {}", orderState.getFigi());
-            marketService.cancelOrder(orderState.getOrderId());
+            market.cancelOrder(orderState.getOrderId());
         }
     }
 
@@ -0,0 +1,163 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.PriceBoard;
+import org.zaretkim.dividendsrobot.marketdata.PriceStreamSource;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps last price subscriptions for the requested figis and feeds @{@link PriceBoard} from the stream.
+ * Reconnects and resubscribes with exponential backoff when the stream fails.
+ * Prices of disconnected figis are removed from the board, so readers fall back to requests
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class PriceStreamService {
+    private static final Duration MAX_RECONNECT_DELAY = Duration.ofMinutes(1);
+    private final PriceStreamSource priceStreamSource;
+    private final PriceBoard priceBoard;
+    @Setter
+    @Value("${app.config.price-stream.enabled}")
+    private boolean enabled = true;
+    @Setter
+    @Value("${app.config.price-stream.reconnect-delay}")
+    private Duration reconnectDelay = Duration.ofSeconds(1);
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        var thread = new Thread(r, "price-stream-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object lockObject = new Object();
+    private final Set<String> figis = ConcurrentHashMap.newKeySet();
+    private PriceStreamSource.PriceStream stream;
+    private boolean sandbox = false;
+    private volatile long streamGeneration = 0;
+    private int failedAttempts = 0;
+    private boolean reconnectScheduled = false;
+
+    /**
+     * Makes subscriptions match given figis: subscribes new figis and unsubscribes figis absent in @newFigis.
+     * Opens the stream if it is not opened yet, reopens it if @sandbox differs from the endpoint of the opened stream
+     * @param newFigis figis to receive prices for
+     * @param sandbox true to receive prices from the sandbox endpoint, false for the real exchange
+     */
+    public void subscribe(Collection<String> newFigis, boolean sandbox) {
+        if (!enabled) return;
+        synchronized (lockObject) {
+            if (this.sandbox != sandbox) {
+                this.sandbox = sandbox;
+                streamGeneration++;
+                closeStream();
+                priceBoard.remove(figis);
+                figis.clear();
+                failedAttempts = 0;
+            }
+            var added = new HashSet<>(newFigis);
+            added.removeAll(figis);
+            var removed = new HashSet<>(figis);
+            removed.removeAll(newFigis);
+            figis.clear();
+            figis.addAll(newFigis);
+            priceBoard.remove(removed);
+
+            if (stream == null) {
+                if (!reconnectScheduled) connect();
+                return;
+            }
+            try {
+                if (!removed.isEmpty()) stream.unsubscribe(removed);
+                if (!added.isEmpty()) stream.subscribe(added);
+            } catch (Throwable t) {
+                onStreamError(streamGeneration, t);
+            }
+        }
+    }
+
+    /**
+     * Closes the stream and forgets all subscriptions
+     */
+    public void stop() {
+        synchronized (lockObject) {
+            streamGeneration++;
+            closeStream();
+            priceBoard.remove(figis);
+            figis.clear();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        stop();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return true if the stream is opened
+     */
+    public boolean isConnected() {
+        synchronized (lockObject) {
+            return stream != null;
+        }
+    }
+
+    private void connect() {
+        reconnectScheduled = false;
+        if (figis.isEmpty()) return;
+        long generation = ++streamGeneration;
+        try {
+            stream = priceStreamSource.open(sandbox, lastPrice -> {
+                if (generation == streamGeneration && figis.contains(lastPrice.getFigi()))
+                    priceBoard.update(lastPrice);
+            }, t -> onStreamError(generation, t));
+            stream.subscribe(new HashSet<>(figis));
+            failedAttempts = 0;
+            log.info("Subscribed to last prices for {} figis", figis.size());
+        } catch (Throwable t) {
+            onStreamError(generation, t);
+        }
+    }
+
+    private void onStreamError(long generation, Throwable t) {
+        synchronized (lockObject) {
+            if (generation != streamGeneration) return;
+            streamGeneration++;
+            closeStream();
+            priceBoard.remove(figis);
+            if (figis.isEmpty() || reconnectScheduled) return;
+            long delay = Math.min(reconnectDelay.toMillis() << Math.min(failedAttempts, 16), MAX_RECONNECT_DELAY.toMillis());
+            failedAttempts++;
+            log.info("Price stream failed: {}. Reconnect in {} ms", t.getMessage(), delay);
+            reconnectScheduled = true;
+            scheduler.schedule(() -> {
+                synchronized (lockObject) {
+                    connect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void closeStream() {
+        if (stream == null) return;
+        try {
+            stream.close();
+        } catch (Throwable t) {
+            log.info("Could not close price stream", t);
+        }
+        stream = null;
+    }
+}
@@ -0,0 +1,349 @@
+package org.zaretkim.dividendsrobot.service;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits unary calls to the exchange with a @{@link TokenBucket} per gRPC service, buckets follow x-ratelimit-*
+ * headers and trailers of responses. Calls failed with RESOURCE_EXHAUSTED or UNAVAILABLE are repeated with jittered
+ * exponential backoff, so a single rejected call does not fail the whole robot step. Calls which could have been
+ * executed by the exchange, like orders, are repeated only after RESOURCE_EXHAUSTED. Calls waiting for a token
+ * or for a retry do not block threads. A call which would wait past its deadline fails with DEADLINE_EXCEEDED
+ * at once and returns its token. Streams are not limited
+ */
+@Slf4j
+public class RateLimitInterceptor implements ClientInterceptor {
+    private static final Duration WINDOW = Duration.ofMinutes(1);
+    private static final Metadata.Key<String> LIMIT_HEADER = Metadata.Key.of("x-ratelimit-limit", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> REMAINING_HEADER = Metadata.Key.of("x-ratelimit-remaining", Metadata.ASCII_STRING_MARSHALLER);
+    private static final Metadata.Key<String> RESET_HEADER = Metadata.Key.of("x-ratelimit-reset", Metadata.ASCII_STRING_MARSHALLER);
+    // methods which must not be repeated after UNAVAILABLE because the exchange could have executed them.
+    // Orders are not repeated too, deduplication by order_id is not relied on: an executed order is seen in the portfolio
+    // on the next step
+    private static final Set<String> NOT_IDEMPOTENT_METHODS = Set.of("OpenSandboxAccount", "CloseSandboxAccount", "SandboxPayIn",
+            "PostOrder", "PostSandboxOrder", "PostStopOrder");
+
+    private final Map<String, Integer> limits;
+    private final int defaultLimit;
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * @param limits requests per minute by gRPC service name, for example InstrumentsService
+     * @param defaultLimit requests per minute for services without limit
+     * @param maxAttempts maximum number of attempts of one call
+     * @param initialBackoff delay before the first retry
+     * @param maxBackoff maximum delay between retries
+     * @param scheduler starts delayed attempts
+     */
+    public RateLimitInterceptor(Map<String, Integer> limits, int defaultLimit, int maxAttempts, Duration initialBackoff,
+                                Duration maxBackoff, ScheduledExecutorService scheduler) {
+        this.limits = Map.copyOf(limits);
+        this.defaultLimit = defaultLimit;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffNanos = Math.max(1, initialBackoff.toNanos());
+        this.maxBackoffNanos = Math.max(initialBackoffNanos, maxBackoff.toNanos());
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @param limits space separated pairs service:limit, for example "InstrumentsService:200 OrdersService:100"
+     * @return limits by service name
+     */
+    public static Map<String, Integer> parseLimits(String limits) {
+        var result = new HashMap<String, Integer>();
+        if (limits == null) return result;
+        for (String limit : limits.trim().split("\\s+")) {
+            if (limit.isEmpty()) continue;
+            int separator = limit.indexOf(':');
+            if (separator < 0)
+                throw new IllegalArgumentException("Rate limit should be in format service:limit, but it is " + limit);
+            result.put(limit.substring(0, separator), Integer.parseInt(limit.substring(separator + 1)));
+        }
+        return result;
+    }
+
+    /**
+     * @param service gRPC service name without package
+     * @return bucket of the service, it is created on the first call
+     */
+    public TokenBucket getBucket(String service) {
+        return buckets.computeIfAbsent(service, s -> new TokenBucket(limits.getOrDefault(s, defaultLimit), WINDOW));
+    }
+
+    /**
+     * @return number of repeated attempts
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Override
+    public <Q, S> ClientCall<Q, S> interceptCall(MethodDescriptor<Q, S> method, CallOptions callOptions, Channel next) {
+        if (method.getType() != MethodDescriptor.MethodType.UNARY)
+            return next.newCall(method, callOptions);
+        return new LimitedCall<>(method, callOptions, next, getBucket(serviceName(method)));
+    }
+
+    private static String serviceName(MethodDescriptor<?, ?> method) {
+        String service = method.getServiceName();
+        if (service == null) service = method.getFullMethodName();
+        return service.substring(service.lastIndexOf('.') + 1);
+    }
+
+    private long backoff(int attempt) {
+        long cap = Math.min(maxBackoffNanos, initialBackoffNanos * (1L << Math.min(attempt - 1, 20)));
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    private static long parseNumber(String value) {
+        if (value == null) return -1;
+        value = value.trim();
+        int end = 0;
+        while (end < value.length() && Character.isDigit(value.charAt(end))) end++;
+        if (end == 0) return -1;
+        try {
+            return Long.parseLong(value.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long resetNanos(Metadata metadata) {
+        long reset = metadata == null ? -1 : parseNumber(metadata.get(RESET_HEADER));
+        return reset < 0 ? -1 : TimeUnit.SECONDS.toNanos(reset);
+    }
+
+    /**
+     * Call which sends its request when the bucket has a token and repeats it on transient errors.
+     * Response of the failed attempt is not passed to the listener
+     */
+    private class LimitedCall<Q, S> extends ClientCall<Q, S> {
+        private final MethodDescriptor<Q, S> method;
+        private final CallOptions callOptions;
+        private final Channel next;
+        private final TokenBucket bucket;
+        private final Context context = Context.current();
+        private Listener<S> listener;
+        private Metadata headers;
+        private Q message;
+        private int requested;
+        private volatile int attempt = 0;
+        // guarded by this
+        private ClientCall<Q, S> current;
+        private ScheduledFuture<?> pending;
+        private boolean cancelled;
+
+        LimitedCall(MethodDescriptor<Q, S> method, CallOptions callOptions, Channel next, TokenBucket bucket) {
+            this.method = method;
+            this.callOptions = callOptions;
+            this.next = next;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public void start(Listener<S> listener, Metadata headers) {
+            this.listener = listener;
+            this.headers = headers;
+        }
+
+        @Override
+        public void request(int numMessages) {
+            ClientCall<Q, S> call;
+            synchronized (this) {
+                requested += numMessages;
+                call = current;
+            }
+            if (call != null) call.request(numMessages);
+        }
+
+        @Override
+        public void sendMessage(Q message) {
+            this.message = message;
+        }
+
+        @Override
+        public void halfClose() {
+            startAttempt(0);
+        }
+
+        @Override
+        public void cancel(String message, Throwable cause) {
+            ClientCall<Q, S> call;
+            ScheduledFuture<?> waiting;
+            synchronized (this) {
+                if (cancelled) return;
+                cancelled = true;
+                call = current;
+                waiting = pending;
+            }
+            if (call != null) {
+                call.cancel(message, cause);
+            } else if (waiting != null && waiting.cancel(false)) {
+                close(Status.CANCELLED.withDescription(message).withCause(cause));
+            }
+        }
+
+        @Override
+        public synchronized boolean isReady() {
+            return current != null && current.isReady();
+        }
+
+        private void startAttempt(long delayNanos) {
+            long wait = Math.max(delayNanos, bucket.reserve());
+            Deadline deadline = callOptions.getDeadline();
+            if (wait > 0 && deadline != null && deadline.timeRemaining(TimeUnit.NANOSECONDS) <= wait) {
+                bucket.release();
+                close(Status.DEADLINE_EXCEEDED.withDescription("Rate limit of " + serviceName(method) +
+                        " is not reset before the deadline, wait " + TimeUnit.NANOSECONDS.toMillis(wait) + " ms"));
+                return;
+            }
+            if (wait <= 0) {
+                run();
+                return;
+            }
+            synchronized (this) {
+                if (!cancelled) {
+                    pending = scheduler.schedule(context.wrap(this::run), wait, TimeUnit.NANOSECONDS);
+                    return;
+                }
+            }
+            close(Status.CANCELLED.withDescription("Call is cancelled"));
+        }
+
+        private void run() {
+            ClientCall<Q, S> call;
+            int numMessages;
+            synchronized (this) {
+                pending = null;
+                if (cancelled) {
+                    call = null;
+                    numMessages = 0;
+                } else {
+                    call = next.newCall(method, callOptions);
+                    current = call;
+                    numMessages = requested;
+                    attempt++;
+                }
+            }
+            if (call == null) {
+                close(Status.CANCELLED.withDescription("Call is cancelled"));
+                return;
+            }
+            try {
+                var attemptHeaders = new Metadata();
+                attemptHeaders.merge(headers);
+                call.start(new AttemptListener(), attemptHeaders);
+                if (numMessages > 0) call.request(numMessages);
+                call.sendMessage(message);
+                call.halfClose();
+            } catch (RuntimeException e) {
+                call.cancel("Failed to start call", e);
+            }
+        }
+
+        private void close(Status status) {
+            Executor executor = callOptions.getExecutor();
+            if (executor == null) {
+                listener.onClose(status, new Metadata());
+            } else {
+                executor.execute(() -> listener.onClose(status, new Metadata()));
+            }
+        }
+
+        private void updateBucket(Metadata metadata) {
+            if (metadata == null) return;
+            long limit = parseNumber(metadata.get(LIMIT_HEADER));
+            long remaining = parseNumber(metadata.get(REMAINING_HEADER));
+            if (limit < 0 && remaining < 0) return;
+            bucket.update((int) Math.max(0, limit), (int) remaining, resetNanos(metadata));
+        }
+
+        /**
+         * @return delay before the next attempt in nanoseconds or -1 if the call should not be repeated
+         */
+        private long retryDelay(Status status, Metadata responseHeaders, Metadata trailers) {
+            synchronized (this) {
+                current = null;
+                if (cancelled) return -1;
+            }
+            if (attempt >= maxAttempts) return -1;
+            var code = status.getCode();
+            boolean exhausted = code == Status.Code.RESOURCE_EXHAUSTED;
+            if (!exhausted && !(code == Status.Code.UNAVAILABLE && !NOT_IDEMPOTENT_METHODS.contains(method.getBareMethodName())))
+                return -1;
+            long delay = backoff(attempt);
+            if (exhausted) {
+                // other calls to the service wait for the reset too, the retry only adds jitter to it
+                long reset = resetNanos(trailers);
+                if (reset < 0) reset = resetNanos(responseHeaders);
+                bucket.exhaust(reset > 0 ? reset : delay);
+                delay = ThreadLocalRandom.current().nextLong(initialBackoffNanos + 1);
+            }
+            Deadline deadline = callOptions.getDeadline();
+            if (deadline != null && deadline.timeRemaining(TimeUnit.NANOSECONDS) <= delay) return -1;
+            return delay;
+        }
+
+        private class AttemptListener extends Listener<S> {
+            private Metadata responseHeaders;
+            private S response;
+
+            @Override
+            public void onHeaders(Metadata headers) {
+                updateBucket(headers);
+                responseHeaders = headers;
+            }
+
+            @Override
+            public void onMessage(S message) {
+                response = message;
+            }
+
+            @Override
+            public void onReady() {
+                listener.onReady();
+            }
+
+            @Override
+            public void onClose(Status status, Metadata trailers) {
+                updateBucket(trailers);
+                long delay = retryDelay(status, responseHeaders, trailers);
+                if (delay >= 0) {
+                    retries.incrementAndGet();
+                    log.info("{} failed with {}, attempt {} of {} in {} ms", method.getFullMethodName(), status.getCode(),
+                            attempt + 1, maxAttempts, TimeUnit.NANOSECONDS.toMillis(delay));
+                    startAttempt(delay);
+                    return;
+                }
+                if (responseHeaders != null) listener.onHeaders(responseHeaders);
+                if (response != null) listener.onMessage(response);
+                listener.onClose(status, trailers);
+            }
+        }
+    }
+}
@@ -4,60 +4,91 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.TradingCalendar;
 import ru.tinkoff.piapi.contract.v1.*;
 import ru.tinkoff.piapi.core.InvestApi;
 import ru.tinkoff.piapi.core.OrdersService;
 
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import static ru.tinkoff.piapi.core.utils.Helpers.unaryCall;
 
 /**
- * MarketService implementation for real exchange account
+ * MarketService implementation for real exchange account. Other accounts of the token are available
+ * through @{@link AccountOperations}
  */
 @Service
 @RequiredArgsConstructor
 @Slf4j
-public class RealMarketService extends MarketServiceBase {
+public class RealMarketService extends MarketServiceBase implements AccountOperations {
 
     public static final String MOEX_EXCHANGE = "MOEX";
-    private InvestApi investApi;
-    @Value("${app.config.appname}")
-    private String appname;
+    private static final int CALENDAR_DAYS = 28;
+    private static final int SCHEDULE_REQUEST_DAYS = 7;
     @Value("${app.config.market-account}")
     protected String accountId;
-    private OperationsServiceGrpc.OperationsServiceBlockingStub operationsBlockingStub;
+    private volatile TradingCalendar tradingCalendar;
 
     private OperationsServiceGrpc.OperationsServiceBlockingStub getOperationsBlocking() {
-        if (operationsBlockingStub == null) {
-            var channel = getInvestApi().getChannel();
-            operationsBlockingStub = OperationsServiceGrpc.newBlockingStub(channel);
-        }
-        return operationsBlockingStub;
+        // stubs are cheap, the channel is shared
+        return OperationsServiceGrpc.newBlockingStub(getInvestApi().getChannel());
     }
 
     @Override
     public PortfolioResponse getPortfolio() {
+        return getPortfolio(accountId);
+    }
+
+    @Override
+    public PortfolioResponse getPortfolio(String accountId) {
         var request = PortfolioRequest.newBuilder().setAccountId(accountId).build();
         return unaryCall(() -> getOperationsBlocking().getPortfolio(request));
     }
 
     @Override
     public boolean isWorkingHours() {
-        var now = now();
-        TradingSchedule schedule = getInvestApi().getInstrumentsService().getTradingScheduleSync(MOEX_EXCHANGE, now, now.plus(1, ChronoUnit.MINUTES));
-        var nowSeconds = now.getEpochSecond();
-        for (TradingDay tradingDay : schedule.getDaysList()) {
-            if (tradingDay.getStartTime().getSeconds() > nowSeconds)
-                return false;
-            if (nowSeconds < tradingDay.getEndTime().getSeconds())
-                return tradingDay.getIsTradingDay();
+        return getTradingCalendar().isWorkingTime(now());
+    }
+
+    /**
+     * Get MOEX trading calendar for the next @{@link #CALENDAR_DAYS} days. The calendar is loaded once
+     * and reloaded only when it does not cover current day anymore
+     * @return trading calendar covering current day
+     */
+    public TradingCalendar getTradingCalendar() {
+        var today = LocalDate.ofInstant(now(), ZoneOffset.UTC);
+        var calendar = tradingCalendar;
+        if (calendar == null || !calendar.covers(today) || !calendar.covers(today.plusDays(1))) {
+            calendar = loadTradingCalendar(today.minusDays(1), today.plusDays(CALENDAR_DAYS));
+            tradingCalendar = calendar;
+        }
+        return calendar;
+    }
+
+    private TradingCalendar loadTradingCalendar(LocalDate firstDay, LocalDate lastDay) {
+        log.info("Load trading schedule for {} from {} to {}", MOEX_EXCHANGE, firstDay, lastDay);
+        var days = new ArrayList<TradingDay>();
+        for (var from = firstDay; !from.isAfter(lastDay); from = from.plusDays(SCHEDULE_REQUEST_DAYS)) {
+            var to = from.plusDays(SCHEDULE_REQUEST_DAYS - 1);
+            if (to.isAfter(lastDay)) to = lastDay;
+            TradingSchedule schedule = requestTradingSchedule(from.atStartOfDay(ZoneOffset.UTC).toInstant(),
+                    to.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+            days.addAll(schedule.getDaysList());
         }
+        return TradingCalendar.fromSchedule(firstDay, lastDay, days);
+    }
 
-        return false;
+    /**
+     * Requests @{@link #MOEX_EXCHANGE} trading schedule from the exchange, the calendar is not used
+     */
+    protected TradingSchedule requestTradingSchedule(Instant from, Instant to) {
+        return getInvestApi().getInstrumentsService().getTradingScheduleSync(MOEX_EXCHANGE, from, to);
     }
 
     @Override
@@ -67,16 +98,41 @@ public class RealMarketService extends MarketServiceBase {
 
     @Override
     public List<OrderState> getOrders() {
+        return getOrders(accountId);
+    }
+
+    @Override
+    public List<OrderState> getOrders(String accountId) {
         OrdersService ordersService = getInvestApi().getOrdersService();
         return ordersService.getOrdersSync(accountId);
     }
 
     @Override
     public void cancelOrder(String orderId) {
+        cancelOrder(accountId, orderId);
+    }
+
+    @Override
+    public void cancelOrder(String accountId, String orderId) {
         OrdersService ordersService = getInvestApi().getOrdersService();
         ordersService.cancelOrderSync(accountId, orderId);
     }
 
+    @Override
+    public OrderState getOrderStateSync(String orderId) {
+        return getOrderState(accountId, orderId).join();
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderStateAsync(String orderId) {
+        return getOrderState(accountId, orderId);
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderState(String accountId, String orderId) {
+        return getInvestApi().getOrdersService().getOrderState(accountId, orderId);
+    }
+
     public String sellMarket(String figi, int numberOfLots) {
         log.info("sell {} lots={}", figi, numberOfLots);
         return postOrderSync(figi, numberOfLots, OrderDirection.ORDER_DIRECTION_SELL);
@@ -89,8 +145,15 @@ public class RealMarketService extends MarketServiceBase {
 
     private String postOrderSync(String figi, int numberOfLots, OrderDirection orderDirection) {
         var orderId = UUID.randomUUID().toString();
-        getInvestApi().getOrdersService().postOrderSync(figi, numberOfLots, Quotation.getDefaultInstance(), orderDirection, accountId, OrderType.ORDER_TYPE_MARKET, orderId);
-        return orderId;
+        var response = getInvestApi().getOrdersService().postOrderSync(figi, numberOfLots, Quotation.getDefaultInstance(), orderDirection, accountId, OrderType.ORDER_TYPE_MARKET, orderId);
+        return response.getOrderId();
+    }
+
+    /**
+     * @return configured real account, it is used when account is not given explicitly
+     */
+    public String getConfiguredAccountId() {
+        return accountId == null ? "" : accountId;
     }
 
     @Override
@@ -98,25 +161,41 @@ public class RealMarketService extends MarketServiceBase {
         if (token == null || token.isBlank()){
             throw new IllegalArgumentException("Token is not valid. Please, check configuration in src/main/resources/application.yaml");
         }
-        if (investApi == null) {
-            investApi = InvestApi.create(token, appname);
-        }
-        return investApi;
+        return investApiRegistry.get(InvestApiRegistry.Endpoint.REAL);
     }
 
     @Override
     public String validateToken() {
+        var tokenValidation = validateTradingToken();
+        if (tokenValidation != null)
+            return tokenValidation;
+
+        if (accountId == null || accountId.isBlank())
+            return "Please configure parameter \"market-account\" in src/main/resources/application.yaml";
+        return validateAccount(accountId);
+    }
+
+    /**
+     * @return true if real account is configured
+     */
+    public boolean hasAccount() {
+        return accountId != null && !accountId.isBlank();
+    }
+
+    @Override
+    public String validateTradingToken() {
         var superValidation = super.validateToken();
         if (superValidation != null)
             return superValidation;
         var investApi = getInvestApi();
         if (investApi.isReadonlyMode())
             return "Token is not valid for real market. It is readonly.";
+        return null;
+    }
 
-        if (accountId == null || accountId.isBlank())
-            return "Please configure parameter \"market-account\" in src/main/resources/application.yaml";
-
-        List<Account> accounts = investApi.getUserService().getAccountsSync();
+    @Override
+    public String validateAccount(String accountId) {
+        List<Account> accounts = getInvestApi().getUserService().getAccountsSync();
         for (var account: accounts) {
             if (account.getId().equals(accountId)) {
                 if (account.getAccessLevel() != AccessLevel.ACCOUNT_ACCESS_LEVEL_FULL_ACCESS)
@@ -125,6 +204,28 @@ public class RealMarketService extends MarketServiceBase {
             }
         }
 
-        return "Account not found. Please check configuration in src/main/resources/application.yaml";
+        return "Account " + accountId + " not found. Please check configuration in src/main/resources/application.yaml";
+    }
+
+    @Override
+    public CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots) {
+        return postMarketOrder(accountId, figi, numberOfLots, false);
+    }
+
+    @Override
+    public CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots) {
+        return postMarketOrder(accountId, figi, numberOfLots, true);
+    }
+
+    @Override
+    public CompletableFuture<String> postMarketOrder(String accountId, String figi, int numberOfLots, boolean buy) {
+        log.info("{} {} lots={} account={}", buy ? "buy" : "sell", figi, numberOfLots, accountId);
+        return postOrder(accountId, figi, numberOfLots, buy ? OrderDirection.ORDER_DIRECTION_BUY : OrderDirection.ORDER_DIRECTION_SELL);
+    }
+
+    private CompletableFuture<String> postOrder(String accountId, String figi, int numberOfLots, OrderDirection orderDirection) {
+        var orderId = UUID.randomUUID().toString();
+        return getInvestApi().getOrdersService().postOrder(figi, numberOfLots, Quotation.getDefaultInstance(), orderDirection, accountId, OrderType.ORDER_TYPE_MARKET, orderId).
+                thenApply(PostOrderResponse::getOrderId);
     }
 }
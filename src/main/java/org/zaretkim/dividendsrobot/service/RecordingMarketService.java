@@ -0,0 +1,172 @@
+package org.zaretkim.dividendsrobot.service;
+
+import com.google.protobuf.BoolValue;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.StringValue;
+import com.google.protobuf.Timestamp;
+import org.zaretkim.dividendsrobot.marketdata.MarketCallLog;
+import ru.tinkoff.piapi.contract.v1.*;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decorator which passes all calls to the wrapped @{@link MarketService} and writes its responses to @{@link MarketCallLog}.
+ * The log is served back by @{@link ReplayMarketService} without access to the exchange
+ */
+public class RecordingMarketService extends MarketServiceDecorator implements Closeable {
+    static final String PORTFOLIO = "portfolio";
+    static final String WORKING_HOURS = "isWorkingHours";
+    static final String SHARE = "share";
+    static final String DIVIDENDS = "dividends";
+    static final String LAST_PRICE = "lastPrice";
+    static final String LAST_PRICES = "lastPrices";
+    static final String NOW = "now";
+    static final String SELL = "sell";
+    static final String BUY = "buy";
+    static final String ORDERS = "orders";
+    static final String ORDER_STATE = "orderState";
+
+    private final MarketCallLog.Writer writer;
+
+    public RecordingMarketService(MarketService delegate, MarketCallLog.Writer writer) {
+        super(delegate);
+        this.writer = writer;
+    }
+
+    static String figisKey(Collection<String> figis) {
+        return String.join(" ", new TreeSet<>(figis));
+    }
+
+    static String orderKey(String figi, int numberOfLots) {
+        return figi + " " + numberOfLots;
+    }
+
+    private <T extends MessageLite> T record(String call, String key, T message) {
+        writer.write(call, key, message == null ? List.of() : List.of(message));
+        return message;
+    }
+
+    private <T extends MessageLite> List<T> recordList(String call, String key, List<T> messages) {
+        writer.write(call, key, messages);
+        return messages;
+    }
+
+    private String recordOrderId(String call, String key, String orderId) {
+        record(call, key, orderId == null ? null : StringValue.of(orderId));
+        return orderId;
+    }
+
+    @Override
+    public PortfolioResponse getPortfolio() {
+        return record(PORTFOLIO, "", delegate.getPortfolio());
+    }
+
+    @Override
+    public boolean isWorkingHours() {
+        return record(WORKING_HOURS, "", BoolValue.of(delegate.isWorkingHours())).getValue();
+    }
+
+    @Override
+    public Share getShareByFigiSync(String figi) {
+        return record(SHARE, figi, delegate.getShareByFigiSync(figi));
+    }
+
+    @Override
+    public List<Dividend> getDividendsSync(String figi) {
+        return recordList(DIVIDENDS, figi, delegate.getDividendsSync(figi));
+    }
+
+    @Override
+    public LastPrice getLastPricesSync(String figi) {
+        return record(LAST_PRICE, figi, delegate.getLastPricesSync(figi));
+    }
+
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        var lastPrices = delegate.getLastPrices(figis);
+        recordList(LAST_PRICES, figisKey(figis), List.copyOf(lastPrices.values()));
+        return lastPrices;
+    }
+
+    @Override
+    public Instant now() {
+        var now = delegate.now();
+        record(NOW, "", Timestamp.newBuilder().setSeconds(now.getEpochSecond()).setNanos(now.getNano()).build());
+        return now;
+    }
+
+    @Override
+    public String sellMarket(String figi, int numberOfLots) {
+        return recordOrderId(SELL, orderKey(figi, numberOfLots), delegate.sellMarket(figi, numberOfLots));
+    }
+
+    @Override
+    public String buyMarket(String figi, int numberOfLots) {
+        return recordOrderId(BUY, orderKey(figi, numberOfLots), delegate.buyMarket(figi, numberOfLots));
+    }
+
+    @Override
+    public List<OrderState> getOrders() {
+        return recordList(ORDERS, "", delegate.getOrders());
+    }
+
+    @Override
+    public void cancelOrder(String orderId) {
+        delegate.cancelOrder(orderId);
+    }
+
+    @Override
+    public OrderState getOrderStateSync(String orderId) {
+        return record(ORDER_STATE, orderId, delegate.getOrderStateSync(orderId));
+    }
+
+    @Override
+    public String validateToken() {
+        return delegate.validateToken();
+    }
+
+    @Override
+    public CompletableFuture<Share> getShareByFigiAsync(String figi) {
+        return delegate.getShareByFigiAsync(figi).thenApply(share -> record(SHARE, figi, share));
+    }
+
+    @Override
+    public CompletableFuture<List<Dividend>> getDividendsAsync(String figi) {
+        return delegate.getDividendsAsync(figi).thenApply(dividends -> recordList(DIVIDENDS, figi, dividends));
+    }
+
+    @Override
+    public CompletableFuture<Map<String, LastPrice>> getLastPricesAsync(Collection<String> figis) {
+        String key = figisKey(figis);
+        return delegate.getLastPricesAsync(figis).thenApply(lastPrices -> {
+            recordList(LAST_PRICES, key, List.copyOf(lastPrices.values()));
+            return lastPrices;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots) {
+        return delegate.sellMarketAsync(figi, numberOfLots).thenApply(orderId -> recordOrderId(SELL, orderKey(figi, numberOfLots), orderId));
+    }
+
+    @Override
+    public CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots) {
+        return delegate.buyMarketAsync(figi, numberOfLots).thenApply(orderId -> recordOrderId(BUY, orderKey(figi, numberOfLots), orderId));
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderStateAsync(String orderId) {
+        return delegate.getOrderStateAsync(orderId).thenApply(orderState -> record(ORDER_STATE, orderId, orderState));
+    }
+
+    @Override
+    public void close() {
+        writer.close();
+    }
+}
@@ -0,0 +1,124 @@
+package org.zaretkim.dividendsrobot.service;
+
+import com.google.protobuf.BoolValue;
+import com.google.protobuf.Parser;
+import com.google.protobuf.StringValue;
+import com.google.protobuf.Timestamp;
+import org.zaretkim.dividendsrobot.marketdata.MarketCallLog;
+import ru.tinkoff.piapi.contract.v1.*;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.zaretkim.dividendsrobot.service.RecordingMarketService.*;
+
+/**
+ * MarketService which serves responses recorded by @{@link RecordingMarketService}. It does not access the exchange,
+ * so a recorded session can be replayed offline and deterministically. Orders are not executed,
+ * recorded order ids are returned instead. Call which was not recorded fails with @{@link IllegalStateException}
+ */
+public class ReplayMarketService implements MarketService {
+    private final MarketCallLog.Replay replay;
+
+    public ReplayMarketService(MarketCallLog.Replay replay) {
+        this.replay = replay;
+    }
+
+    private <T> T single(String call, String key, Parser<T> parser) {
+        var messages = replay.next(call, key, parser);
+        return messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public PortfolioResponse getPortfolio() {
+        return single(PORTFOLIO, "", PortfolioResponse.parser());
+    }
+
+    @Override
+    public boolean isWorkingHours() {
+        return single(WORKING_HOURS, "", BoolValue.parser()).getValue();
+    }
+
+    @Override
+    public Share getShareByFigiSync(String figi) {
+        return single(SHARE, figi, Share.parser());
+    }
+
+    @Override
+    public List<Dividend> getDividendsSync(String figi) {
+        return replay.next(DIVIDENDS, figi, Dividend.parser());
+    }
+
+    @Override
+    public LastPrice getLastPricesSync(String figi) {
+        if (!replay.contains(LAST_PRICE, figi))
+            return getLastPrices(List.of(figi)).get(figi);
+        return single(LAST_PRICE, figi, LastPrice.parser());
+    }
+
+    /**
+     * Prices requested together are recorded together, prices requested by one figi are used if there is no such record
+     */
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        var result = new HashMap<String, LastPrice>();
+        String key = figisKey(figis);
+        if (!replay.contains(LAST_PRICES, key) && figis.size() == 1) {
+            var figi = figis.iterator().next();
+            var lastPrice = single(LAST_PRICE, figi, LastPrice.parser());
+            if (lastPrice != null) result.put(figi, lastPrice);
+            return result;
+        }
+        for (LastPrice lastPrice : replay.next(LAST_PRICES, key, LastPrice.parser())) {
+            result.put(lastPrice.getFigi(), lastPrice);
+        }
+        return result;
+    }
+
+    @Override
+    public Instant now() {
+        var timestamp = single(NOW, "", Timestamp.parser());
+        return Instant.ofEpochSecond(timestamp.getSeconds(), timestamp.getNanos());
+    }
+
+    @Override
+    public String sellMarket(String figi, int numberOfLots) {
+        return orderId(SELL, orderKey(figi, numberOfLots));
+    }
+
+    @Override
+    public String buyMarket(String figi, int numberOfLots) {
+        return orderId(BUY, orderKey(figi, numberOfLots));
+    }
+
+    private String orderId(String call, String key) {
+        var orderId = single(call, key, StringValue.parser());
+        return orderId == null ? null : orderId.getValue();
+    }
+
+    @Override
+    public List<OrderState> getOrders() {
+        return replay.next(ORDERS, "", OrderState.parser());
+    }
+
+    @Override
+    public void cancelOrder(String orderId) {
+    }
+
+    /**
+     * Logs recorded before order states were requested do not have them, such orders are treated as executed
+     */
+    @Override
+    public OrderState getOrderStateSync(String orderId) {
+        if (orderId == null || !replay.contains(ORDER_STATE, orderId)) return null;
+        return single(ORDER_STATE, orderId, OrderState.parser());
+    }
+
+    @Override
+    public String validateToken() {
+        return null;
+    }
+}
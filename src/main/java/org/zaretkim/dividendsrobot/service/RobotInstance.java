@@ -0,0 +1,195 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Robot which executes @{@link PreDividendsStrategyService#step} of its own strategy right after start and then
+ * once a day at the configured time. Failed step is retried according to the schedule.
+ * Steps of one robot never overlap. Robots share the scheduler, so a slow step of one robot does not delay
+ * other robots while the scheduler has free threads
+ */
+@Slf4j
+public class RobotInstance {
+    /**
+     * Daily step time and retry policy of a robot
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Schedule {
+        private final LocalTime stepTime;
+        private final ZoneId zone;
+        private final int maxRetries;
+        private final Duration retryDelay;
+    }
+
+    @Getter
+    private final String name;
+    @Getter
+    private final PreDividendsStrategyService strategy;
+    @Getter
+    private final List<String> accountIds;
+    private final BooleanSupplier step;
+    private final ScheduledExecutorService scheduler;
+    @Getter
+    private final Schedule schedule;
+    private final Runnable afterStep;
+    private final Runnable onStop;
+    private final Object lockObject = new Object();
+    private final ReentrantLock stepLock = new ReentrantLock();
+    private ScheduledFuture<?> dailyFuture;
+    private ScheduledFuture<?> retryFuture;
+    private boolean started = false;
+    private volatile boolean stopped = false;
+    @Getter
+    private volatile Instant lastStepTime;
+    @Getter
+    private volatile Boolean lastStepResult;
+    @Getter
+    private volatile int failedAttempts = 0;
+
+    /**
+     * @param name unique name of the robot
+     * @param strategy strategy with configured market service, it is used only by this robot
+     * @param scheduler scheduler shared by robots
+     * @param schedule daily step time and retry policy
+     * @param afterStep called after every step in the step thread
+     * @param onStop called once when the robot is stopped and its running step is finished
+     */
+    public RobotInstance(String name, PreDividendsStrategyService strategy, ScheduledExecutorService scheduler, Schedule schedule,
+                         Runnable afterStep, Runnable onStop) {
+        this(name, strategy, List.of(), strategy::step, scheduler, schedule, afterStep, onStop);
+    }
+
+    /**
+     * @param name unique name of the robot
+     * @param strategy strategy which parameters are used by @step
+     * @param accountIds accounts traded by @step, empty list for the account of the strategy market service
+     * @param step executes the step, returns false if the step should be retried
+     * @param scheduler scheduler shared by robots
+     * @param schedule daily step time and retry policy
+     * @param afterStep called after every step in the step thread
+     * @param onStop called once when the robot is stopped and its running step is finished
+     */
+    public RobotInstance(String name, PreDividendsStrategyService strategy, List<String> accountIds, BooleanSupplier step,
+                         ScheduledExecutorService scheduler, Schedule schedule, Runnable afterStep, Runnable onStop) {
+        this.name = name;
+        this.strategy = strategy;
+        this.accountIds = List.copyOf(accountIds);
+        this.step = step;
+        this.scheduler = scheduler;
+        this.schedule = schedule;
+        this.afterStep = afterStep;
+        this.onStop = onStop;
+    }
+
+    /**
+     * Executes the first step in the scheduler and schedules daily steps starting from the next day
+     */
+    public void start() {
+        synchronized (lockObject) {
+            if (started || stopped) throw new IllegalStateException("Robot " + name + " is already started");
+            started = true;
+            retryFuture = scheduler.schedule(() -> executeStep(0), 0, TimeUnit.MILLISECONDS);
+            scheduleNextDay();
+        }
+    }
+
+    /**
+     * Cancels scheduled steps and waits for the running step
+     */
+    public void stop() {
+        synchronized (lockObject) {
+            if (stopped) return;
+            stopped = true;
+            if (dailyFuture != null) dailyFuture.cancel(false);
+            if (retryFuture != null) retryFuture.cancel(false);
+        }
+        if (!stepLock.isHeldByCurrentThread()) {
+            stepLock.lock();
+            stepLock.unlock();
+        }
+        try {
+            onStop.run();
+        } catch (Throwable t) {
+            log.info("Failed to stop robot {}", name, t);
+        }
+    }
+
+    public boolean isRunning() {
+        return started && !stopped;
+    }
+
+    /**
+     * @return time of the next daily step or null if the robot is stopped
+     */
+    public Instant getNextStepTime() {
+        synchronized (lockObject) {
+            if (stopped || dailyFuture == null) return null;
+            return Instant.now().plusMillis(dailyFuture.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Schedules the step at the step time of the next calendar day. Today is always skipped: either the step was
+     * already executed by @{@link #start} or this is the daily step of today
+     */
+    private void scheduleNextDay() {
+        var now = ZonedDateTime.now(schedule.getZone());
+        var next = now.with(schedule.getStepTime()).plusDays(1);
+        dailyFuture = scheduler.schedule(() -> {
+            synchronized (lockObject) {
+                if (stopped) return;
+                // the new day replaces retries of the previous one
+                if (retryFuture != null) retryFuture.cancel(false);
+                scheduleNextDay();
+            }
+            executeStep(0);
+        }, Duration.between(now, next).toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void executeStep(int tryNumber) {
+        boolean stepResult;
+        stepLock.lock();
+        try {
+            if (stopped) return;
+            stepResult = step.getAsBoolean();
+            lastStepTime = Instant.now();
+            lastStepResult = stepResult;
+            try {
+                afterStep.run();
+            } catch (Throwable t) {
+                log.info("Robot {} failed after step", name, t);
+            }
+        } finally {
+            stepLock.unlock();
+        }
+        if (stepResult) {
+            failedAttempts = 0;
+            return;
+        }
+        failedAttempts++;
+        if (tryNumber >= schedule.getMaxRetries()) {
+            log.info("Robot {} failed to execute next step. Stop rescheduling, wait for next day", name);
+            return;
+        }
+        log.info("Robot {} failed to execute next step. Try again in {}", name, schedule.getRetryDelay());
+        synchronized (lockObject) {
+            if (stopped) return;
+            retryFuture = scheduler.schedule(() -> executeStep(tryNumber + 1), schedule.getRetryDelay().toMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+}
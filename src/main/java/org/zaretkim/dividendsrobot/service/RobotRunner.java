@@ -1,146 +1,356 @@
 package org.zaretkim.dividendsrobot.service;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.MarketCallLog;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 /**
- * Runner that schedules and executes @{@link PreDividendsStrategyService::step} once a day
+ * Runner of robots that execute @{@link PreDividendsStrategyService::step} once a day. The default robot uses
+ * the configured @{@link PreDividendsStrategyService}, streamed prices and take profit. Additional named robots
+ * have their own copy of the strategy configuration and run independently of each other on a shared scheduler
  */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class RobotRunner {
+    public static final String DEFAULT_ROBOT = "default";
     private static final String ZONE_MOSCOW = "Europe/Moscow";
+    public static final int BACKTEST_DAYS = 365;
     private final PreDividendsStrategyService preDividendsStrategyService;
     private final SandboxMarketService sandboxMarketService;
-    private final BacktestMarketService backtestMarketService;
     private final RealMarketService realMarketService;
-    private Timer timer;
-    private boolean executingStep = false;
+    private final PriceStreamService priceStreamService;
+    private final TakeProfitEngine takeProfitEngine;
+    private final StatusService statusService;
+    private final MeterRegistry meterRegistry;
+    @Value("${app.config.recording-file:}")
+    private String recordingFile;
+    @Value("${app.config.robots.scheduler-threads}")
+    private int schedulerThreads = 4;
+    @Value("${app.config.robots.step-time}")
+    private String stepTime = "12:00";
+    @Value("${app.config.robots.max-retries}")
+    private int maxRetries = 9;
+    @Value("${app.config.robots.retry-delay}")
+    private Duration retryDelay = Duration.ofMinutes(30);
+    @Value("${app.config.robots.account-threads}")
+    private int accountThreads = 8;
+    private RecordingMarketService recordingMarketService;
+    private ScheduledThreadPoolExecutor scheduler;
+    private ExecutorService accountExecutor;
+    private final Map<String, RobotInstance> robots = new ConcurrentHashMap<>();
     private final Object lockObject = new Object();
 
-    public String start() {
-        stopRunningRobot();
-        preDividendsStrategyService.setMarketService(realMarketService);
-        var success = startRobot();
-        if (success)
-            return "Robot is started";
-        else
-            return "Failed to start robot. Try again later";
+    @PostConstruct
+    public void init() {
+        scheduler = new ScheduledThreadPoolExecutor(Math.max(1, schedulerThreads), r -> {
+            var thread = new Thread(r, "robot-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        accountExecutor = Executors.newFixedThreadPool(Math.max(1, accountThreads), r -> {
+            var thread = new Thread(r, "robot-account");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
-    public String startSandbox() {
-        stopRunningRobot();
-        preDividendsStrategyService.setMarketService(sandboxMarketService);
-        var success = startRobot();
-        if (success)
-            return "Robot is started in sandbox";
-        else
-            return "Failed to start robot. Try again later";
-    }
-
-    public String startBacktest() {
-        backtestMarketService.Reset();
-        preDividendsStrategyService.setMarketService(backtestMarketService);
-        final int backDays = 365;
-        var sb = new StringBuilder();
-        BigDecimal initialFunds = preDividendsStrategyService.totalAmountOfFunds(backtestMarketService.getPortfolio());
-        sb.append("Backtest is started with initial funds ").
-                append(initialFunds).
-                append(" on historical data for the last ").append(backDays).append(" days<br>");
-        LocalDateTime localDateTime = LocalDateTime.now().minus(backDays, ChronoUnit.DAYS);
 
-        Instant fakeTime = localDateTime.toInstant(ZoneOffset.of("+03:00:00"));
-        try {
-            for (int i = 0; i < backDays; i++) {
-                backtestMarketService.setFakeNow(fakeTime);
-                preDividendsStrategyService.step();
-                fakeTime = fakeTime.plus(1, ChronoUnit.DAYS);
-            }
-        } catch (Throwable t) {
-            log.info(t.getMessage(), t);
-            return "Please, try again later. Backtest failed with error: " + t.getMessage();
+    public String start() {
+        synchronized (lockObject) {
+            var owner = findRobotTradingAccounts(DEFAULT_ROBOT, accountKeys(false, List.of()));
+            if (owner != null) return accountIsTradedMessage(DEFAULT_ROBOT, owner);
+            stopRobot(DEFAULT_ROBOT);
+            preDividendsStrategyService.setMarketService(withRecording(new MeteredMarketService(realMarketService, meterRegistry, "real")));
+            startDefaultRobot();
         }
-        var result = preDividendsStrategyService.totalAmountOfFunds(backtestMarketService.getPortfolio());
-        sb.append("Final result: ").append(result).append("<br>");
-        var yield = result.subtract(initialFunds).divide(initialFunds, RoundingMode.CEILING).multiply(BigDecimal.valueOf(100));
-        sb.append("Yield: ").append(yield).append("%");
-        return sb.toString();
+        return "Robot is started";
     }
 
-    public void stopRunningRobot() {
+    public String startSandbox() {
         synchronized (lockObject) {
-            if (timer == null) return;
-            timer.cancel();
-            timer = null;
-            if (executingStep) {
-                try {
-                    lockObject.wait();
-                } catch (InterruptedException e) {
-                    log.error(e.getMessage(), e);
-                }
-            }
+            var owner = findRobotTradingAccounts(DEFAULT_ROBOT, accountKeys(true, List.of()));
+            if (owner != null) return accountIsTradedMessage(DEFAULT_ROBOT, owner);
+            stopRobot(DEFAULT_ROBOT);
+            preDividendsStrategyService.setMarketService(withRecording(new MeteredMarketService(sandboxMarketService, meterRegistry, "sandbox")));
+            startDefaultRobot();
         }
+        return "Robot is started in sandbox";
     }
 
-    private boolean startRobot() {
+    /**
+     * Starts additional robot with the current strategy configuration, robot with the same name is restarted.
+     * Robot is not started if one of its accounts is traded by another running robot: robots would cancel orders
+     * and close positions of each other and spend the same cash
+     * @param name name of the robot, must differ from @{@link #DEFAULT_ROBOT}
+     * @param sandbox true to trade in sandbox account, false to trade in real account
+     * @param allowedFigis figis separated by spaces or null to use configured allowed figis
+     * @param accountIds accounts to trade in parallel with shared market data, empty list to trade in configured account
+     */
+    public String startRobot(String name, boolean sandbox, String allowedFigis, List<String> accountIds) {
+        if (DEFAULT_ROBOT.equals(name))
+            throw new IllegalArgumentException("Use /start or /startSandbox to start " + DEFAULT_ROBOT + " robot");
+        var strategy = preDividendsStrategyService.copy();
+        if (allowedFigis != null && !allowedFigis.isBlank())
+            strategy.setAllowedFigis(allowedFigis.trim());
+        MarketServiceBase marketService = sandbox ? sandboxMarketService : realMarketService;
+        String implementation = sandbox ? "sandbox" : "real";
+        strategy.setMarketService(new MeteredMarketService(marketService, meterRegistry, implementation));
+        RobotInstance robot;
+        if (accountIds.isEmpty()) {
+            robot = new RobotInstance(name, strategy, scheduler, schedule(), () -> {}, () -> {});
+        } else {
+            var accounts = new MultiAccountStrategy(strategy, marketService, (AccountOperations) marketService, accountIds,
+                    accountExecutor, meterRegistry, implementation);
+            robot = new RobotInstance(name, strategy, accountIds, accounts::step, scheduler, schedule(), () -> {}, () -> {});
+        }
         synchronized (lockObject) {
-            if (timer != null) return false;
-            timer = new Timer();
+            var owner = findRobotTradingAccounts(name, accountKeys(sandbox, accountIds));
+            if (owner != null) return accountIsTradedMessage(name, owner);
+            stopRobot(name);
+            startInstance(robot);
         }
-        executeRobotStepWithRescheduleOnError(0);
-        LocalDateTime tomorrowMiddayLocalDateTime = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).plus(36, ChronoUnit.HOURS);
-        Date tomorrowMiddayDate = Date.from(tomorrowMiddayLocalDateTime.atZone(ZoneId.of(ZONE_MOSCOW)).toInstant());
-        TimerTask timerTask = new TimerTask() {
-            @Override
-            public void run() {
-                executeRobotStepWithRescheduleOnError(0);
-            }
-        };
-        final int every_24_hours = 24 * 60 * 60 * 1000;
-        timer.scheduleAtFixedRate(timerTask, tomorrowMiddayDate, every_24_hours);
+        return "Robot " + name + " is started" + (sandbox ? " in sandbox" : "") +
+                (accountIds.isEmpty() ? "" : " for accounts " + String.join(", ", accountIds));
+    }
+
+    /**
+     * Stops robot and waits for its running step
+     * @param name name of the robot
+     * @return false if there is no such robot
+     */
+    public boolean stopRobot(String name) {
+        var robot = robots.remove(name);
+        if (robot == null) return false;
+        robot.stop();
         return true;
     }
 
-    private void executeRobotStepWithRescheduleOnError(int tryNumber) {
-        var stepResult = executeRobotStep();
-        if (!stepResult ) {
-            if (tryNumber > 8) {
-                log.info("Failed to execute next step. Stop rescheduling, wait for next day");
-                return;
-            }
-            log.info("Failed to execute next step. Try again in 30 minutes");
-            TimerTask timerTask = new TimerTask() {
-                @Override
-                public void run() {
-                    executeRobotStepWithRescheduleOnError(tryNumber + 1);
-                }
-            };
-            final int in_30_minutes = 30 * 60 * 1000;
-            timer.schedule(timerTask,  in_30_minutes);
+    /**
+     * Stops all robots
+     */
+    public void stopRunningRobot() {
+        for (String name : List.copyOf(robots.keySet())) {
+            stopRobot(name);
         }
     }
 
-    private boolean executeRobotStep() {
-        synchronized (lockObject) {
-            executingStep = true;
+    @PreDestroy
+    public void shutdown() {
+        stopRunningRobot();
+        scheduler.shutdownNow();
+        accountExecutor.shutdownNow();
+    }
+
+    /**
+     * @return running robots sorted by name
+     */
+    public List<RobotInstance> getRobots() {
+        var result = new ArrayList<>(robots.values());
+        result.sort(Comparator.comparing(RobotInstance::getName));
+        return result;
+    }
+
+    private void startDefaultRobot() {
+        // the first step can take minutes, the robot is shown as running before it
+        statusService.start();
+        startInstance(new RobotInstance(DEFAULT_ROBOT, preDividendsStrategyService, scheduler, schedule(), () -> {
+            watchPrices();
+            statusService.refresh();
+        }, () -> {
+            statusService.clear();
+            takeProfitEngine.stop();
+            priceStreamService.stop();
+            closeRecording();
+        }));
+    }
+
+    private void startInstance(RobotInstance robot) {
+        robots.put(robot.getName(), robot);
+        robot.start();
+    }
+
+    /**
+     * @param name robot to be started, its running instance is ignored because it is restarted
+     * @param accounts keys of accounts from @{@link #accountKeys}
+     * @return name of another running robot which trades one of @accounts or null
+     */
+    private String findRobotTradingAccounts(String name, Set<String> accounts) {
+        for (RobotInstance robot : robots.values()) {
+            if (robot.getName().equals(name)) continue;
+            var marketService = MarketServiceDecorator.unwrap(robot.getStrategy().getMarketService());
+            var robotAccounts = accountKeys(marketService instanceof SandboxMarketService, robot.getAccountIds());
+            if (!Collections.disjoint(robotAccounts, accounts)) return robot.getName();
         }
-        var stepResult = preDividendsStrategyService.step();
-        synchronized (lockObject) {
-            executingStep = false;
-            lockObject.notifyAll();
+        return null;
+    }
+
+    /**
+     * @param accountIds accounts of the robot, empty list for the configured account
+     * @return accounts prefixed with the market, so equal ids of sandbox and real accounts differ
+     */
+    private Set<String> accountKeys(boolean sandbox, List<String> accountIds) {
+        String prefix = sandbox ? "sandbox:" : "real:";
+        if (accountIds.isEmpty())
+            return Set.of(prefix + (sandbox ? sandboxMarketService.getConfiguredAccountId() : realMarketService.getConfiguredAccountId()));
+        var result = new HashSet<String>();
+        for (String accountId : accountIds) {
+            result.add(prefix + accountId);
+        }
+        return result;
+    }
+
+    private static String accountIsTradedMessage(String name, String owner) {
+        return "Robot " + name + " is not started. Its account is already traded by robot " + owner;
+    }
+
+    private RobotInstance.Schedule schedule() {
+        return new RobotInstance.Schedule(LocalTime.parse(stepTime), ZoneId.of(ZONE_MOSCOW), maxRetries, retryDelay);
+    }
+
+    static Instant backtestStart(int backDays) {
+        LocalDateTime localDateTime = LocalDateTime.now().minus(backDays, ChronoUnit.DAYS);
+        return localDateTime.toInstant(ZoneOffset.of("+03:00:00"));
+    }
+
+    /**
+     * Executes strategy step for every trading day of the backtest. Days where the step cannot change anything
+     * are skipped by @{@link BacktestClock}, results are the same as with a step on every day
+     * @param strategy strategy to run
+     * @param marketService backtest service used by @strategy
+     * @param start first day of the backtest
+     * @param days number of days to run
+     * @param meterRegistry registry for simulated days and backtest throughput in days per second
+     */
+    public static void runBacktestDays(PreDividendsStrategyService strategy, BacktestMarketService marketService, Instant start, int days,
+                                       MeterRegistry meterRegistry) {
+        runBacktestDays(strategy, marketService, start, days, meterRegistry, daysDone -> {});
+    }
+
+    /**
+     * Same as @{@link #runBacktestDays(PreDividendsStrategyService, BacktestMarketService, Instant, int, MeterRegistry)}
+     * but reports progress after every simulated day
+     * @param progress receives number of simulated days, can stop the backtest by throwing @{@link CancellationException}
+     * @throws CancellationException if the thread is interrupted
+     */
+    static void runBacktestDays(PreDividendsStrategyService strategy, BacktestMarketService marketService, Instant start, int days,
+                                MeterRegistry meterRegistry, BacktestProgress progress) {
+        long startNanos = System.nanoTime();
+        marketService.setFakeNow(start);
+        var clock = new BacktestClock(start, marketService.getDividendWindows(List.of(strategy.getAllowedFigis().split("\\s+"))));
+        long steps = 0;
+        int i = 0;
+        while (i < days) {
+            if (Thread.currentThread().isInterrupted())
+                throw new CancellationException("Backtest is interrupted");
+            if (!marketService.hasOpenPositions() && !clock.isDividendDay(i)) {
+                i = Math.min(clock.nextDividendDay(i), days);
+                progress.onDay(i);
+                continue;
+            }
+            marketService.setFakeNow(clock.dayTime(i));
+            if (marketService.isWorkingHours()) {
+                strategy.step();
+                steps++;
+            }
+            i++;
+            progress.onDay(i);
+        }
+        // the last day is the same as without skipping, so the portfolio is valued at the end of the backtest
+        if (days > 0) marketService.setFakeNow(clock.dayTime(days - 1));
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Counter.builder("dividendsrobot.backtest.days").
+                description("Simulated backtest days").
+                register(meterRegistry).
+                increment(days);
+        Counter.builder("dividendsrobot.backtest.steps").
+                description("Strategy steps executed by backtests, days without possible decisions are skipped").
+                register(meterRegistry).
+                increment(steps);
+        DistributionSummary.builder("dividendsrobot.backtest.throughput").
+                description("Simulated backtest days per second").
+                baseUnit("days/s").
+                register(meterRegistry).
+                record(days / Math.max(seconds, 1e-9));
+    }
+
+    /**
+     * Receives progress of @{@link #runBacktestDays}
+     */
+    @FunctionalInterface
+    interface BacktestProgress {
+        void onDay(int daysDone);
+    }
+
+    static BigDecimal yieldInPercents(BigDecimal initialFunds, BigDecimal result) {
+        return result.subtract(initialFunds).divide(initialFunds, RoundingMode.CEILING).multiply(BigDecimal.valueOf(100));
+    }
+
+    /**
+     * Wraps @marketService into @{@link RecordingMarketService} if recording-file is configured.
+     * Every session is recorded into its own file named by @{@link MarketCallLog#sessionFile}, so restarts keep earlier sessions
+     */
+    private MarketService withRecording(MarketService marketService) {
+        if (recordingFile == null || recordingFile.isBlank()) return marketService;
+        Path file = MarketCallLog.sessionFile(Path.of(recordingFile), Instant.now());
+        log.info("Recording market responses to " + file);
+        recordingMarketService = new RecordingMarketService(marketService, MarketCallLog.create(file));
+        return recordingMarketService;
+    }
+
+    private void closeRecording() {
+        if (recordingMarketService == null) return;
+        recordingMarketService.close();
+        recordingMarketService = null;
+    }
+
+    /**
+     * Keeps streamed prices for allowed figis and for figis of open positions and watches open positions for take profit
+     */
+    private void watchPrices() {
+        try {
+            var figis = new HashSet<>(List.of(preDividendsStrategyService.getAllowedFigis().split("\\s+")));
+            var marketService = preDividendsStrategyService.getMarketService();
+            var portfolio = marketService.getPortfolio();
+            for (var position : portfolio.getPositionsList()) {
+                if ("share".equals(position.getInstrumentType()))
+                    figis.add(position.getFigi());
+            }
+            takeProfitEngine.watch(portfolio);
+            priceStreamService.subscribe(figis, MarketServiceDecorator.unwrap(marketService) instanceof SandboxMarketService);
+        } catch (Throwable t) {
+            log.info("Could not subscribe to prices", t);
         }
-        return stepResult;
     }
 }
@@ -12,27 +12,32 @@ import ru.tinkoff.piapi.core.SandboxService;
 import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Implements MarketService for sandbox account
+ * Implements MarketService for sandbox account. Other sandbox accounts of the token are available
+ * through @{@link AccountOperations}
  */
 @Service
 @RequiredArgsConstructor
 @Slf4j
-public class SandboxMarketService extends MarketServiceBase{
-    private InvestApi investApi;
+public class SandboxMarketService extends MarketServiceBase implements AccountOperations {
     @Value("${app.config.sandbox-account}")
     protected String accountId;
 
+    /**
+     * @return configured sandbox account, it is used when account is not given explicitly, empty if a new account is not opened yet
+     */
+    public String getConfiguredAccountId() {
+        return accountId == null ? "" : accountId;
+    }
+
     @Override
     protected InvestApi getInvestApi() {
         if (token == null || token.isBlank()){
             throw new IllegalArgumentException("Token is not valid. Please, check configuration in src/main/resources/application.yaml");
         }
-        if (investApi == null) {
-            investApi = InvestApi.createSandbox(token);
-        }
-        return investApi;
+        return investApiRegistry.get(InvestApiRegistry.Endpoint.SANDBOX);
     }
 
     private String getAccountId() {
@@ -46,9 +51,14 @@ public class SandboxMarketService extends MarketServiceBase{
     }
     @Override
     public PortfolioResponse getPortfolio() {
+        return getPortfolio(getAccountId());
+    }
+
+    @Override
+    public PortfolioResponse getPortfolio(String accountId) {
         InvestApi investApi = getInvestApi();
         SandboxService sandboxService = investApi.getSandboxService();
-        return sandboxService.getPortfolioSync(getAccountId());
+        return sandboxService.getPortfolioSync(accountId);
     }
 
     @Override
@@ -73,16 +83,52 @@ public class SandboxMarketService extends MarketServiceBase{
 
     @Override
     public List<OrderState> getOrders() {
+        return getOrders(getAccountId());
+    }
+
+    @Override
+    public List<OrderState> getOrders(String accountId) {
         SandboxService sandboxService = getInvestApi().getSandboxService();
-        String account = getAccountId();
-        return sandboxService.getOrdersSync(account);
+        return sandboxService.getOrdersSync(accountId);
     }
 
     @Override
     public void cancelOrder(String orderId) {
+        cancelOrder(getAccountId(), orderId);
+    }
+
+    @Override
+    public void cancelOrder(String accountId, String orderId) {
         SandboxService sandboxService = getInvestApi().getSandboxService();
-        String account = getAccountId();
-        sandboxService.cancelOrderSync(account, orderId);
+        sandboxService.cancelOrderSync(accountId, orderId);
+    }
+
+    @Override
+    public OrderState getOrderStateSync(String orderId) {
+        return getOrderState(getAccountId(), orderId).join();
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderStateAsync(String orderId) {
+        return getOrderState(getAccountId(), orderId);
+    }
+
+    @Override
+    public CompletableFuture<OrderState> getOrderState(String accountId, String orderId) {
+        return getInvestApi().getSandboxService().getOrderState(accountId, orderId);
+    }
+
+    @Override
+    public String validateTradingToken() {
+        return validateToken();
+    }
+
+    /**
+     * Sandbox accounts are not validated, orders for unknown account fail
+     */
+    @Override
+    public String validateAccount(String accountId) {
+        return null;
     }
 
     public String sellMarket(String figi, int numberOfLots) {
@@ -98,7 +144,29 @@ public class SandboxMarketService extends MarketServiceBase{
     private String postOrderSync(String figi, int numberOfLots, OrderDirection orderDirection) {
         var orderId = UUID.randomUUID().toString();
         var accountId = getAccountId();
-        getInvestApi().getSandboxService().postOrderSync(figi, numberOfLots, Quotation.getDefaultInstance(), orderDirection, accountId, OrderType.ORDER_TYPE_MARKET, orderId);
-        return orderId;
+        var response = getInvestApi().getSandboxService().postOrderSync(figi, numberOfLots, Quotation.getDefaultInstance(), orderDirection, accountId, OrderType.ORDER_TYPE_MARKET, orderId);
+        return response.getOrderId();
+    }
+
+    @Override
+    public CompletableFuture<String> sellMarketAsync(String figi, int numberOfLots) {
+        return postMarketOrder(getAccountId(), figi, numberOfLots, false);
+    }
+
+    @Override
+    public CompletableFuture<String> buyMarketAsync(String figi, int numberOfLots) {
+        return postMarketOrder(getAccountId(), figi, numberOfLots, true);
+    }
+
+    @Override
+    public CompletableFuture<String> postMarketOrder(String accountId, String figi, int numberOfLots, boolean buy) {
+        log.info("{} {} lots={} account={}", buy ? "buy" : "sell", figi, numberOfLots, accountId);
+        return postOrder(accountId, figi, numberOfLots, buy ? OrderDirection.ORDER_DIRECTION_BUY : OrderDirection.ORDER_DIRECTION_SELL);
+    }
+
+    private CompletableFuture<String> postOrder(String accountId, String figi, int numberOfLots, OrderDirection orderDirection) {
+        var orderId = UUID.randomUUID().toString();
+        return getInvestApi().getSandboxService().postOrder(figi, numberOfLots, Quotation.getDefaultInstance(), orderDirection, accountId, OrderType.ORDER_TYPE_MARKET, orderId).
+                thenApply(PostOrderResponse::getOrderId);
     }
 }
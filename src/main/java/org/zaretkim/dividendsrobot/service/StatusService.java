@@ -0,0 +1,181 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import org.zaretkim.dividendsrobot.marketdata.PriceBoard;
+import org.zaretkim.dividendsrobot.model.StatusSnapshot;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.PortfolioPosition;
+
+import javax.annotation.PostConstruct;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes @{@link StatusSnapshot} of the default robot. The snapshot is rebuilt from the exchange after every step
+ * and repriced in memory on every streamed price, so /status requests never call the exchange
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StatusService {
+    private final PreDividendsStrategyService preDividendsStrategyService;
+    private final PriceBoard priceBoard;
+    // versions continue after restart, so cached ETags of the previous process do not match
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final Object lockObject = new Object();
+    private volatile StatusSnapshot snapshot = StatusSnapshot.notRunning(versions.incrementAndGet());
+    // state of the last refresh which is repriced by streamed prices, guarded by lockObject
+    private final LinkedHashMap<String, PositionState> positions = new LinkedHashMap<>();
+    private String mode;
+    private long totalFunds;
+    private long freeMoney;
+    private int numberOfPositions;
+    private BigDecimal expectedYield;
+
+    private static class PositionState {
+        private final String figi;
+        private final String name;
+        private final long count;
+        private final long averagePrice;
+        // price used in @totalFunds, 0 if the position is not valued
+        private final long valuationPrice;
+        private final LastPrice lastPrice;
+        private final BigDecimal expectedYield;
+
+        private PositionState(String figi, String name, long count, long averagePrice, long valuationPrice,
+                              LastPrice lastPrice, BigDecimal expectedYield) {
+            this.figi = figi;
+            this.name = name;
+            this.count = count;
+            this.averagePrice = averagePrice;
+            this.valuationPrice = valuationPrice;
+            this.lastPrice = lastPrice;
+            this.expectedYield = expectedYield;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        priceBoard.addListener(this::onPrice);
+    }
+
+    /**
+     * @return the latest snapshot, it is never null
+     */
+    public StatusSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the snapshot from the portfolio of the strategy market service. Called after every step.
+     * Requests go through the decorators of the service, so they are metered and recorded like requests of the step
+     */
+    public void refresh() {
+        var marketService = preDividendsStrategyService.getMarketService();
+        if (marketService == null) {
+            clear();
+            return;
+        }
+        try {
+            var portfolio = marketService.getPortfolio();
+            var newPositions = new LinkedHashMap<String, PositionState>();
+            for (PortfolioPosition portfolioPosition : portfolio.getPositionsList()) {
+                if (!"share".equals(portfolioPosition.getInstrumentType())) continue;
+                var figi = portfolioPosition.getFigi();
+                var share = marketService.getShareByFigiSync(figi);
+                long count = portfolioPosition.getQuantityLots().getUnits() * share.getLot();
+                long averagePrice = portfolioPosition.hasAveragePositionPrice() ? FixedPoint.of(portfolioPosition.getAveragePositionPrice()) : 0;
+                long valuationPrice = portfolioPosition.hasCurrentPrice() ? FixedPoint.of(portfolioPosition.getCurrentPrice()) : 0;
+                BigDecimal positionYield = portfolioPosition.hasAveragePositionPrice() ?
+                        preDividendsStrategyService.calculateExpectedYield(portfolioPosition) : null;
+                newPositions.put(figi, new PositionState(figi, share.getName(), count, averagePrice, valuationPrice,
+                        priceBoard.get(figi), positionYield));
+            }
+            synchronized (lockObject) {
+                mode = modeOf(MarketServiceDecorator.unwrap(marketService));
+                freeMoney = FixedPoint.of(portfolio.getTotalAmountCurrencies());
+                totalFunds = freeMoney + FixedPoint.of(portfolio.getTotalAmountShares());
+                numberOfPositions = portfolio.getPositionsCount();
+                expectedYield = portfolio.hasExpectedYield() ? FixedPoint.toBigDecimal(FixedPoint.of(portfolio.getExpectedYield())) : null;
+                positions.clear();
+                positions.putAll(newPositions);
+                publish();
+            }
+        } catch (Throwable t) {
+            log.info("Could not refresh status", t);
+        }
+    }
+
+    /**
+     * Publishes snapshot of the started robot, so the robot is shown as running during its first step.
+     * If the portfolio cannot be loaded now, the snapshot has no funds until the step refreshes it
+     */
+    public void start() {
+        refresh();
+        var marketService = preDividendsStrategyService.getMarketService();
+        if (marketService == null) return;
+        synchronized (lockObject) {
+            if (mode != null) return;
+            mode = modeOf(MarketServiceDecorator.unwrap(marketService));
+            positions.clear();
+            snapshot = StatusSnapshot.loading(versions.incrementAndGet(), mode);
+        }
+    }
+
+    private static String modeOf(MarketService marketService) {
+        return marketService instanceof SandboxMarketService ? "sandbox" :
+                marketService instanceof BacktestMarketService ? "backtest" : "real";
+    }
+
+    /**
+     * Publishes snapshot of not running robot
+     */
+    public void clear() {
+        synchronized (lockObject) {
+            positions.clear();
+            mode = null;
+            snapshot = StatusSnapshot.notRunning(versions.incrementAndGet());
+        }
+    }
+
+    /**
+     * Reprices the position of the streamed price without requests to the exchange
+     * @param lastPrice streamed price
+     */
+    public void onPrice(LastPrice lastPrice) {
+        if (!lastPrice.hasPrice()) return;
+        synchronized (lockObject) {
+            var position = positions.get(lastPrice.getFigi());
+            if (position == null) return;
+            long price = FixedPoint.of(lastPrice.getPrice());
+            if (position.valuationPrice != 0)
+                totalFunds += FixedPoint.times(price - position.valuationPrice, position.count);
+            BigDecimal positionYield = position.expectedYield;
+            if (position.averagePrice > 0)
+                positionYield = FixedPoint.toBigDecimal(FixedPoint.times(
+                        FixedPoint.divide(price - position.averagePrice, position.averagePrice, RoundingMode.CEILING), 100));
+            positions.put(position.figi, new PositionState(position.figi, position.name, position.count, position.averagePrice,
+                    position.valuationPrice != 0 ? price : 0, lastPrice, positionYield));
+            publish();
+        }
+    }
+
+    private void publish() {
+        if (mode == null) return;
+        var positionList = new ArrayList<StatusSnapshot.Position>(positions.size());
+        for (PositionState position : positions.values()) {
+            BigDecimal lastPrice = position.lastPrice == null ? null : FixedPoint.toBigDecimal(FixedPoint.of(position.lastPrice.getPrice()));
+            positionList.add(new StatusSnapshot.Position(position.figi, position.name, position.count, lastPrice, position.expectedYield));
+        }
+        snapshot = new StatusSnapshot(versions.incrementAndGet(), Instant.now(), true, mode, FixedPoint.toBigDecimal(totalFunds),
+                FixedPoint.toBigDecimal(freeMoney), numberOfPositions, expectedYield, List.copyOf(positionList));
+    }
+}
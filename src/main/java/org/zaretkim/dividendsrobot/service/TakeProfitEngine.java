@@ -0,0 +1,105 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import org.zaretkim.dividendsrobot.marketdata.PriceBoard;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.PortfolioPosition;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+
+import javax.annotation.PostConstruct;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Closes positions as soon as a streamed price reaches @sufficientProfit of @{@link PreDividendsStrategyService}
+ * instead of waiting for the next daily step. Positions to watch are refreshed after every step,
+ * every price update is checked against precalculated sell price without requests to the exchange
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class TakeProfitEngine {
+    private final PreDividendsStrategyService preDividendsStrategyService;
+    private final PriceBoard priceBoard;
+    private final ConcurrentHashMap<String, Target> targets = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        priceBoard.addListener(this::onPrice);
+    }
+
+    /**
+     * Replaces watched positions with positions of @portfolio which are not dividend ideas of the last step
+     * @param portfolio current portfolio
+     */
+    public void watch(PortfolioResponse portfolio) {
+        Set<String> dividendIdeaFigis = preDividendsStrategyService.getDividendIdeaFigis();
+        double sufficientProfit = preDividendsStrategyService.getSufficientProfit();
+        var newTargets = new ConcurrentHashMap<String, Target>();
+        for (PortfolioPosition position : portfolio.getPositionsList()) {
+            if (!"share".equals(position.getInstrumentType())) continue;
+            if (!position.hasAveragePositionPrice()) continue;
+            if (dividendIdeaFigis.contains(position.getFigi())) continue;
+            long averagePriceFixed = FixedPoint.of(position.getAveragePositionPrice());
+            if (averagePriceFixed <= 0) continue;
+            long sellAbove = averagePriceFixed + (long) (averagePriceFixed * sufficientProfit / 100);
+            newTargets.put(position.getFigi(), new Target(sellAbove, (int) position.getQuantityLots().getUnits()));
+        }
+        targets.keySet().retainAll(newTargets.keySet());
+        targets.putAll(newTargets);
+        log.info("Watching take profit for {} positions", targets.size());
+    }
+
+    /**
+     * Stops watching all positions
+     */
+    public void stop() {
+        targets.clear();
+    }
+
+    /**
+     * @return number of watched positions
+     */
+    public int size() {
+        return targets.size();
+    }
+
+    /**
+     * Sells the position if @lastPrice exceeds its sell price. Every position is sold at most once
+     * @param lastPrice streamed price
+     */
+    public void onPrice(LastPrice lastPrice) {
+        String figi = lastPrice.getFigi();
+        Target target = targets.get(figi);
+        if (target == null || !lastPrice.hasPrice()) return;
+        if (FixedPoint.of(lastPrice.getPrice()) <= target.sellAbove) return;
+        if (!targets.remove(figi, target)) return;
+
+        try {
+            var order = preDividendsStrategyService.sellPosition(figi, target.numberOfLots);
+            if (order == null) return;
+            log.info("Take profit for {} at {}", figi, lastPrice.getPrice());
+            order.whenComplete((orderId, t) -> {
+                if (t == null) return;
+                log.info("Failed to take profit for {}, error: {}", figi, t.getMessage());
+                targets.putIfAbsent(figi, target);
+            });
+        } catch (Throwable t) {
+            log.info("Failed to take profit for {}, error: {}", figi, t.getMessage(), t);
+            targets.putIfAbsent(figi, target);
+        }
+    }
+
+    private static class Target {
+        final long sellAbove;
+        final int numberOfLots;
+
+        Target(long sellAbove, int numberOfLots) {
+            this.sellAbove = sellAbove;
+            this.numberOfLots = numberOfLots;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.zaretkim.dividendsrobot.service;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Request limit of one service of the exchange: @limit requests per @window. Tokens are refilled continuously,
+ * calls over the limit reserve tokens in advance, so waiting calls are started in order and no faster than the limit
+ */
+public class TokenBucket {
+    private final long windowNanos;
+    private final LongSupplier nanoTime;
+    private int limit;
+    private double tokens;
+    private long refilledAt;
+
+    public TokenBucket(int limit, Duration window) {
+        this(limit, window, System::nanoTime);
+    }
+
+    /**
+     * @param limit number of requests per window
+     * @param window window of the limit
+     * @param nanoTime source of time in nanoseconds
+     */
+    public TokenBucket(int limit, Duration window, LongSupplier nanoTime) {
+        this.limit = Math.max(1, limit);
+        this.windowNanos = window.toNanos();
+        this.nanoTime = nanoTime;
+        this.tokens = this.limit;
+        this.refilledAt = nanoTime.getAsLong();
+    }
+
+    /**
+     * Reserves a token for one call
+     * @return nanoseconds to wait before the call is started, 0 if it may be started now
+     */
+    public synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        if (tokens >= 0) return 0;
+        return (long) Math.ceil(-tokens / rate());
+    }
+
+    /**
+     * Returns the token reserved by a call which is not going to be started
+     */
+    public synchronized void release() {
+        refill();
+        tokens = Math.min(limit, tokens + 1);
+    }
+
+    /**
+     * Applies the limit reported by the exchange. Local state is only made stricter, so calls reserved
+     * before the response are still counted
+     * @param limit requests per window, 0 if not reported
+     * @param remaining requests left in the current window, -1 if not reported
+     * @param resetNanos time till the window is reset, -1 if not reported
+     */
+    public synchronized void update(int limit, int remaining, long resetNanos) {
+        refill();
+        if (limit > 0 && limit != this.limit) {
+            this.limit = limit;
+            tokens = Math.min(tokens, limit);
+        }
+        if (remaining >= 0 && remaining < tokens)
+            tokens = remaining;
+        if (remaining == 0 && resetNanos > 0)
+            exhaust(resetNanos);
+    }
+
+    /**
+     * Makes the next call wait for at least @resetNanos, used when the exchange rejects calls over the limit
+     * @param resetNanos time till the limit is reset
+     */
+    public synchronized void exhaust(long resetNanos) {
+        refill();
+        tokens = Math.min(tokens, 1 - rate() * resetNanos);
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    private double rate() {
+        return (double) limit / windowNanos;
+    }
+
+    private void refill() {
+        long now = nanoTime.getAsLong();
+        tokens = Math.min(limit, tokens + (now - refilledAt) * rate());
+        refilledAt = now;
+    }
+}
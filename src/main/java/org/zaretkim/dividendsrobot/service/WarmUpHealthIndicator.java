@@ -0,0 +1,28 @@
+package org.zaretkim.dividendsrobot.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reports "warmUp" health component: OUT_OF_SERVICE while @{@link MarketWarmUpService} loads data and UP when
+ * it is finished. The component is part of the readiness group, see management settings in application.yaml
+ */
+@Component
+@RequiredArgsConstructor
+public class WarmUpHealthIndicator implements HealthIndicator {
+    private final MarketWarmUpService marketWarmUpService;
+
+    @Override
+    public Health health() {
+        if (!marketWarmUpService.isFinished())
+            return Health.outOfService().withDetail("loaded", marketWarmUpService.getLoaded()).build();
+        var builder = Health.up().
+                withDetail("loaded", marketWarmUpService.getLoaded()).
+                withDetail("failed", marketWarmUpService.getFailed());
+        if (marketWarmUpService.getDuration() != null)
+            builder.withDetail("durationMs", marketWarmUpService.getDuration().toMillis());
+        return builder.build();
+    }
+}
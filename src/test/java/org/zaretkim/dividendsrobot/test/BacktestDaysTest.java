@@ -0,0 +1,115 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+import org.zaretkim.dividendsrobot.marketdata.CandleSeries;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import org.zaretkim.dividendsrobot.service.BacktestMarketService;
+import org.zaretkim.dividendsrobot.service.MarketRequestExecutor;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import org.zaretkim.dividendsrobot.service.RobotRunner;
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BacktestDaysTest {
+    private static final String CONTROL_FIGI = "BBG004730RP0";
+    private static final LocalDate FIRST_DAY = LocalDate.of(2017, 1, 2);
+    private static final int DAYS = 3 * 365;
+
+    @Test
+    void testSkippingDaysGivesSameResultAsStepOnEveryDay() {
+        var figis = List.of("FIGI0", "FIGI1", "FIGI2", "FIGI3", CONTROL_FIGI);
+        var data = generate(figis, FIRST_DAY, 4);
+        var start = FIRST_DAY.plusDays(10).atTime(12, 0).toInstant(ZoneOffset.UTC);
+
+        var everyDay = createRun(data);
+        var everyDayStrategy = createStrategy(everyDay, figis);
+        for (int i = 0; i < DAYS; i++) {
+            everyDay.setFakeNow(start.plus(i, ChronoUnit.DAYS));
+            if (everyDay.isWorkingHours())
+                everyDayStrategy.step();
+        }
+
+        var skipping = createRun(data);
+        var meterRegistry = new SimpleMeterRegistry();
+        RobotRunner.runBacktestDays(createStrategy(skipping, figis), skipping, start, DAYS, meterRegistry);
+
+        assertEquals(everyDay.now(), skipping.now());
+        assertEquals(everyDay.getPortfolio(), skipping.getPortfolio());
+        double steps = meterRegistry.get("dividendsrobot.backtest.steps").counter().count();
+        assertTrue(steps > 0);
+        assertTrue(steps < DAYS * 5 / 7.0, "Days without dividends must be skipped");
+    }
+
+    private static BacktestMarketService createRun(BacktestMarketData data) {
+        return new BacktestMarketService(null, new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS)).createRun(data);
+    }
+
+    private static PreDividendsStrategyService createStrategy(BacktestMarketService marketService, List<String> figis) {
+        var strategy = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategy.setMarketService(marketService);
+        strategy.setAllowedFigis(String.join(" ", figis));
+        strategy.setMinDividendYield(5);
+        strategy.setSufficientProfit(2);
+        strategy.setMaxPositionPercentage(35);
+        return strategy;
+    }
+
+    /**
+     * Random walk prices around 100 on work days and one dividend of about 8% per figi and year
+     */
+    static BacktestMarketData generate(List<String> figis, LocalDate firstDay, int years) {
+        var random = new Random(7);
+        var candles = new HashMap<String, CandleSeries>();
+        var dividends = new HashMap<String, List<Dividend>>();
+        var shares = new HashMap<String, Share>();
+        for (String figi : figis) {
+            var figiCandles = new ArrayList<HistoricCandle>();
+            long price = FixedPoint.ofUnits(100);
+            for (var day = firstDay; day.isBefore(firstDay.plusYears(years)); day = day.plusDays(1)) {
+                if (day.getDayOfWeek() == DayOfWeek.SATURDAY || day.getDayOfWeek() == DayOfWeek.SUNDAY) continue;
+                price = Math.max(FixedPoint.ofUnits(10), price + (long) (random.nextGaussian() * FixedPoint.ONE));
+                figiCandles.add(HistoricCandle.newBuilder().
+                        setTime(timestamp(day)).
+                        setOpen(FixedPoint.toQuotation(price)).
+                        setHigh(FixedPoint.toQuotation(price + FixedPoint.ONE / 2)).
+                        setLow(FixedPoint.toQuotation(price - FixedPoint.ONE / 2)).
+                        setClose(FixedPoint.toQuotation(price)).
+                        build());
+            }
+            candles.put(figi, CandleSeries.fromCandles(figi, figiCandles));
+
+            var figiDividends = new ArrayList<Dividend>();
+            for (int year = 0; year < years; year++) {
+                var lastBuyDay = firstDay.plusYears(year).plusDays(30 + random.nextInt(300));
+                figiDividends.add(Dividend.newBuilder().
+                        setDeclaredDate(timestamp(lastBuyDay.minusDays(20))).
+                        setLastBuyDate(timestamp(lastBuyDay)).
+                        setDividendNet(FixedPoint.toMoneyValue(FixedPoint.ofUnits(6 + random.nextInt(5)), "rub")).
+                        build());
+            }
+            dividends.put(figi, figiDividends);
+            shares.put(figi, Share.newBuilder().setFigi(figi).setTicker(figi).setLot(1).setCurrency("rub").build());
+        }
+        return new BacktestMarketData(candles, dividends, shares);
+    }
+
+    private static Timestamp timestamp(LocalDate day) {
+        return Timestamp.newBuilder().setSeconds(day.atStartOfDay().toEpochSecond(ZoneOffset.UTC)).build();
+    }
+}
@@ -0,0 +1,136 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+import org.zaretkim.dividendsrobot.marketdata.CandleSeries;
+import org.zaretkim.dividendsrobot.model.BacktestJob;
+import org.zaretkim.dividendsrobot.service.BacktestJobService;
+import org.zaretkim.dividendsrobot.service.BacktestMarketService;
+import org.zaretkim.dividendsrobot.service.BacktestSweepService;
+import org.zaretkim.dividendsrobot.service.MarketRequestExecutor;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BacktestJobServiceTest {
+    private static final String CONTROL_FIGI = "BBG004730RP0";
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    @Test
+    void testJobReportsProgressAndResult() throws InterruptedException {
+        var jobService = jobService(new EmptyHistoryMarketService(new CountDownLatch(0)), 2);
+        try {
+            var job = jobService.submit(30);
+            waitFor(job::isFinished);
+            assertEquals(BacktestJob.Status.DONE, job.getStatus());
+            assertEquals(30, job.getDaysDone());
+            assertEquals(0, job.getInitialFunds().compareTo(job.getCurrentFunds()));
+            assertEquals(0, job.getYield().signum());
+
+            jobService.submit(1);
+            var lastJob = jobService.submit(1);
+            waitFor(lastJob::isFinished);
+            // only 2 finished jobs are kept
+            assertNull(jobService.getJob(job.getId()));
+            assertEquals(2, jobService.getJobs().size());
+            assertEquals(lastJob.getId(), jobService.getJobs().get(0).getId());
+        } finally {
+            jobService.shutdown();
+        }
+    }
+
+    @Test
+    void testRunningAndQueuedJobsAreCancelled() throws InterruptedException {
+        var loadLatch = new CountDownLatch(1);
+        var jobService = jobService(new EmptyHistoryMarketService(loadLatch), 10);
+        try {
+            var running = jobService.submit(30);
+            var queued = jobService.submit(30);
+            waitFor(() -> running.getStatus() == BacktestJob.Status.RUNNING);
+
+            assertTrue(jobService.cancel(queued.getId()));
+            assertEquals(BacktestJob.Status.CANCELLED, queued.getStatus());
+            assertTrue(jobService.cancel(running.getId()));
+            loadLatch.countDown();
+            waitFor(running::isFinished);
+            assertEquals(BacktestJob.Status.CANCELLED, running.getStatus());
+            assertFalse(jobService.cancel(running.getId()));
+        } finally {
+            jobService.shutdown();
+        }
+    }
+
+    @Test
+    void testSweepJobHasResultForEveryGridPoint() throws InterruptedException {
+        var jobService = jobService(new EmptyHistoryMarketService(new CountDownLatch(0)), 10);
+        try {
+            var job = jobService.submitSweep(30, List.of(3.0, 5.0), List.of(2.0), List.of(20.0, 35.0));
+            assertTrue(job.isSweep());
+            assertEquals(4, job.getSweepSize());
+            waitFor(job::isFinished);
+            assertEquals(BacktestJob.Status.DONE, job.getStatus());
+            assertEquals(4, job.getSweepDone());
+            assertEquals(4, job.getSweepResults().size());
+
+            var tooLarge = List.of(1.0, 2.0, 3.0);
+            assertThrows(IllegalArgumentException.class, () -> jobService.submitSweep(30, tooLarge, tooLarge, tooLarge));
+        } finally {
+            jobService.shutdown();
+        }
+    }
+
+    private static BacktestJobService jobService(BacktestMarketService backtestMarketService, int maxFinishedJobs) {
+        var strategy = strategy();
+        var meterRegistry = new SimpleMeterRegistry();
+        var sweepService = new BacktestSweepService(strategy, backtestMarketService, meterRegistry, 2, 8);
+        return new BacktestJobService(strategy, backtestMarketService, sweepService, meterRegistry, 1, 10, maxFinishedJobs);
+    }
+
+    private static PreDividendsStrategyService strategy() {
+        var strategy = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategy.setAllowedFigis(CONTROL_FIGI);
+        strategy.setMinDividendYield(5);
+        strategy.setSufficientProfit(2);
+        strategy.setMaxPositionPercentage(35);
+        return strategy;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Condition is not met in " + TIMEOUT);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Backtest without trading days, loading of historical data waits for @loadLatch
+     */
+    private static class EmptyHistoryMarketService extends BacktestMarketService {
+        private final CountDownLatch loadLatch;
+
+        EmptyHistoryMarketService(CountDownLatch loadLatch) {
+            super(null, new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS));
+            this.loadLatch = loadLatch;
+        }
+
+        @Override
+        public BacktestMarketData loadMarketData(Collection<String> figis, Instant from) {
+            try {
+                loadLatch.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Loading is interrupted", e);
+            }
+            return new BacktestMarketData(Map.of(CONTROL_FIGI, CandleSeries.fromCandles(CONTROL_FIGI, List.of())), Map.of(CONTROL_FIGI, List.of()), Map.of());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+import org.zaretkim.dividendsrobot.marketdata.CandleSeries;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import org.zaretkim.dividendsrobot.service.BacktestMarketService;
+import org.zaretkim.dividendsrobot.service.MarketRequestExecutor;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BacktestMarketServiceTest {
+    private static final Instant DAY1 = Instant.ofEpochSecond(1_600_000_000L).truncatedTo(ChronoUnit.DAYS);
+    private static final Instant DAY2 = DAY1.plus(1, ChronoUnit.DAYS);
+
+    @Test
+    void testPortfolioIsRevaluedOnDayChangeAndTrades() {
+        var data = new BacktestMarketData(
+                Map.of("A", series("A", 100, 110), "B", series("B", 50, 40)),
+                Map.of(),
+                Map.of("A", share("A", 1), "B", share("B", 10)));
+        var run = new BacktestMarketService(null, new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS)).createRun(data);
+        long initialCash = run.getTotalFunds();
+
+        run.setFakeNow(DAY1.plus(12, ChronoUnit.HOURS));
+        var empty = run.getPortfolio();
+        assertSame(empty, run.getPortfolio());
+        run.buyMarket("A", 2);
+        run.buyMarket("B", 1);
+        var portfolio = run.getPortfolio();
+        assertNotSame(empty, portfolio);
+        assertEquals(FixedPoint.ofUnits(2 * 100 + 10 * 50), FixedPoint.of(portfolio.getTotalAmountShares()));
+        assertEquals(initialCash, total(portfolio));
+        assertEquals(initialCash, run.getTotalFunds());
+
+        run.setFakeNow(DAY2.plus(12, ChronoUnit.HOURS));
+        portfolio = run.getPortfolio();
+        assertEquals(FixedPoint.ofUnits(2 * 110 + 10 * 40), FixedPoint.of(portfolio.getTotalAmountShares()));
+        assertEquals(total(portfolio), run.getTotalFunds());
+        for (var position : portfolio.getPositionsList()) {
+            long expectedPrice = FixedPoint.ofUnits(position.getFigi().equals("A") ? 110 : 40);
+            assertEquals(expectedPrice, FixedPoint.of(position.getCurrentPrice()));
+        }
+
+        run.sellMarket("A", 2);
+        portfolio = run.getPortfolio();
+        assertEquals(1, portfolio.getPositionsCount());
+        assertEquals(FixedPoint.ofUnits(10 * 40), FixedPoint.of(portfolio.getTotalAmountShares()));
+        assertEquals(initialCash + FixedPoint.ofUnits(2 * 10 - 10 * 10), run.getTotalFunds());
+        assertEquals(total(portfolio), run.getTotalFunds());
+    }
+
+    private static long total(PortfolioResponse portfolio) {
+        return FixedPoint.of(portfolio.getTotalAmountCurrencies()) + FixedPoint.of(portfolio.getTotalAmountShares());
+    }
+
+    /**
+     * Candles for two days with high and low equal to the price, so last price is the price itself
+     */
+    private static CandleSeries series(String figi, long priceDay1, long priceDay2) {
+        return CandleSeries.fromCandles(figi, List.of(candle(DAY1, priceDay1), candle(DAY2, priceDay2)));
+    }
+
+    private static HistoricCandle candle(Instant time, long price) {
+        var quotation = FixedPoint.toQuotation(FixedPoint.ofUnits(price));
+        return HistoricCandle.newBuilder().
+                setTime(Timestamp.newBuilder().setSeconds(time.getEpochSecond()).build()).
+                setOpen(quotation).setHigh(quotation).setLow(quotation).setClose(quotation).
+                build();
+    }
+
+    private static Share share(String figi, int lot) {
+        return Share.newBuilder().setFigi(figi).setTicker(figi).setLot(lot).setCurrency("rub").build();
+    }
+}
@@ -0,0 +1,99 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.BacktestMarketData;
+import org.zaretkim.dividendsrobot.model.SweepResult;
+import org.zaretkim.dividendsrobot.service.BacktestMarketService;
+import org.zaretkim.dividendsrobot.service.BacktestSweepService;
+import org.zaretkim.dividendsrobot.service.MarketRequestExecutor;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import org.zaretkim.dividendsrobot.service.RobotRunner;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BacktestSweepServiceTest {
+    private static final String CONTROL_FIGI = "BBG004730RP0";
+    private static final int DAYS = 365;
+
+    @Test
+    void testSweepGivesSameResultsAsSeparateBacktests() {
+        var data = BacktestDaysTest.generate(List.of("FIGI0", "FIGI1", "FIGI2", "FIGI3", CONTROL_FIGI),
+                LocalDate.now(ZoneOffset.UTC).minusYears(2), 2);
+        var backtestMarketService = new GeneratedHistoryMarketService(data);
+        var template = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        template.setAllowedFigis("FIGI0 FIGI1 FIGI2 FIGI3");
+        template.setMinDividendYield(5);
+        template.setSufficientProfit(2);
+        template.setMaxPositionPercentage(35);
+        var sweepService = new BacktestSweepService(template, backtestMarketService, new SimpleMeterRegistry(), 2, 8);
+
+        var minDividendYields = List.of(3.0, 8.0);
+        var sufficientProfits = List.of(1.0, 3.0);
+        var maxPositionPercentages = List.of(25.0, 50.0);
+        List<SweepResult> results;
+        try {
+            results = sweepService.sweep(DAYS, minDividendYields, sufficientProfits, maxPositionPercentages);
+            assertThrows(IllegalArgumentException.class, () -> sweepService.sweep(DAYS, List.of(1.0, 2.0, 3.0), sufficientProfits, maxPositionPercentages),
+                    "Grid of 12 backtests is larger than allowed");
+        } finally {
+            sweepService.shutdown();
+        }
+
+        assertEquals(8, results.size());
+        var gridPoints = new HashSet<List<Double>>();
+        for (var result : results) {
+            assertNull(result.getError());
+            assertTrue(minDividendYields.contains(result.getMinDividendYield()));
+            assertTrue(sufficientProfits.contains(result.getSufficientProfit()));
+            assertTrue(maxPositionPercentages.contains(result.getMaxPositionPercentage()));
+            gridPoints.add(List.of(result.getMinDividendYield(), result.getSufficientProfit(), result.getMaxPositionPercentage()));
+        }
+        assertEquals(8, gridPoints.size(), "Every grid point must have exactly one result");
+        for (int i = 1; i < results.size(); i++) {
+            assertTrue(results.get(i - 1).getFinalFunds().compareTo(results.get(i).getFinalFunds()) >= 0,
+                    "Results must be sorted from the best final funds to the worst");
+        }
+
+        for (var result : results) {
+            var run = backtestMarketService.createRun(data);
+            var strategy = template.copy();
+            strategy.setMarketService(run);
+            strategy.setMinDividendYield(result.getMinDividendYield());
+            strategy.setSufficientProfit(result.getSufficientProfit());
+            strategy.setMaxPositionPercentage(result.getMaxPositionPercentage());
+            BigDecimal initialFunds = strategy.totalAmountOfFunds(run.getPortfolio());
+            RobotRunner.runBacktestDays(strategy, run, backtestMarketService.loadedFrom, DAYS, new SimpleMeterRegistry());
+
+            assertEquals(initialFunds, result.getInitialFunds());
+            assertEquals(strategy.totalAmountOfFunds(run.getPortfolio()), result.getFinalFunds(), result.toString());
+        }
+    }
+
+    /**
+     * Backtest service which returns generated history instead of loading it, remembers start of the backtest
+     */
+    private static class GeneratedHistoryMarketService extends BacktestMarketService {
+        private final BacktestMarketData data;
+        private volatile Instant loadedFrom;
+
+        GeneratedHistoryMarketService(BacktestMarketData data) {
+            super(null, new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS));
+            this.data = data;
+        }
+
+        @Override
+        public BacktestMarketData loadMarketData(Collection<String> figis, Instant from) {
+            loadedFrom = from;
+            return data;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.CandleSeries;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+import ru.tinkoff.piapi.core.utils.MapperUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CandleSeriesTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+    private static final long DAY = 24 * 60 * 60;
+    private static final long START = 1_600_000_000L;
+
+    @Test
+    void testLookupMatchesLinearScan() {
+        var candles = new ArrayList<HistoricCandle>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 7 == 5 || i % 7 == 6) continue;
+            candles.add(candle(START + i * DAY, 100 + i * 0.37, 99 + i * 0.21));
+        }
+        var series = CandleSeries.fromCandles(TEST_FIGI, candles);
+
+        for (long time = START - 3 * DAY; time < START + 105 * DAY; time += DAY / 4) {
+            var expected = linearScan(candles, time);
+            var actual = series.lastPriceAt(time);
+            if (expected == null) {
+                assertNull(actual);
+            } else {
+                assertNotNull(actual);
+                assertEquals(expected, actual.getPrice());
+            }
+        }
+    }
+
+    @Test
+    void testRepeatedLookupReturnsCachedPrice() {
+        var series = CandleSeries.fromCandles(TEST_FIGI, List.of(candle(START, 10, 9)));
+        assertSame(series.lastPriceAt(START), series.lastPriceAt(START + 1));
+    }
+
+    @Test
+    void testMediumIsRoundedHalfDown() {
+        var series = new CandleSeries(TEST_FIGI, new long[]{START}, new long[]{0}, new long[]{3}, new long[]{0}, new long[]{0});
+        assertEquals(1, series.mediumAt(0));
+    }
+
+    /**
+     * Reference implementation of the lookup used by BacktestMarketService before columnar storage
+     */
+    private static Quotation linearScan(List<HistoricCandle> candles, long epochSecond) {
+        for (HistoricCandle candle : candles) {
+            if (epochSecond - candle.getTime().getSeconds() < DAY) {
+                BigDecimal high = MapperUtils.quotationToBigDecimal(candle.getHigh());
+                BigDecimal low = MapperUtils.quotationToBigDecimal(candle.getLow());
+                BigDecimal medium = high.add(low).divide(BigDecimal.valueOf(2), RoundingMode.HALF_DOWN);
+                return MapperUtils.bigDecimalToQuotation(medium);
+            }
+        }
+        return null;
+    }
+
+    private static HistoricCandle candle(long epochSecond, double high, double low) {
+        return HistoricCandle.newBuilder().
+                setTime(Timestamp.newBuilder().setSeconds(epochSecond).build()).
+                setHigh(MapperUtils.bigDecimalToQuotation(BigDecimal.valueOf(high))).
+                setLow(MapperUtils.bigDecimalToQuotation(BigDecimal.valueOf(low))).
+                build();
+    }
+}
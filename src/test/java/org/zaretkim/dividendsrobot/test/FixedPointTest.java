@@ -0,0 +1,66 @@
+package org.zaretkim.dividendsrobot.test;
+
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+import ru.tinkoff.piapi.core.utils.MapperUtils;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FixedPointTest {
+    private static final RoundingMode[] ROUNDING_MODES = {
+            RoundingMode.UP, RoundingMode.DOWN, RoundingMode.CEILING, RoundingMode.FLOOR,
+            RoundingMode.HALF_UP, RoundingMode.HALF_DOWN, RoundingMode.HALF_EVEN
+    };
+
+    @Test
+    void testConversionsKeepUnitsAndNanos() {
+        var quotation = Quotation.newBuilder().setUnits(-12).setNano(-345_000_000).build();
+        long value = FixedPoint.of(quotation);
+
+        assertEquals(-12_345_000_000L, value);
+        assertEquals(quotation, FixedPoint.toQuotation(value));
+        assertEquals(0, MapperUtils.quotationToBigDecimal(quotation).compareTo(FixedPoint.toBigDecimal(value)));
+        assertEquals(value, FixedPoint.of(new BigDecimal("-12.345")));
+        assertEquals(new BigDecimal("-12.345000000"), FixedPoint.toBigDecimal(value));
+    }
+
+    @Test
+    void testDivideIsSameAsBigDecimal() {
+        var random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long dividend = randomValue(random);
+            long divisor = randomValue(random);
+            if (divisor == 0) continue;
+            var roundingMode = ROUNDING_MODES[i % ROUNDING_MODES.length];
+            var expected = BigDecimal.valueOf(dividend, 9).divide(BigDecimal.valueOf(divisor, 9), roundingMode);
+            if (expected.unscaledValue().bitLength() > 62) continue;
+
+            assertEquals(expected.unscaledValue().longValueExact(), FixedPoint.divide(dividend, divisor, roundingMode),
+                    dividend + " / " + divisor + " " + roundingMode);
+        }
+    }
+
+    @Test
+    void testMultiplyIsSameAsBigDecimal() {
+        var random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            long a = randomValue(random);
+            long b = randomValue(random);
+            var expected = BigDecimal.valueOf(a, 9).multiply(BigDecimal.valueOf(b, 9)).setScale(9, RoundingMode.DOWN);
+            if (expected.unscaledValue().bitLength() > 62) continue;
+
+            assertEquals(expected.unscaledValue().longValueExact(), FixedPoint.multiply(a, b), a + " * " + b);
+        }
+    }
+
+    private static long randomValue(Random random) {
+        // prices and amounts from nanos to millions of units
+        long value = random.nextLong() % (long) Math.pow(10, 1 + random.nextInt(15));
+        return random.nextBoolean() ? value : -value;
+    }
+}
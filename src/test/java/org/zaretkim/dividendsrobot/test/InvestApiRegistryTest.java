@@ -0,0 +1,46 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.service.InvestApiRegistry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InvestApiRegistryTest {
+
+    @Test
+    void testChannelsAreSharedAndClosed() {
+        var registry = new InvestApiRegistry();
+        registry.setToken("test-token");
+        registry.setPoolSize(2);
+
+        var first = registry.get(InvestApiRegistry.Endpoint.SANDBOX);
+        var second = registry.get(InvestApiRegistry.Endpoint.SANDBOX);
+        var third = registry.get(InvestApiRegistry.Endpoint.SANDBOX);
+        registry.get(InvestApiRegistry.Endpoint.REAL);
+
+        assertNotSame(first, second);
+        assertSame(first, third);
+        assertTrue(first.isSandboxMode());
+        assertEquals(4, registry.getChannelCount());
+
+        var meterRegistry = new SimpleMeterRegistry();
+        registry.bindTo(meterRegistry);
+        assertNotNull(registry.getRateLimiter(InvestApiRegistry.Endpoint.SANDBOX));
+        assertEquals(0, meterRegistry.get("dividendsrobot.exchange.retries").tag("endpoint", "sandbox").functionCounter().count());
+
+        registry.close();
+        assertEquals(0, registry.getChannelCount());
+        assertThrows(IllegalStateException.class, () -> registry.get(InvestApiRegistry.Endpoint.REAL));
+    }
+
+    @Test
+    void testNoChannelsWithoutToken() {
+        var registry = new InvestApiRegistry();
+
+        registry.warmUp();
+
+        assertEquals(0, registry.getChannelCount());
+        assertThrows(IllegalArgumentException.class, () -> registry.get(InvestApiRegistry.Endpoint.REAL));
+    }
+}
@@ -0,0 +1,147 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.zaretkim.dividendsrobot.marketdata.MarketDataArchive;
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MarketDataArchiveTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+    private static final Instant START = Instant.ofEpochSecond(1_600_000_000L).truncatedTo(ChronoUnit.DAYS);
+
+    @TempDir
+    Path archiveDir;
+
+    @Test
+    void testWarmArchiveDoesNotCallLoader() {
+        var loadedRanges = new ArrayList<Instant[]>();
+        var from = START;
+        var to = START.plus(30, ChronoUnit.DAYS);
+
+        var cold = new MarketDataArchive(archiveDir).getCandles(TEST_FIGI, from, to, (f, t) -> candlesLoader(loadedRanges, f, t));
+        assertEquals(1, loadedRanges.size());
+
+        var warm = new MarketDataArchive(archiveDir).getCandles(TEST_FIGI, from, to, (f, t) -> candlesLoader(loadedRanges, f, t));
+        assertEquals(1, loadedRanges.size());
+        assertEquals(cold.size(), warm.size());
+        for (int i = 0; i < cold.size(); i++) {
+            assertEquals(cold.timeAt(i), warm.timeAt(i));
+            assertEquals(cold.highAt(i), warm.highAt(i));
+            assertEquals(cold.lowAt(i), warm.lowAt(i));
+        }
+    }
+
+    @Test
+    void testOnlyMissingRangesAreLoaded() {
+        var loadedRanges = new ArrayList<Instant[]>();
+        var archive = new MarketDataArchive(archiveDir);
+        archive.getCandles(TEST_FIGI, START.plus(10, ChronoUnit.DAYS), START.plus(20, ChronoUnit.DAYS), (f, t) -> candlesLoader(loadedRanges, f, t));
+        loadedRanges.clear();
+
+        var series = archive.getCandles(TEST_FIGI, START, START.plus(30, ChronoUnit.DAYS), (f, t) -> candlesLoader(loadedRanges, f, t));
+
+        assertEquals(2, loadedRanges.size());
+        assertEquals(START, loadedRanges.get(0)[0]);
+        assertEquals(START.plus(10, ChronoUnit.DAYS), loadedRanges.get(0)[1]);
+        assertEquals(START.plus(20, ChronoUnit.DAYS), loadedRanges.get(1)[0]);
+        assertEquals(START.plus(30, ChronoUnit.DAYS), loadedRanges.get(1)[1]);
+        assertEquals(30, series.size());
+        for (int i = 1; i < series.size(); i++) {
+            assertTrue(series.timeAt(i - 1) < series.timeAt(i));
+        }
+    }
+
+    @Test
+    void testLongRangeIsLoadedInChunksAndStitched() {
+        var loadedRanges = new ArrayList<Instant[]>();
+        var to = START.plus(5 * 365 + 10, ChronoUnit.DAYS);
+        var series = new MarketDataArchive(archiveDir).getCandles(TEST_FIGI, START, to, (f, t) -> candlesLoader(loadedRanges, f, t));
+
+        assertEquals(6, loadedRanges.size());
+        assertEquals(START, loadedRanges.get(0)[0]);
+        assertEquals(to, loadedRanges.get(loadedRanges.size() - 1)[1]);
+        for (int i = 0; i < loadedRanges.size(); i++) {
+            assertTrue(Duration.between(loadedRanges.get(i)[0], loadedRanges.get(i)[1]).toDays() <= 365);
+            if (i > 0) assertEquals(loadedRanges.get(i - 1)[1], loadedRanges.get(i)[0]);
+        }
+        assertEquals(5 * 365 + 10, series.size());
+        for (int i = 1; i < series.size(); i++) {
+            assertEquals(24 * 60 * 60, series.timeAt(i) - series.timeAt(i - 1));
+        }
+    }
+
+    @Test
+    void testDividendsAndSharesAreStored() {
+        var dividend = Dividend.newBuilder().
+                setLastBuyDate(Timestamp.newBuilder().setSeconds(START.getEpochSecond()).build()).
+                setDividendType("Regular Cash").
+                build();
+        var share = Share.newBuilder().setFigi(TEST_FIGI).setLot(10).setTicker("TEST").build();
+        var archive = new MarketDataArchive(archiveDir);
+        archive.getDividends(TEST_FIGI, START, START.plus(30, ChronoUnit.DAYS), (f, t) -> List.of(dividend));
+        archive.getShare(TEST_FIGI, f -> share);
+
+        var warm = new MarketDataArchive(archiveDir);
+        var dividends = warm.getDividends(TEST_FIGI, START, START.plus(30, ChronoUnit.DAYS), (f, t) -> fail("Dividends must be read from archive"));
+        assertEquals(List.of(dividend), dividends);
+        assertEquals(share, warm.getShare(TEST_FIGI, f -> fail("Share must be read from archive")));
+    }
+
+    @Test
+    void testDividendsOfEarlierRangeAreStoredInOrder() {
+        var archive = new MarketDataArchive(archiveDir);
+        var later = dividend(START.plus(25, ChronoUnit.DAYS));
+        var earlier = dividend(START.plus(5, ChronoUnit.DAYS));
+        archive.getDividends(TEST_FIGI, START.plus(20, ChronoUnit.DAYS), START.plus(30, ChronoUnit.DAYS), (f, t) -> List.of(later));
+        archive.getDividends(TEST_FIGI, START, START.plus(30, ChronoUnit.DAYS), (f, t) -> List.of(earlier));
+
+        var dividends = new MarketDataArchive(archiveDir).getDividends(TEST_FIGI, START, START.plus(30, ChronoUnit.DAYS),
+                (f, t) -> fail("Dividends must be read from archive"));
+        assertEquals(List.of(earlier, later), dividends);
+    }
+
+    @Test
+    void testOfflineArchiveServesOnlyStoredData() {
+        var loadedRanges = new ArrayList<Instant[]>();
+        new MarketDataArchive(archiveDir).getCandles(TEST_FIGI, START, START.plus(10, ChronoUnit.DAYS), (f, t) -> candlesLoader(loadedRanges, f, t));
+
+        var offline = new MarketDataArchive(archiveDir, true);
+        var series = offline.getCandles(TEST_FIGI, START, START.plus(30, ChronoUnit.DAYS), (f, t) -> fail("Offline archive must not load candles"));
+
+        assertEquals(10, series.size());
+        assertThrows(IllegalStateException.class, () -> offline.getShare(TEST_FIGI, f -> fail("Offline archive must not load shares")));
+    }
+
+    private static Dividend dividend(Instant lastBuyDate) {
+        return Dividend.newBuilder().
+                setLastBuyDate(Timestamp.newBuilder().setSeconds(lastBuyDate.getEpochSecond()).build()).
+                setDividendType("Regular Cash").
+                build();
+    }
+
+    private static List<HistoricCandle> candlesLoader(List<Instant[]> loadedRanges, Instant from, Instant to) {
+        loadedRanges.add(new Instant[]{from, to});
+        var candles = new ArrayList<HistoricCandle>();
+        for (var time = from; time.isBefore(to); time = time.plus(1, ChronoUnit.DAYS)) {
+            var price = Quotation.newBuilder().setUnits(100 + time.getEpochSecond() % 7).setNano(500_000_000).build();
+            candles.add(HistoricCandle.newBuilder().
+                    setTime(Timestamp.newBuilder().setSeconds(time.getEpochSecond()).build()).
+                    setOpen(price).setHigh(price).setLow(price).setClose(price).
+                    build());
+        }
+        return candles;
+    }
+}
@@ -0,0 +1,153 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.actuate.health.Status;
+import org.zaretkim.dividendsrobot.marketdata.DividendCache;
+import org.zaretkim.dividendsrobot.marketdata.ShareCache;
+import org.zaretkim.dividendsrobot.service.BacktestMarketService;
+import org.zaretkim.dividendsrobot.service.MarketRequestExecutor;
+import org.zaretkim.dividendsrobot.service.MarketWarmUpService;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import org.zaretkim.dividendsrobot.service.RealMarketService;
+import org.zaretkim.dividendsrobot.service.SandboxMarketService;
+import org.zaretkim.dividendsrobot.service.WarmUpHealthIndicator;
+import ru.tinkoff.piapi.contract.v1.Dividend;
+import ru.tinkoff.piapi.contract.v1.Share;
+import ru.tinkoff.piapi.contract.v1.TradingSchedule;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MarketWarmUpServiceTest {
+
+    @Test
+    void testNotReadyUntilWarmUpIsFinished() {
+        var strategy = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategy.setAllowedFigis("FIGI1 FIGI2");
+        // without token nothing is requested from the exchange
+        var marketRequests = new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS);
+        var warmUp = new MarketWarmUpService(new RealMarketService(), new SandboxMarketService(),
+                new BacktestMarketService(null, marketRequests), strategy, marketRequests);
+        var health = new WarmUpHealthIndicator(warmUp);
+
+        assertEquals(Status.OUT_OF_SERVICE, health.health().getStatus());
+        warmUp.warmUp();
+        marketRequests.shutdown();
+
+        assertTrue(warmUp.isFinished());
+        assertEquals(Status.UP, health.health().getStatus());
+        assertEquals(0, warmUp.getFailed());
+    }
+
+    @Test
+    void testCachesAreFilledByWarmUp() throws InterruptedException {
+        var market = new TestMarketService();
+        market.addDividend("FIGI1", Instant.now().plus(Duration.ofDays(5)), 10);
+        var shareCache = new ShareCache(100, Duration.ofHours(1), false, Clock.systemUTC());
+        var dividendCache = new DividendCache(Duration.ofHours(1));
+        var realMarketService = new WarmUpRealMarketService(market, shareCache, dividendCache);
+        var strategy = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategy.setAllowedFigis("FIGI1 FIGI2");
+        var marketRequests = new MarketRequestExecutor(MarketRequestExecutor.DEFAULT_MAX_CONCURRENT_REQUESTS);
+        var warmUp = new MarketWarmUpService(realMarketService, new SandboxMarketService(),
+                new BacktestMarketService(null, marketRequests), strategy, marketRequests);
+        var health = new WarmUpHealthIndicator(warmUp);
+
+        warmUp.onApplicationReady();
+        assertTrue(realMarketService.scheduleRequested.await(10, TimeUnit.SECONDS));
+        assertEquals(Status.OUT_OF_SERVICE, health.health().getStatus());
+        assertFalse(warmUp.isFinished());
+
+        realMarketService.scheduleReleased.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!warmUp.isFinished() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        marketRequests.shutdown();
+
+        assertTrue(warmUp.isFinished());
+        assertEquals(Status.UP, health.health().getStatus());
+        assertEquals(0, warmUp.getFailed());
+        assertEquals(5, warmUp.getLoaded());
+        assertEquals("FIGI1", shareCache.get("FIGI1").getFigi());
+        assertEquals("FIGI2", shareCache.get("FIGI2").getFigi());
+        assertEquals(1, dividendCache.get("FIGI1").size());
+        assertEquals(List.of(), dividendCache.get("FIGI2"));
+        assertEquals(2, market.getDividendsRequests());
+
+        // cached calendar and dividends are used without new requests
+        int scheduleRequests = realMarketService.scheduleRequests.get();
+        assertTrue(scheduleRequests > 0);
+        assertNotNull(realMarketService.getTradingCalendar());
+        realMarketService.getDividendsSync("FIGI1");
+        assertEquals(scheduleRequests, realMarketService.scheduleRequests.get());
+        assertEquals(2, market.getDividendsRequests());
+    }
+
+    @Test
+    void testDividendCacheEntryExpires() {
+        var clock = Clock.fixed(Instant.ofEpochSecond(1_600_000_000L), ZoneOffset.UTC);
+        var cache = new DividendCache(Duration.ofHours(1), clock);
+        var expiredCache = new DividendCache(Duration.ZERO, clock);
+        var dividends = List.of(Dividend.getDefaultInstance());
+
+        cache.put("A", dividends);
+        expiredCache.put("A", dividends);
+
+        assertEquals(dividends, cache.get("A"));
+        assertNull(cache.get("B"));
+        assertNull(expiredCache.get("A"));
+    }
+
+    /**
+     * Real market service which takes exchange data from @{@link TestMarketService} and keeps the caches of the base class.
+     * Trading schedule requests wait for @scheduleReleased
+     */
+    private static class WarmUpRealMarketService extends RealMarketService {
+        private final TestMarketService market;
+        private final CountDownLatch scheduleRequested = new CountDownLatch(1);
+        private final CountDownLatch scheduleReleased = new CountDownLatch(1);
+        private final AtomicInteger scheduleRequests = new AtomicInteger();
+
+        WarmUpRealMarketService(TestMarketService market, ShareCache shareCache, DividendCache dividendCache) {
+            this.market = market;
+            this.token = "token";
+            this.accountId = "account";
+            this.shareCache = shareCache;
+            this.dividendCache = dividendCache;
+        }
+
+        @Override
+        protected CompletableFuture<Share> requestShare(String figi) {
+            return market.getShareByFigiAsync(figi);
+        }
+
+        @Override
+        protected CompletableFuture<List<Dividend>> requestDividends(String figi, Instant from, Instant to) {
+            return market.getDividendsAsync(figi);
+        }
+
+        @Override
+        protected TradingSchedule requestTradingSchedule(Instant from, Instant to) {
+            scheduleRequested.countDown();
+            try {
+                scheduleReleased.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            scheduleRequests.incrementAndGet();
+            return TradingSchedule.getDefaultInstance();
+        }
+    }
+}
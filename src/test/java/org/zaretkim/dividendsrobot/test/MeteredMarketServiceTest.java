@@ -0,0 +1,57 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.service.MarketServiceDecorator;
+import org.zaretkim.dividendsrobot.service.MeteredMarketService;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MeteredMarketServiceTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+
+    @Test
+    void testCallsAndErrorsAreMeasured() {
+        var registry = new SimpleMeterRegistry();
+        var testMarketService = new TestMarketService() {
+            @Override
+            public PortfolioResponse getPortfolio() {
+                throw new IllegalStateException("Portfolio is not available");
+            }
+        };
+        testMarketService.setLastPrice(TEST_FIGI, 100);
+        var metered = new MeteredMarketService(testMarketService, registry, "test");
+
+        metered.getLastPrices(List.of(TEST_FIGI));
+        metered.getLastPrices(List.of(TEST_FIGI));
+        assertThrows(IllegalStateException.class, metered::getPortfolio);
+        metered.getDividendsAsync(TEST_FIGI).join();
+
+        assertEquals(2, registry.get("dividendsrobot.market.calls").tags("implementation", "test", "method", "getLastPrices").timer().count());
+        assertEquals(1, registry.get("dividendsrobot.market.calls").tags("implementation", "test", "method", "getPortfolio").timer().count());
+        assertEquals(1, registry.get("dividendsrobot.market.calls").tags("implementation", "test", "method", "getDividendsAsync").timer().count());
+        assertEquals(1, registry.get("dividendsrobot.market.errors").
+                tags("implementation", "test", "method", "getPortfolio", "exception", "IllegalStateException").counter().count());
+        assertTrue(registry.find("dividendsrobot.market.errors").tag("method", "getLastPrices").meters().isEmpty());
+        assertSame(testMarketService, MarketServiceDecorator.unwrap(metered));
+    }
+
+    @Test
+    void testStepPhasesAreTimed() {
+        var registry = new SimpleMeterRegistry();
+        var strategyService = new PreDividendsStrategyService(registry);
+        strategyService.setMarketService(new TestMarketService());
+        strategyService.setAllowedFigis(TEST_FIGI);
+
+        assertTrue(strategyService.step());
+        assertTrue(strategyService.step());
+
+        for (String phase : List.of("ideas", "pendingOrders", "closing", "opening", "total")) {
+            assertEquals(2, registry.get("dividendsrobot.step").tag("phase", phase).timer().count(), phase);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.service.AccountMarketService;
+import org.zaretkim.dividendsrobot.service.AccountOperations;
+import org.zaretkim.dividendsrobot.service.MultiAccountStrategy;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import ru.tinkoff.piapi.contract.v1.OrderState;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MultiAccountStrategyTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+    private static final int PRICE = 100;
+
+    @Test
+    void testAccountsTradeOwnPortfoliosWithSharedMarketData() {
+        var marketData = new TestMarketService();
+        marketData.addDividend(TEST_FIGI, marketData.now().plus(1, ChronoUnit.DAYS), 10);
+        marketData.setLastPrice(TEST_FIGI, PRICE);
+        var accounts = Map.of("small", account(100000), "large", account(1000000));
+        var template = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        template.setAllowedFigis(TEST_FIGI);
+        template.setMaxPositionPercentage(20);
+        template.setMinDividendYield(5);
+        template.setSufficientProfit(3);
+
+        var strategy = new MultiAccountStrategy(template, marketData, new TestAccountOperations(accounts),
+                List.of("small", "large"), Runnable::run, new SimpleMeterRegistry(), "test");
+
+        assertTrue(strategy.step());
+        accounts.values().forEach(TestMarketService::assertAllSellsAndBuysAreDone);
+        assertEquals(1, marketData.getDividendsRequests());
+        assertEquals(2, strategy.getStrategies().size());
+    }
+
+    @Test
+    void testAccountIsValidatedWithoutConfiguredAccount() {
+        var marketData = new TestMarketService() {
+            @Override
+            public String validateToken() {
+                return "Configured account is not valid";
+            }
+        };
+        var accountOperations = new TestAccountOperations(Map.of("small", account(100000)));
+
+        assertNull(new AccountMarketService(marketData, accountOperations, "small").validateToken());
+        assertEquals("Unknown account large", new AccountMarketService(marketData, accountOperations, "large").validateToken());
+    }
+
+    private static TestMarketService account(int cash) {
+        var account = new TestMarketService();
+        account.setCash(cash);
+        account.expectedBuy(TEST_FIGI, cash / 5 / PRICE / TestMarketService.LOT);
+        return account;
+    }
+
+    private static class TestAccountOperations implements AccountOperations {
+        private final Map<String, TestMarketService> accounts;
+
+        TestAccountOperations(Map<String, TestMarketService> accounts) {
+            this.accounts = accounts;
+        }
+
+        @Override
+        public PortfolioResponse getPortfolio(String accountId) {
+            return accounts.get(accountId).getPortfolio();
+        }
+
+        @Override
+        public List<OrderState> getOrders(String accountId) {
+            return accounts.get(accountId).getOrders();
+        }
+
+        @Override
+        public void cancelOrder(String accountId, String orderId) {
+            accounts.get(accountId).cancelOrder(orderId);
+        }
+
+        @Override
+        public CompletableFuture<OrderState> getOrderState(String accountId, String orderId) {
+            return CompletableFuture.completedFuture(accounts.get(accountId).getOrderStateSync(orderId));
+        }
+
+        @Override
+        public CompletableFuture<String> postMarketOrder(String accountId, String figi, int numberOfLots, boolean buy) {
+            var account = accounts.get(accountId);
+            return CompletableFuture.completedFuture(buy ? account.buyMarket(figi, numberOfLots) : account.sellMarket(figi, numberOfLots));
+        }
+
+        @Override
+        public String validateTradingToken() {
+            return null;
+        }
+
+        @Override
+        public String validateAccount(String accountId) {
+            return accounts.containsKey(accountId) ? null : "Unknown account " + accountId;
+        }
+    }
+}
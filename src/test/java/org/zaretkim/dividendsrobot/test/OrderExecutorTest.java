@@ -0,0 +1,85 @@
+package org.zaretkim.dividendsrobot.test;
+
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.FixedPoint;
+import org.zaretkim.dividendsrobot.service.OrderExecutor;
+import ru.tinkoff.piapi.contract.v1.OrderExecutionReportStatus;
+import ru.tinkoff.piapi.contract.v1.OrderState;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OrderExecutorTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+    private static final String ORDER_ID = "order";
+
+    @Test
+    void testOrderIsPolledUntilFilled() {
+        var marketService = new OrderStatesMarketService(List.of(
+                state(OrderExecutionReportStatus.EXECUTION_REPORT_STATUS_NEW, 0),
+                state(OrderExecutionReportStatus.EXECUTION_REPORT_STATUS_PARTIALLYFILL, 1),
+                state(OrderExecutionReportStatus.EXECUTION_REPORT_STATUS_FILL, 2)));
+        var executor = new OrderExecutor(marketService, Duration.ofSeconds(10), Duration.ofMillis(1));
+
+        var fill = executor.track(TEST_FIGI, 2, FixedPoint.ofUnits(1000), CompletableFuture.completedFuture(ORDER_ID)).join();
+
+        assertTrue(fill.isFinished());
+        assertEquals(2, fill.getLotsExecuted());
+        assertEquals(FixedPoint.ofUnits(2010), fill.getExecutedAmount());
+        assertEquals(3, marketService.requests);
+    }
+
+    @Test
+    void testNotFinishedOrderIsReportedAfterTimeout() {
+        var marketService = new OrderStatesMarketService(List.of(state(OrderExecutionReportStatus.EXECUTION_REPORT_STATUS_PARTIALLYFILL, 1)));
+        var executor = new OrderExecutor(marketService, Duration.ofMillis(20), Duration.ofMillis(1));
+
+        var fill = executor.track(TEST_FIGI, 2, FixedPoint.ofUnits(1000), CompletableFuture.completedFuture(ORDER_ID)).join();
+
+        assertFalse(fill.isFinished());
+        assertEquals(1, fill.getLotsExecuted());
+    }
+
+    @Test
+    void testFailedOrderHasNoExecutedLots() {
+        var executor = new OrderExecutor(new TestMarketService(), Duration.ofSeconds(10), Duration.ofMillis(1));
+
+        var fill = executor.track(TEST_FIGI, 2, FixedPoint.ofUnits(1000), CompletableFuture.failedFuture(new IllegalStateException("rejected"))).join();
+
+        assertEquals(0, fill.getLotsExecuted());
+        assertEquals(0, fill.getExecutedAmount());
+    }
+
+    private static OrderState state(OrderExecutionReportStatus status, int lotsExecuted) {
+        return OrderState.newBuilder().
+                setOrderId(ORDER_ID).
+                setFigi(TEST_FIGI).
+                setExecutionReportStatus(status).
+                setLotsRequested(2).
+                setLotsExecuted(lotsExecuted).
+                setExecutedOrderPrice(FixedPoint.toMoneyValue(FixedPoint.ofUnits(1005L * lotsExecuted), "rub")).
+                build();
+    }
+
+    /**
+     * Returns given order states one by one, the last one is repeated
+     */
+    private static class OrderStatesMarketService extends TestMarketService {
+        private final ArrayDeque<OrderState> states;
+        private volatile int requests = 0;
+
+        OrderStatesMarketService(List<OrderState> states) {
+            this.states = new ArrayDeque<>(states);
+        }
+
+        @Override
+        public synchronized OrderState getOrderStateSync(String orderId) {
+            requests++;
+            return states.size() > 1 ? states.poll() : states.peek();
+        }
+    }
+}
@@ -1,9 +1,18 @@
 package org.zaretkim.dividendsrobot.test;
 
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.jupiter.api.Test;
 import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.Share;
 
 import java.time.temporal.ChronoUnit;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class PreDividendsStrategyServiceTest {
     private static final String TEST_FIGI = "TEST_FIGI";
@@ -42,6 +51,74 @@ public class PreDividendsStrategyServiceTest {
         testMarketService.assertAllSellsAndBuysAreDone();
     }
 
+    @Test
+    void testPositionIsOpenForLargeAccount() {
+        var testMarketService = new TestMarketService();
+        var strategyService = createStrategyWithDefaultConfiguration(testMarketService);
+        long cash = 1_000_000_000L;
+        testMarketService.setCash(cash);
+
+        var now = testMarketService.now();
+        testMarketService.addDividend(TEST_FIGI, now.plus(1, ChronoUnit.DAYS), 10);
+        int price = 100;
+        testMarketService.setLastPrice(TEST_FIGI, price);
+        int expectedLots = (int) (cash * MAX_POSITION_PERCENTAGE / 100 / price / TestMarketService.LOT);
+        testMarketService.expectedBuy(TEST_FIGI, expectedLots);
+
+        assertTrue(strategyService.step());
+
+        testMarketService.assertAllSellsAndBuysAreDone();
+    }
+
+    @Test
+    void testFivePercentsOfCashAreKept() {
+        var testMarketService = new TestMarketService();
+        var strategyService = createStrategyWithDefaultConfiguration(testMarketService);
+        strategyService.setMaxPositionPercentage(100);
+
+        var now = testMarketService.now();
+        testMarketService.addDividend(TEST_FIGI, now.plus(1, ChronoUnit.DAYS), 10);
+        int price = 100;
+        testMarketService.setLastPrice(TEST_FIGI, price);
+        // position must cost less than 95% of the cash, 950 lots cost exactly 95%
+        testMarketService.expectedBuy(TEST_FIGI, 949);
+
+        assertTrue(strategyService.step());
+
+        testMarketService.assertAllSellsAndBuysAreDone();
+    }
+
+    @Test
+    void testFailedShareLookupSkipsOnlyItsPosition() {
+        var failingFigi = "FAILING_FIGI";
+        var testMarketService = new TestMarketService() {
+            private int failingLookups = 0;
+
+            @Override
+            public Share getShareByFigiSync(String figi) {
+                // the first lookup is made while searching ideas, the second one while opening positions
+                if (failingFigi.equals(figi) && ++failingLookups > 1)
+                    throw new IllegalStateException("Share is not available");
+                return super.getShareByFigiSync(figi);
+            }
+        };
+        var strategyService = createStrategyWithDefaultConfiguration(testMarketService);
+        strategyService.setAllowedFigis(failingFigi + " " + TEST_FIGI);
+
+        var now = testMarketService.now();
+        int price = 100;
+        for (String figi : List.of(failingFigi, TEST_FIGI)) {
+            testMarketService.addDividend(figi, now.plus(1, ChronoUnit.DAYS), 10);
+            testMarketService.setLastPrice(figi, price);
+        }
+        int expectedLots = (int) (INITIAL_CASH * MAX_POSITION_PERCENTAGE / 100 / price / TestMarketService.LOT);
+        testMarketService.expectedBuy(TEST_FIGI, expectedLots);
+
+        assertTrue(strategyService.step());
+
+        testMarketService.assertAllSellsAndBuysAreDone();
+    }
+
     @Test
     void testPositionIsClosedAfterLastBuyDate() {
         var testMarketService = new TestMarketService();
@@ -76,8 +153,51 @@ public class PreDividendsStrategyServiceTest {
         testMarketService.assertAllSellsAndBuysAreDone();
     }
 
+    @Test
+    void testPositionsAreClosedWhenBatchedPriceRequestFails() {
+        var testMarketService = new TestMarketService() {
+            @Override
+            public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+                if (figis.size() > 1) throw new IllegalStateException("Batch is not available");
+                return super.getLastPrices(figis);
+            }
+        };
+        var strategyService = createStrategyWithDefaultConfiguration(testMarketService);
+
+        var otherFigi = "OTHER_FIGI";
+        var numberOfLots = 2;
+        for (String figi : List.of(TEST_FIGI, otherFigi)) {
+            testMarketService.setLastPrice(figi, 100 + MIN_DIVIDEND_YIELD);
+            testMarketService.addPosition(figi, numberOfLots, 100);
+            testMarketService.expectedSell(figi, numberOfLots);
+        }
+
+        assertTrue(strategyService.step());
+
+        testMarketService.assertAllSellsAndBuysAreDone();
+    }
+
+    @Test
+    void testDividendsAreRequestedOncePerStep() {
+        var testMarketService = new TestMarketService();
+        var strategyService = createStrategyWithDefaultConfiguration(testMarketService);
+
+        var now = testMarketService.now();
+        testMarketService.addDividend(TEST_FIGI, now.minus(1, ChronoUnit.DAYS), 10);
+        var lastPrice = 100;
+        testMarketService.setLastPrice(TEST_FIGI, lastPrice);
+        var numberOfLots = 2;
+        testMarketService.addPosition(TEST_FIGI, numberOfLots, 100, lastPrice);
+        testMarketService.expectedSell(TEST_FIGI, numberOfLots);
+
+        strategyService.step();
+
+        testMarketService.assertAllSellsAndBuysAreDone();
+        assertEquals(1, testMarketService.getDividendsRequests());
+    }
+
     private PreDividendsStrategyService createStrategyWithDefaultConfiguration(TestMarketService marketService) {
-        var strategyService = new PreDividendsStrategyService();
+        var strategyService = new PreDividendsStrategyService(new SimpleMeterRegistry());
         strategyService.setMarketService(marketService);
         marketService.setCash(INITIAL_CASH);
         strategyService.setAllowedFigis(TEST_FIGI);
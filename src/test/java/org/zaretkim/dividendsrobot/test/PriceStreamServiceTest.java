@@ -0,0 +1,136 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.PriceBoard;
+import org.zaretkim.dividendsrobot.marketdata.PriceStreamSource;
+import org.zaretkim.dividendsrobot.service.PriceStreamService;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PriceStreamServiceTest {
+    private static final String FIGI = "BBG004S68614";
+    private static final String OTHER_FIGI = "BBG004S68B31";
+
+    @Test
+    void testBoardKeepsNewestStreamedPrice() {
+        var source = new FakePriceStreamSource();
+        var board = new PriceBoard();
+        var service = new PriceStreamService(source, board);
+
+        service.subscribe(List.of(FIGI), false);
+        source.last().onPrice.accept(lastPrice(FIGI, 100, 2));
+        source.last().onPrice.accept(lastPrice(FIGI, 90, 1));
+
+        assertEquals(100, board.get(FIGI).getPrice().getUnits());
+        assertEquals(Set.of(FIGI), source.last().figis);
+    }
+
+    @Test
+    void testResubscribesAfterStreamError() throws InterruptedException {
+        var source = new FakePriceStreamSource();
+        var board = new PriceBoard();
+        var service = new PriceStreamService(source, board);
+        service.setReconnectDelay(Duration.ofMillis(10));
+
+        service.subscribe(List.of(FIGI, OTHER_FIGI), false);
+        source.last().onPrice.accept(lastPrice(FIGI, 100, 1));
+        source.last().onError.accept(new RuntimeException("stream is closed"));
+
+        assertNull(board.get(FIGI));
+        assertTrue(source.streams.get(0).closed);
+        for (int i = 0; i < 100 && source.streams.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, source.streams.size());
+        assertEquals(Set.of(FIGI, OTHER_FIGI), source.last().figis);
+
+        service.subscribe(List.of(OTHER_FIGI), false);
+        assertEquals(Set.of(OTHER_FIGI), source.last().figis);
+        service.shutdown();
+        assertTrue(source.last().closed);
+    }
+
+    @Test
+    void testStreamIsReopenedOnSandboxEndpoint() {
+        var source = new FakePriceStreamSource();
+        var board = new PriceBoard();
+        var service = new PriceStreamService(source, board);
+
+        service.subscribe(List.of(FIGI), false);
+        source.last().onPrice.accept(lastPrice(FIGI, 100, 1));
+        service.subscribe(List.of(FIGI), true);
+
+        assertEquals(2, source.streams.size());
+        assertFalse(source.streams.get(0).sandbox);
+        assertTrue(source.streams.get(0).closed);
+        assertTrue(source.last().sandbox);
+        assertEquals(Set.of(FIGI), source.last().figis);
+        assertNull(board.get(FIGI));
+
+        source.streams.get(0).onPrice.accept(lastPrice(FIGI, 90, 2));
+        assertNull(board.get(FIGI), "Prices of the closed stream must be ignored");
+        source.last().onPrice.accept(lastPrice(FIGI, 110, 3));
+        assertEquals(110, board.get(FIGI).getPrice().getUnits());
+        service.shutdown();
+    }
+
+    private static LastPrice lastPrice(String figi, long units, long seconds) {
+        return LastPrice.newBuilder().
+                setFigi(figi).
+                setPrice(Quotation.newBuilder().setUnits(units).build()).
+                setTime(Timestamp.newBuilder().setSeconds(seconds).build()).
+                build();
+    }
+
+    private static class FakePriceStreamSource implements PriceStreamSource {
+        final List<FakePriceStream> streams = new CopyOnWriteArrayList<>();
+
+        @Override
+        public PriceStream open(boolean sandbox, Consumer<LastPrice> onPrice, Consumer<Throwable> onError) {
+            var stream = new FakePriceStream(sandbox, onPrice, onError);
+            streams.add(stream);
+            return stream;
+        }
+
+        FakePriceStream last() {
+            return streams.get(streams.size() - 1);
+        }
+    }
+
+    private static class FakePriceStream implements PriceStreamSource.PriceStream {
+        final boolean sandbox;
+        final Consumer<LastPrice> onPrice;
+        final Consumer<Throwable> onError;
+        final Set<String> figis = Collections.synchronizedSet(new HashSet<>());
+        volatile boolean closed = false;
+
+        FakePriceStream(boolean sandbox, Consumer<LastPrice> onPrice, Consumer<Throwable> onError) {
+            this.sandbox = sandbox;
+            this.onPrice = onPrice;
+            this.onError = onError;
+        }
+
+        @Override
+        public void subscribe(Collection<String> figis) {
+            this.figis.addAll(figis);
+        }
+
+        @Override
+        public void unsubscribe(Collection<String> figis) {
+            this.figis.removeAll(figis);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
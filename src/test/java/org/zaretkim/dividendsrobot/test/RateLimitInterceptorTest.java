@@ -0,0 +1,205 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptors;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCalls;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.service.RateLimitInterceptor;
+import org.zaretkim.dividendsrobot.service.TokenBucket;
+import ru.tinkoff.piapi.contract.v1.GetDividendsRequest;
+import ru.tinkoff.piapi.contract.v1.GetDividendsResponse;
+import ru.tinkoff.piapi.contract.v1.InstrumentsServiceGrpc;
+import ru.tinkoff.piapi.contract.v1.OrdersServiceGrpc;
+import ru.tinkoff.piapi.contract.v1.PostOrderRequest;
+import ru.tinkoff.piapi.contract.v1.SandboxPayInRequest;
+import ru.tinkoff.piapi.contract.v1.SandboxServiceGrpc;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimitInterceptorTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    @AfterEach
+    void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void testExhaustedCallIsRepeated() {
+        var channel = new StatusesChannel(List.of(Status.RESOURCE_EXHAUSTED, Status.UNAVAILABLE, Status.OK));
+        var interceptor = createInterceptor(5);
+
+        var response = ClientCalls.blockingUnaryCall(ClientInterceptors.intercept(channel, interceptor),
+                InstrumentsServiceGrpc.getGetDividendsMethod(), CallOptions.DEFAULT, GetDividendsRequest.getDefaultInstance());
+
+        assertNotNull(response);
+        assertEquals(3, channel.calls);
+        assertEquals(2, interceptor.getRetries());
+    }
+
+    @Test
+    void testErrorIsReturnedAfterLastAttempt() {
+        var channel = new StatusesChannel(List.of(Status.RESOURCE_EXHAUSTED));
+        var interceptor = createInterceptor(3);
+
+        var e = assertThrows(StatusRuntimeException.class, () -> ClientCalls.blockingUnaryCall(ClientInterceptors.intercept(channel, interceptor),
+                InstrumentsServiceGrpc.getGetDividendsMethod(), CallOptions.DEFAULT, GetDividendsRequest.getDefaultInstance()));
+
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, e.getStatus().getCode());
+        assertEquals(3, channel.calls);
+    }
+
+    @Test
+    void testNotIdempotentCallIsNotRepeatedWhenUnavailable() {
+        var channel = new StatusesChannel(List.of(Status.UNAVAILABLE, Status.OK));
+        var interceptor = createInterceptor(5);
+
+        assertThrows(StatusRuntimeException.class, () -> ClientCalls.blockingUnaryCall(ClientInterceptors.intercept(channel, interceptor),
+                SandboxServiceGrpc.getSandboxPayInMethod(), CallOptions.DEFAULT, SandboxPayInRequest.getDefaultInstance()));
+
+        assertEquals(1, channel.calls);
+    }
+
+    @Test
+    void testOrderIsRepeatedOnlyWhenExhausted() {
+        var unavailable = new StatusesChannel(List.of(Status.UNAVAILABLE, Status.OK));
+        var interceptor = createInterceptor(5);
+
+        assertThrows(StatusRuntimeException.class, () -> ClientCalls.blockingUnaryCall(ClientInterceptors.intercept(unavailable, interceptor),
+                OrdersServiceGrpc.getPostOrderMethod(), CallOptions.DEFAULT, PostOrderRequest.getDefaultInstance()));
+        assertEquals(1, unavailable.calls);
+
+        // rejected by the limit, so the order is not executed by the exchange
+        var exhausted = new StatusesChannel(List.of(Status.RESOURCE_EXHAUSTED, Status.OK));
+        assertNotNull(ClientCalls.blockingUnaryCall(ClientInterceptors.intercept(exhausted, interceptor),
+                SandboxServiceGrpc.getPostSandboxOrderMethod(), CallOptions.DEFAULT, PostOrderRequest.getDefaultInstance()));
+        assertEquals(2, exhausted.calls);
+    }
+
+    @Test
+    void testCallWaitingPastDeadlineFailsAtOnce() {
+        var channel = new StatusesChannel(List.of(Status.RESOURCE_EXHAUSTED, Status.OK));
+        channel.headers.put(Metadata.Key.of("x-ratelimit-reset", Metadata.ASCII_STRING_MARSHALLER), "120");
+        var interceptor = createInterceptor(5);
+        long start = System.nanoTime();
+
+        var e = assertThrows(StatusRuntimeException.class, () -> ClientCalls.blockingUnaryCall(ClientInterceptors.intercept(channel, interceptor),
+                InstrumentsServiceGrpc.getGetDividendsMethod(), CallOptions.DEFAULT.withDeadlineAfter(5, TimeUnit.SECONDS),
+                GetDividendsRequest.getDefaultInstance()));
+
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, e.getStatus().getCode());
+        assertEquals(1, channel.calls);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), "Call must not wait for the deadline");
+        // the token of the attempt which is not started is returned, the next call waits only for the reset
+        assertTrue(interceptor.getBucket("InstrumentsService").reserve() <= TimeUnit.SECONDS.toNanos(120));
+    }
+
+    @Test
+    void testLimitHeadersAreApplied() {
+        var channel = new StatusesChannel(List.of(Status.OK));
+        channel.headers.put(Metadata.Key.of("x-ratelimit-limit", Metadata.ASCII_STRING_MARSHALLER), "60, 60;w=60");
+        channel.headers.put(Metadata.Key.of("x-ratelimit-remaining", Metadata.ASCII_STRING_MARSHALLER), "10");
+        var interceptor = createInterceptor(5);
+
+        ClientCalls.blockingUnaryCall(ClientInterceptors.intercept(channel, interceptor),
+                InstrumentsServiceGrpc.getGetDividendsMethod(), CallOptions.DEFAULT, GetDividendsRequest.getDefaultInstance());
+
+        assertEquals(60, interceptor.getBucket("InstrumentsService").getLimit());
+    }
+
+    @Test
+    void testBucketDelaysCallsOverLimit() {
+        long[] now = {0};
+        var bucket = new TokenBucket(2, Duration.ofMinutes(1), () -> now[0]);
+
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+        assertEquals(TimeUnit.SECONDS.toNanos(30), bucket.reserve());
+
+        now[0] = TimeUnit.SECONDS.toNanos(60);
+        assertEquals(0, bucket.reserve());
+        bucket.update(0, 0, TimeUnit.SECONDS.toNanos(90));
+        assertEquals(TimeUnit.SECONDS.toNanos(90), bucket.reserve());
+    }
+
+    private RateLimitInterceptor createInterceptor(int maxAttempts) {
+        return new RateLimitInterceptor(RateLimitInterceptor.parseLimits("InstrumentsService:1000"), 1000, maxAttempts,
+                Duration.ofMillis(1), Duration.ofMillis(5), scheduler);
+    }
+
+    /**
+     * Completes calls with given statuses one by one, the last one is repeated
+     */
+    private static class StatusesChannel extends Channel {
+        private final ArrayDeque<Status> statuses;
+        private final Metadata headers = new Metadata();
+        private volatile int calls = 0;
+
+        StatusesChannel(List<Status> statuses) {
+            this.statuses = new ArrayDeque<>(statuses);
+        }
+
+        @Override
+        public <Q, S> ClientCall<Q, S> newCall(MethodDescriptor<Q, S> method, CallOptions callOptions) {
+            Status status;
+            synchronized (this) {
+                calls++;
+                status = statuses.size() > 1 ? statuses.poll() : statuses.peek();
+            }
+            return new ClientCall<>() {
+                private Listener<S> listener;
+
+                @Override
+                public void start(Listener<S> listener, Metadata headers) {
+                    this.listener = listener;
+                }
+
+                @Override
+                public void request(int numMessages) {
+                }
+
+                @Override
+                public void cancel(String message, Throwable cause) {
+                }
+
+                @Override
+                public void halfClose() {
+                    var executor = callOptions.getExecutor();
+                    Runnable respond = () -> {
+                        var responseHeaders = new Metadata();
+                        responseHeaders.merge(headers);
+                        listener.onHeaders(responseHeaders);
+                        if (status.isOk())
+                            listener.onMessage(method.parseResponse(GetDividendsResponse.getDefaultInstance().toByteString().newInput()));
+                        listener.onClose(status, new Metadata());
+                    };
+                    if (executor == null) respond.run(); else executor.execute(respond);
+                }
+
+                @Override
+                public void sendMessage(Q message) {
+                }
+            };
+        }
+
+        @Override
+        public String authority() {
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.zaretkim.dividendsrobot.marketdata.MarketCallLog;
+import org.zaretkim.dividendsrobot.service.MarketService;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import org.zaretkim.dividendsrobot.service.RecordingMarketService;
+import org.zaretkim.dividendsrobot.service.ReplayMarketService;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplayMarketServiceTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+
+    @Test
+    void testEverySessionIsRecordedToItsOwnFile(@TempDir Path dir) {
+        var file = dir.resolve("session.log");
+        var startedAt = Instant.parse("2022-04-05T10:15:00Z");
+        var first = MarketCallLog.sessionFile(file, startedAt);
+        var second = MarketCallLog.sessionFile(file, startedAt.plusSeconds(60));
+        assertEquals(dir.resolve("session-20220405-101500-000.log"), first);
+        assertEquals(dir.resolve("session-20220405-101600-000.log"), second);
+        assertEquals(dir.resolve("session-20220405-101500-000"), MarketCallLog.sessionFile(dir.resolve("session"), startedAt));
+
+        MarketCallLog.create(first).close();
+        assertThrows(UncheckedIOException.class, () -> MarketCallLog.create(first), "Existing recording must not be overwritten");
+    }
+
+    @Test
+    void testRecordedStepIsReplayedWithoutOriginalService(@TempDir Path dir) {
+        var file = dir.resolve("session.log");
+        var testMarketService = new TestMarketService();
+        testMarketService.setCash(1000000);
+        testMarketService.addDividend(TEST_FIGI, testMarketService.now().plus(1, ChronoUnit.DAYS), 10);
+        testMarketService.setLastPrice(TEST_FIGI, 100);
+        testMarketService.expectedBuy(TEST_FIGI, 200);
+        try (var recording = new RecordingMarketService(testMarketService, MarketCallLog.create(file))) {
+            assertTrue(createStrategy(recording).step());
+        }
+        testMarketService.assertAllSellsAndBuysAreDone();
+
+        var replay = new ReplayMarketService(MarketCallLog.read(file));
+        var strategy = createStrategy(replay);
+        var ideas = strategy.findDividendsIdeas();
+        assertEquals(1, ideas.size());
+        assertEquals(TEST_FIGI, ideas.get(0).getFigi());
+        assertEquals(testMarketService.now(), replay.now());
+        assertEquals(100, replay.getLastPrices(List.of(TEST_FIGI)).get(TEST_FIGI).getPrice().getUnits());
+        assertThrows(IllegalStateException.class, () -> replay.getDividendsSync("UNKNOWN_FIGI"));
+    }
+
+    private static PreDividendsStrategyService createStrategy(MarketService marketService) {
+        var strategyService = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategyService.setMarketService(marketService);
+        strategyService.setAllowedFigis(TEST_FIGI);
+        strategyService.setMaxPositionPercentage(20);
+        strategyService.setMinDividendYield(5);
+        strategyService.setSufficientProfit(3);
+        return strategyService;
+    }
+}
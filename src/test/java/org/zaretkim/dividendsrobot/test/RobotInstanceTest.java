@@ -0,0 +1,136 @@
+package org.zaretkim.dividendsrobot.test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import org.zaretkim.dividendsrobot.service.RobotInstance;
+
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RobotInstanceTest {
+    private static final RobotInstance.Schedule SCHEDULE =
+            new RobotInstance.Schedule(LocalTime.NOON, ZoneOffset.UTC, 2, Duration.ofMillis(10));
+
+    @Test
+    void testFailedStepIsRetriedAndSlowRobotDoesNotBlockOthers() throws InterruptedException {
+        var scheduler = Executors.newScheduledThreadPool(2);
+        try {
+            var slowStepStarted = new CountDownLatch(1);
+            var releaseSlowStep = new CountDownLatch(1);
+            var slow = new RobotInstance("slow", new StubStrategy(() -> {
+                slowStepStarted.countDown();
+                releaseSlowStep.await();
+                return true;
+            }), scheduler, SCHEDULE, () -> {}, () -> {});
+
+            var failingSteps = new AtomicInteger();
+            var failingDone = new CountDownLatch(3);
+            var failing = new RobotInstance("failing", new StubStrategy(() -> {
+                failingSteps.incrementAndGet();
+                failingDone.countDown();
+                return false;
+            }), scheduler, SCHEDULE, () -> {}, () -> {});
+
+            slow.start();
+            assertTrue(slowStepStarted.await(5, TimeUnit.SECONDS));
+            failing.start();
+            // the first attempt and 2 retries while the slow robot is still executing its step
+            assertTrue(failingDone.await(5, TimeUnit.SECONDS));
+            Thread.sleep(50);
+            assertEquals(3, failingSteps.get());
+            assertEquals(3, failing.getFailedAttempts());
+            assertFalse(failing.getLastStepResult());
+            assertNotNull(failing.getNextStepTime());
+
+            releaseSlowStep.countDown();
+            slow.stop();
+            assertTrue(slow.getLastStepResult());
+            assertFalse(slow.isRunning());
+            assertNull(slow.getNextStepTime());
+            failing.stop();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void testStopWaitsForRunningStep() throws InterruptedException {
+        var scheduler = Executors.newScheduledThreadPool(2);
+        try {
+            var stepStarted = new CountDownLatch(1);
+            var stopped = new CountDownLatch(1);
+            var robot = new RobotInstance("robot", new StubStrategy(() -> {
+                stepStarted.countDown();
+                Thread.sleep(100);
+                return true;
+            }), scheduler, SCHEDULE, () -> {}, stopped::countDown);
+            robot.start();
+            assertTrue(stepStarted.await(5, TimeUnit.SECONDS));
+
+            robot.stop();
+            assertEquals(0, stopped.getCount());
+            assertTrue(robot.getLastStepResult());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    void testRobotStartedBeforeStepTimeStepsOnceOnFirstDay() throws InterruptedException {
+        var scheduler = Executors.newScheduledThreadPool(2);
+        try {
+            // the zone where it is about 6:00 now, so today's step time is still ahead
+            var zone = ZoneOffset.ofHours(6 - LocalTime.now(ZoneOffset.UTC).getHour());
+            var schedule = new RobotInstance.Schedule(LocalTime.NOON, zone, 2, Duration.ofMillis(10));
+            var stepDone = new CountDownLatch(1);
+            var robot = new RobotInstance("robot", new StubStrategy(() -> {
+                stepDone.countDown();
+                return true;
+            }), scheduler, schedule, () -> {}, () -> {});
+            robot.start();
+            assertTrue(stepDone.await(5, TimeUnit.SECONDS));
+
+            var expected = ZonedDateTime.now(zone).toLocalDate().plusDays(1).atTime(LocalTime.NOON).atZone(zone).toInstant();
+            var next = robot.getNextStepTime();
+            assertNotNull(next);
+            assertTrue(Duration.between(expected, next).abs().compareTo(Duration.ofSeconds(5)) < 0,
+                    "Next step " + next + " expected at " + expected);
+            robot.stop();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        boolean run() throws InterruptedException;
+    }
+
+    private static class StubStrategy extends PreDividendsStrategyService {
+        private final Step step;
+
+        StubStrategy(Step step) {
+            super(new SimpleMeterRegistry());
+            this.step = step;
+        }
+
+        @Override
+        public boolean step() {
+            try {
+                return step.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
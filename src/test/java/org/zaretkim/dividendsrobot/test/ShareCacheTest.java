@@ -0,0 +1,98 @@
+package org.zaretkim.dividendsrobot.test;
+
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.ShareCache;
+import ru.tinkoff.piapi.contract.v1.Share;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ShareCacheTest {
+    private static final Duration TTL = Duration.ofHours(1);
+
+    @Test
+    void testRepeatedLookupDoesNotCallLoader() {
+        var cache = new ShareCache(10, TTL, false, new TestClock());
+        var loads = new AtomicInteger();
+
+        cache.getOrLoad("A", figi -> share(figi, loads));
+        cache.getOrLoad("A", figi -> share(figi, loads));
+
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void testEntryExpires() {
+        var clock = new TestClock();
+        var cache = new ShareCache(10, TTL, false, clock);
+        cache.put(Share.newBuilder().setFigi("A").build());
+
+        clock.advance(TTL.minusSeconds(1));
+        assertNotNull(cache.get("A"));
+        clock.advance(Duration.ofSeconds(1));
+        assertNull(cache.get("A"));
+    }
+
+    @Test
+    void testLeastRecentlyUsedEntryIsEvicted() {
+        var cache = new ShareCache(2, TTL, false, new TestClock());
+        cache.put(Share.newBuilder().setFigi("A").build());
+        cache.put(Share.newBuilder().setFigi("B").build());
+        cache.get("A");
+        cache.put(Share.newBuilder().setFigi("C").build());
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("A"));
+        assertNull(cache.get("B"));
+        assertNotNull(cache.get("C"));
+    }
+
+    @Test
+    void testPreloadIsRequiredAgainAfterExpiration() {
+        var clock = new TestClock();
+        var cache = new ShareCache(10, TTL, true, clock);
+        assertTrue(cache.needsPreload());
+
+        cache.putAll(List.of(Share.newBuilder().setFigi("A").build(), Share.newBuilder().setFigi("B").build()));
+        assertFalse(cache.needsPreload());
+        assertNotNull(cache.get("B"));
+
+        clock.advance(TTL);
+        assertTrue(cache.needsPreload());
+    }
+
+    private static Share share(String figi, AtomicInteger loads) {
+        loads.incrementAndGet();
+        return Share.newBuilder().setFigi(figi).build();
+    }
+
+    private static class TestClock extends Clock {
+        private Instant now = Instant.ofEpochSecond(1_600_000_000L);
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
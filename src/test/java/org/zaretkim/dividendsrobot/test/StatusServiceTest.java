@@ -0,0 +1,100 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.PriceBoard;
+import org.zaretkim.dividendsrobot.service.MeteredMarketService;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import org.zaretkim.dividendsrobot.service.StatusService;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.PortfolioResponse;
+import ru.tinkoff.piapi.core.utils.MapperUtils;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StatusServiceTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+    private static final int INITIAL_CASH = 1000000;
+
+    @Test
+    void testSnapshotIsPublishedAfterRefreshAndRepricedByStream() {
+        var marketService = new TestMarketService();
+        marketService.setCash(INITIAL_CASH);
+        marketService.setLastPrice(TEST_FIGI, 107);
+        marketService.addPosition(TEST_FIGI, 2, 100, 107);
+        var strategyService = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategyService.setMarketService(marketService);
+        var priceBoard = new PriceBoard();
+        var statusService = new StatusService(strategyService, priceBoard);
+        statusService.init();
+        assertFalse(statusService.getSnapshot().isRunning());
+
+        statusService.refresh();
+        var refreshed = statusService.getSnapshot();
+        assertTrue(refreshed.isRunning());
+        assertEquals(1, refreshed.getPositions().size());
+        assertEquals(2 * TestMarketService.LOT, refreshed.getPositions().get(0).getCount());
+
+        priceBoard.update(lastPrice(110));
+        var repriced = statusService.getSnapshot();
+        assertTrue(repriced.getVersion() > refreshed.getVersion());
+        assertEquals(0, BigDecimal.valueOf(110).compareTo(repriced.getPositions().get(0).getLastPrice()));
+        assertEquals(0, BigDecimal.valueOf(10).compareTo(repriced.getPositions().get(0).getExpectedYield()));
+        assertEquals(0, refreshed.getTotalFunds().add(BigDecimal.valueOf(3L * 2 * TestMarketService.LOT)).compareTo(repriced.getTotalFunds()));
+
+        statusService.clear();
+        assertFalse(statusService.getSnapshot().isRunning());
+        assertTrue(statusService.getSnapshot().getVersion() > repriced.getVersion());
+    }
+
+    @Test
+    void testStartedRobotIsRunningBeforeFirstStep() {
+        var marketService = new TestMarketService() {
+            @Override
+            public PortfolioResponse getPortfolio() {
+                throw new IllegalStateException("Portfolio is not available");
+            }
+        };
+        var strategyService = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategyService.setMarketService(marketService);
+        var statusService = new StatusService(strategyService, new PriceBoard());
+
+        statusService.start();
+        var started = statusService.getSnapshot();
+        assertTrue(started.isRunning());
+        assertEquals("real", started.getMode());
+        assertNull(started.getTotalFunds());
+
+        strategyService.setMarketService(new TestMarketService());
+        statusService.start();
+        assertTrue(statusService.getSnapshot().isRunning());
+        assertNotNull(statusService.getSnapshot().getTotalFunds());
+    }
+
+    @Test
+    void testRefreshRequestsGoThroughDecorators() {
+        var marketService = new TestMarketService();
+        marketService.setLastPrice(TEST_FIGI, 107);
+        marketService.addPosition(TEST_FIGI, 2, 100, 107);
+        var meterRegistry = new SimpleMeterRegistry();
+        var strategyService = new PreDividendsStrategyService(meterRegistry);
+        strategyService.setMarketService(new MeteredMarketService(marketService, meterRegistry, "sandbox"));
+        var statusService = new StatusService(strategyService, new PriceBoard());
+
+        statusService.refresh();
+
+        assertEquals(1, meterRegistry.get("dividendsrobot.market.calls").tag("method", "getPortfolio").timer().count());
+        assertEquals("real", statusService.getSnapshot().getMode());
+    }
+
+    private static LastPrice lastPrice(double price) {
+        return LastPrice.newBuilder().
+                setFigi(TEST_FIGI).
+                setPrice(MapperUtils.bigDecimalToQuotation(BigDecimal.valueOf(price))).
+                setTime(Timestamp.newBuilder().setSeconds(System.currentTimeMillis() / 1000).build()).
+                build();
+    }
+}
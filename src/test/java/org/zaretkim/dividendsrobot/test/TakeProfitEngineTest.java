@@ -0,0 +1,56 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.PriceBoard;
+import org.zaretkim.dividendsrobot.service.PreDividendsStrategyService;
+import org.zaretkim.dividendsrobot.service.TakeProfitEngine;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.core.utils.MapperUtils;
+
+import java.math.BigDecimal;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TakeProfitEngineTest {
+    private static final String TEST_FIGI = "TEST_FIGI";
+    private static final double SUFFICIENT_PROFIT = 3;
+
+    @Test
+    void testPositionIsSoldOnceWhenStreamedPriceIsEnough() {
+        var testMarketService = new TestMarketService();
+        var strategyService = new PreDividendsStrategyService(new SimpleMeterRegistry());
+        strategyService.setMarketService(testMarketService);
+        strategyService.setSufficientProfit(SUFFICIENT_PROFIT);
+        var priceBoard = new PriceBoard();
+        var engine = new TakeProfitEngine(strategyService, priceBoard);
+        engine.init();
+
+        var numberOfLots = 2;
+        testMarketService.setLastPrice(TEST_FIGI, 100);
+        testMarketService.addPosition(TEST_FIGI, numberOfLots, 100, 100);
+        engine.watch(testMarketService.getPortfolio());
+        assertEquals(1, engine.size());
+
+        priceBoard.update(lastPrice(102, 1));
+        testMarketService.expectedSell(TEST_FIGI, numberOfLots);
+        priceBoard.update(lastPrice(104, 2));
+        priceBoard.update(lastPrice(105, 3));
+        assertEquals(0, engine.size());
+
+        // position is watched again after the step, but the order is already submitted
+        engine.watch(testMarketService.getPortfolio());
+        priceBoard.update(lastPrice(106, 4));
+
+        testMarketService.assertAllSellsAndBuysAreDone();
+    }
+
+    private static LastPrice lastPrice(double price, long seconds) {
+        return LastPrice.newBuilder().
+                setFigi(TEST_FIGI).
+                setPrice(MapperUtils.bigDecimalToQuotation(BigDecimal.valueOf(price))).
+                setTime(Timestamp.newBuilder().setSeconds(seconds).build()).
+                build();
+    }
+}
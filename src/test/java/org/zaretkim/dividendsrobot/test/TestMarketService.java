@@ -8,9 +8,11 @@ import ru.tinkoff.piapi.core.utils.MapperUtils;
 import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Mocking MarketService for unit tests
@@ -27,6 +29,7 @@ public class TestMarketService implements MarketService {
     private final Instant fakeNow = Instant.now();
     private final HashMap<String, List<Dividend>> dividendMap = new HashMap<>();
     private final HashMap<String, LastPrice> pricesMap = new HashMap<>();
+    private int dividendsRequests = 0;
 
     @Override
     public PortfolioResponse getPortfolio() {
@@ -61,12 +64,17 @@ public class TestMarketService implements MarketService {
 
     @Override
     public List<Dividend> getDividendsSync(String figi) {
+        dividendsRequests++;
         List<Dividend> dividends = dividendMap.get(figi);
         if (dividends == null)
             return Collections.emptyList();
         return dividends;
     }
 
+    public int getDividendsRequests() {
+        return dividendsRequests;
+    }
+
     public void addDividend(String figi, Instant lastBuyDate, double dividendNet) {
         var dividendNetValue = MapperUtils.bigDecimalToMoneyValue(BigDecimal.valueOf(dividendNet));
         var lastBuyDateTimeStamp = Timestamp.newBuilder().setSeconds(lastBuyDate.getEpochSecond()).build();
@@ -83,6 +91,17 @@ public class TestMarketService implements MarketService {
         return pricesMap.get(figi);
     }
 
+    @Override
+    public Map<String, LastPrice> getLastPrices(Collection<String> figis) {
+        var result = new HashMap<String, LastPrice>();
+        for (String figi : figis) {
+            var lastPrice = pricesMap.get(figi);
+            if (lastPrice != null)
+                result.put(figi, lastPrice);
+        }
+        return result;
+    }
+
     public void setLastPrice(String figi, double price) {
         var lastPrice = LastPrice.newBuilder().
                 setFigi(figi).
@@ -171,6 +190,18 @@ public class TestMarketService implements MarketService {
         portfolioPositions.put(figi, portfolioPosition);
     }
 
+    /**
+     * Adds position without current price, the price has to be requested by @getLastPrices
+     */
+    public void addPosition(String figi, int numberOfLots, double averagePrice) {
+        var portfolioPosition = PortfolioPosition.newBuilder().setFigi(figi).
+                setQuantityLots(MapperUtils.bigDecimalToQuotation(BigDecimal.valueOf(numberOfLots))).
+                setAveragePositionPrice(moneyValueFromDouble(averagePrice)).
+                setInstrumentType("share").
+                build();
+        portfolioPositions.put(figi, portfolioPosition);
+    }
+
     private MoneyValue moneyValueFromDouble(double value) {
         var v1 = MapperUtils.bigDecimalToMoneyValue(BigDecimal.valueOf(value));
         return MoneyValue.newBuilder(v1).setCurrency("RUB").build();
@@ -0,0 +1,64 @@
+package org.zaretkim.dividendsrobot.test;
+
+import com.google.protobuf.Timestamp;
+import org.junit.jupiter.api.Test;
+import org.zaretkim.dividendsrobot.marketdata.TradingCalendar;
+import ru.tinkoff.piapi.contract.v1.TradingDay;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TradingCalendarTest {
+    private static final LocalDate MONDAY = LocalDate.of(2022, 5, 16);
+
+    @Test
+    void testWeekendIsNotTradingDay() {
+        var calendar = weekCalendar();
+
+        assertTrue(calendar.isTradingDay(MONDAY));
+        assertTrue(calendar.isTradingDay(MONDAY.plusDays(4)));
+        assertFalse(calendar.isTradingDay(MONDAY.plusDays(5)));
+        assertFalse(calendar.isTradingDay(MONDAY.plusDays(6)));
+        assertFalse(calendar.isTradingDay(MONDAY.plusDays(7)));
+        assertFalse(calendar.covers(MONDAY.plusDays(7)));
+    }
+
+    @Test
+    void testWorkingTimeIsInsideSession() {
+        var calendar = weekCalendar();
+
+        assertFalse(calendar.isWorkingTime(at(MONDAY, 6, 59)));
+        assertTrue(calendar.isWorkingTime(at(MONDAY, 7, 0)));
+        assertTrue(calendar.isWorkingTime(at(MONDAY, 15, 49)));
+        assertFalse(calendar.isWorkingTime(at(MONDAY, 15, 50)));
+        assertFalse(calendar.isWorkingTime(at(MONDAY.plusDays(5), 12, 0)));
+    }
+
+    private static TradingCalendar weekCalendar() {
+        var days = new ArrayList<TradingDay>();
+        for (int i = 0; i < 7; i++) {
+            var date = MONDAY.plusDays(i);
+            var isTradingDay = i < 5;
+            var day = TradingDay.newBuilder().
+                    setDate(timestamp(at(date, 0, 0))).
+                    setIsTradingDay(isTradingDay);
+            if (isTradingDay) {
+                day.setStartTime(timestamp(at(date, 7, 0))).setEndTime(timestamp(at(date, 15, 50)));
+            }
+            days.add(day.build());
+        }
+        return TradingCalendar.fromSchedule(MONDAY, MONDAY.plusDays(6), days);
+    }
+
+    private static Instant at(LocalDate date, int hour, int minute) {
+        return date.atTime(hour, minute).toInstant(ZoneOffset.UTC);
+    }
+
+    private static Timestamp timestamp(Instant instant) {
+        return Timestamp.newBuilder().setSeconds(instant.getEpochSecond()).build();
+    }
+}